@@ -0,0 +1,134 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds, in the style of HdrHistogram: values
+ * below 2^SUB_BITS get a bucket each, and every larger power of two is split
+ * into 2^SUB_BITS buckets of equal width. A value is therefore known to within
+ * 1/2^SUB_BITS (about 3%) of itself, over the whole range of a long, with a
+ * fixed table of under two thousand counters.
+ *
+ * Recording is a few shifts and one atomic increment, without locks or
+ * allocation, so it can sit on a request path shared by many threads.
+ * Percentiles read while values are being recorded are approximate.
+ */
+public class LatencyHistogram {
+
+    // Buckets per power of two, as a power of two.
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+
+    // Rep invariant: counts.length() == BUCKETS, every count >= 0
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record one duration.
+     * @param nanos Duration in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Record the time elapsed since started.
+     * @param started A value of System.nanoTime().
+     */
+    public void recordSince(long started) {
+        record(System.nanoTime() - started);
+    }
+
+    /**
+     * @return Number of values recorded.
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return Largest value recorded, 0 if none.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return Mean of the values recorded, 0 if none.
+     */
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param p Fraction in [0, 1].
+     * @return The largest value that fraction p of the recorded values does
+     *         not exceed, rounded up to the end of its bucket; 0 if none.
+     */
+    public long percentile(double p) {
+        if (p < 0 || p > 1)
+            throw new IllegalArgumentException();
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highest(i), max());
+        }
+        return 0;
+    }
+
+    /**
+     * @return count, mean, p50, p99, p999 and max in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                count(), millis(mean()), millis(percentile(0.5)), millis(percentile(0.99)),
+                millis(percentile(0.999)), millis(max()));
+    }
+
+    private static double millis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @requires value >= 0
+     * @return Index of the bucket of value.
+     */
+    static int bucket(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        // value has its top bit at SUB_BITS + shift, shift >= 0.
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return The largest value in bucket i.
+     */
+    static long highest(int i) {
+        if (i < SUB_COUNT)
+            return i;
+        int shift = i / SUB_COUNT - 1;
+        long sub = i % SUB_COUNT;
+        long next = (SUB_COUNT + sub + 1) << shift;
+        // The last bucket ends at Long.MAX_VALUE, where next overflows.
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
@@ -0,0 +1,59 @@
+package metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE };
+        for (long v : values) {
+            int b = LatencyHistogram.bucket(v);
+            assertTrue(v + " above its bucket", v <= LatencyHistogram.highest(b));
+            assertTrue(v + " below its bucket", b == 0 || v > LatencyHistogram.highest(b - 1));
+        }
+    }
+
+    @Test
+    public void smallValuesExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++)
+            h.record(i);
+        assertEquals(20, h.count());
+        assertEquals(10, h.percentile(0.5));
+        assertEquals(20, h.percentile(1));
+        assertEquals(10.5, h.mean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        Random random = new Random(6005);
+        LatencyHistogram h = new LatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 25);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            long exact = values[(int) Math.ceil(p * values.length) - 1];
+            long estimate = h.percentile(p);
+            assertTrue(p + ": " + estimate + " vs " + exact,
+                    estimate >= exact && estimate <= exact + exact / 16 + 1);
+        }
+        assertEquals(values[values.length - 1], h.max());
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(0.99));
+        assertEquals(0, h.max());
+    }
+}
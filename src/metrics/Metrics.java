@@ -0,0 +1,149 @@
+package metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of a server, by name.
+ *
+ * Counters are LongAdders, which many threads can increment without
+ * contending. Looking a metric up by name costs a map lookup, so code on a
+ * request path should look its metrics up once and keep them. Everything can
+ * be read as one line of text, on request or periodically.
+ */
+public class Metrics {
+
+    private final String name;
+    private final long started = System.nanoTime();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    // Started by the first logEvery. Guarded by this.
+    private ScheduledExecutorService logger;
+
+    /**
+     * @param name Name of the server, at the start of every line.
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The counter called name, made on first use.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Report value() under name. The supplier is called whenever the metrics
+     * are read, from the reading thread.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return The histogram called name, made on first use.
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * @return Every metric on one line: the server name and uptime, then
+     *         name=value for counters and gauges and name[...] for histograms,
+     *         each kind in order of name.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        sb.append(" uptime=").append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started))
+                .append('s');
+        for (Map.Entry<String, LongAdder> e : counters.entrySet())
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue().sum());
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue().getAsLong());
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet())
+            sb.append(' ').append(e.getKey()).append('[').append(e.getValue()).append(']');
+        return sb.toString();
+    }
+
+    /**
+     * Print toString() to out every period, from a daemon thread, until
+     * stopLogging().
+     */
+    public synchronized void logEvery(long period, TimeUnit unit, PrintStream out) {
+        if (logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, name + " metrics");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        logger.scheduleAtFixedRate(() -> out.println(this), period, period, unit);
+    }
+
+    /**
+     * Stop every periodic log started by logEvery.
+     */
+    public synchronized void stopLogging() {
+        if (logger != null)
+            logger.shutdownNow();
+        logger = null;
+    }
+
+    /**
+     * @return in, adding every byte read from it to bytes.
+     */
+    public static InputStream counting(InputStream in, final LongAdder bytes) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    bytes.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    bytes.add(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @return out, adding every byte written to it to bytes.
+     */
+    public static OutputStream counting(OutputStream out, final LongAdder bytes) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream would write byte by byte.
+                out.write(b, off, len);
+                bytes.add(len);
+            }
+        };
+    }
+}
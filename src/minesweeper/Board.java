@@ -4,18 +4,49 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * A square minesweeper board that many threads can play on at once.
+ * 
+ * Every square is one byte of an array, so a 10,000 x 10,000 board takes
+ * 100MB, and a dig, flag or deflag changes it with a single compareAndSet,
+ * so players working on different squares never wait for each other.
+ * toString reads each square once, atomically; squares changed while it
+ * runs may show their old or their new state. digAndRender digs and renders
+ * in one call, and shows the dug square exactly as its compareAndSet left
+ * it, whatever other players do to it meanwhile.
+ */
 public final class Board {
     private static final int DEFAULT_BOARD_SIZE = 10;
     private static final double IS_BOMB_PROBABILITY = 0.25;
-    private static final int BOMB_FLAG = 1;
     private static final int NO_BOMB_FLAG = 0;
+    private static final State[] STATES = State.values();
+    // Largest size whose size * size squares fit in an array.
+    private static final int MAX_SIZE = 46340;
+    private static final VarHandle SQUARES = 
+            MethodHandles.arrayElementVarHandle(byte[].class);
     
-    private final Square[][] board;
+    // A square is (state ordinal << STATE_SHIFT) | BOMB_BIT if it's a bomb
+    //  | its number of bomb neighbours.
+    private static final int NEIGHBOURS_MASK = 0xf;
+    private static final int BOMB_BIT = 0x10;
+    private static final int STATE_SHIFT = 5;
+    private static final int STATE_MASK = 0x3 << STATE_SHIFT;
+    
+    // Length and width of the board.
+    private final int size;
+    // Square (i, j) is at i * size + j.
+    private final byte[] squares;
     
     // Thread safety argument:
-    //  all access to Square objects happen within Board methods,
-    //  which are all guarder by Board's lock.
+    //  size and squares are final, and squares is filled in before the
+    //  constructor returns. After that squares is only read and written
+    //  through SQUARES, atomically. Only the state bits of a square ever
+    //  change, each by one compareAndSet from the state the change is allowed
+    //  from.
     
     /**
      * Get a board instance.
@@ -39,13 +70,20 @@ public final class Board {
     }
     
     /**
-     * Make a board with dimensions size*size from a randomly
-     * generated int[][] board.
+     * Make a board with dimensions size*size with randomly placed bombs.
      * 
-     * @param size The size of the board's length and width.
+     * @param size The size of the board's length and width, <= MAX_SIZE.
      */
     private Board(int size) {
-        this(constructBoard(size));
+        if (size < 0 || size > MAX_SIZE)
+            throw new IllegalArgumentException("Board size must be 0 to " + MAX_SIZE + ".");
+        this.size = size;
+        squares = new byte[size * size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int index = 0; index < squares.length; index++)
+            if (random.nextDouble() <= IS_BOMB_PROBABILITY)
+                squares[index] = BOMB_BIT;
+        countBombNeighbours();
     }
     
     /**
@@ -53,18 +91,13 @@ public final class Board {
      * @param board
      */
     private Board(int[][] board) {
-        int size = board.length;
-        this.board = new Square[size][size];
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                int numBombNeighbours = countBombNeighbours(i, j, board);
-                if (board[i][j] == NO_BOMB_FLAG) {
-                    this.board[i][j] = new Square(false, numBombNeighbours);
-                } else {
-                    this.board[i][j] = new Square(true, numBombNeighbours);
-                }
-            }
-        }
+        size = board.length;
+        squares = new byte[size * size];
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                if (board[i][j] != NO_BOMB_FLAG)
+                    squares[i * size + j] = BOMB_BIT;
+        countBombNeighbours();
     }
                     
     /**
@@ -74,13 +107,35 @@ public final class Board {
      *                  AND state is UNTOUCHED.
      * @param i Row
      * @param j Column 
+     * @return True if this dig took effect and the square is a bomb. Of many
+     *         players digging the same bomb at once, only one gets true.
      */
-    public synchronized void dig(int i, int j) {
-        if (i < board.length && j < board.length
-                && i >= 0 && j >= 0
-                && board[i][j].getState() == State.UNTOUCHED) {
-            board[i][j] = board[i][j].changeState(State.DUG);
-        }
+    public boolean dig(int i, int j) {
+        return change(i, j, State.UNTOUCHED, State.DUG)
+                && (square(i * size + j) & BOMB_BIT) != 0;
+    }
+    
+    /**
+     * Dig a square on the board and render the board as this dig left it.
+     * Only takes effect as dig does.
+     * @param i Row
+     * @param j Column
+     * @return null if this dig took effect and the square is a bomb, as dig
+     *         returns true; otherwise the board as toString renders it,
+     *         except that square (i, j) is shown in the state the dig found
+     *         or made, not read again.
+     */
+    public String digAndRender(int i, int j) {
+        if (i >= size || j >= size || i < 0 || j < 0)
+            return toString();
+        int index = i * size + j;
+        int fixed = square(index) & ~STATE_MASK;
+        byte untouched = (byte) (fixed | State.UNTOUCHED.ordinal() << STATE_SHIFT);
+        byte dug = (byte) (fixed | State.DUG.ordinal() << STATE_SHIFT);
+        byte witness = (byte) SQUARES.compareAndExchange(squares, index, untouched, dug);
+        if (witness == untouched && (fixed & BOMB_BIT) != 0)
+            return null;
+        return render(index, witness == untouched ? dug : witness);
     }
     
     /**
@@ -91,12 +146,8 @@ public final class Board {
      * @param i Row
      * @param j Column
      */
-    public synchronized void flag(int i, int j) {
-        if (i < board.length && j < board.length
-                && i >= 0 && j >= 0
-                && board[i][j].getState() == State.UNTOUCHED) {
-            board[i][j] = board[i][j].changeState(State.FLAGGED);
-        }
+    public void flag(int i, int j) {
+        change(i, j, State.UNTOUCHED, State.FLAGGED);
     }
     
     /**
@@ -108,111 +159,106 @@ public final class Board {
      * @param i Row
      * @param j Column
      */
-    public synchronized void deflag(int i, int j) {
-        if (i < board.length && j < board.length
-                && i >= 0 && j >= 0
-                && board[i][j].getState() == State.FLAGGED) {
-            board[i][j] = board[i][j].changeState(State.UNTOUCHED);
-        }
+    public void deflag(int i, int j) {
+        change(i, j, State.FLAGGED, State.UNTOUCHED);
+    }
+    
+    /**
+     * Change the state of a square from one state to another.
+     * Only takes effect if 0 <= i < board size
+     *                  AND 0 <= j < board size
+     *                  AND the square's state is from.
+     * 
+     * @param i Row
+     * @param j Column
+     * @return True if the state was changed.
+     */
+    private boolean change(int i, int j, State from, State to) {
+        if (i >= size || j >= size || i < 0 || j < 0)
+            return false;
+        int index = i * size + j;
+        // Everything but the state is fixed, so one compareAndSet is enough.
+        int fixed = square(index) & ~STATE_MASK;
+        return SQUARES.compareAndSet(squares, index, 
+                (byte) (fixed | from.ordinal() << STATE_SHIFT),
+                (byte) (fixed | to.ordinal() << STATE_SHIFT));
+    }
+    
+    /**
+     * @return The square at index of squares, read atomically.
+     */
+    private int square(int index) {
+        return (byte) SQUARES.getVolatile(squares, index);
     }
     
     /**
      * Get square at position [i][j] on the board.
      * @param i Row
      * @param j Column
-     * @return
+     * @return A copy of the square; later changes to the board don't show in it.
      */
-    public synchronized Square getSquare(int i, int j) {
-        return board[i][j];
+    public Square getSquare(int i, int j) {
+        if (i >= size || j >= size || i < 0 || j < 0)
+            throw new IndexOutOfBoundsException("(" + i + ", " + j + ")");
+        int square = square(i * size + j);
+        return new Square(STATES[(square & STATE_MASK) >>> STATE_SHIFT],
+                (square & BOMB_BIT) != 0, square & NEIGHBOURS_MASK);
     }
     
     @Override
-    public synchronized String toString() {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < board.length; i++) {
-            for (int j = 0; j < board.length; j++) {
-                State state = board[i][j].getState();
-                switch(state) {
+    public String toString() {
+        return render(-1, 0);
+    }
+    
+    /**
+     * Render the board, one line per row.
+     * @param index Index of a square already read, or -1 for none.
+     * @param known The square at index, shown instead of reading it again.
+     */
+    private String render(int index, int known) {
+        StringBuilder sb = new StringBuilder(size * (size + 1));
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int square = i * size + j == index ? known : square(i * size + j);
+                switch(STATES[(square & STATE_MASK) >>> STATE_SHIFT]) {
                 case DUG:
-                    if (board[i][j].isBomb())
-                        sb.append("*");
-                    else if (board[i][j].getNumBombNeighbours() == 0)
-                        sb.append(" ");
+                    if ((square & BOMB_BIT) != 0)
+                        sb.append('*');
+                    else if ((square & NEIGHBOURS_MASK) == 0)
+                        sb.append(' ');
                     else
-                        sb.append(board[i][j].getNumBombNeighbours());
+                        sb.append((char) ('0' + (square & NEIGHBOURS_MASK)));
                     break;
                 case UNTOUCHED:
-                    sb.append("-");
+                    sb.append('-');
                     break;
                 case FLAGGED:
-                    sb.append("F");
+                    sb.append('F');
                     break;
                 }
             }
-            sb.append("\n");
+            sb.append('\n');
         }
         return sb.toString();
     }
         
     /**
-     * Count the number of bomb neighbours around a square in row i, column j.
-     * 
-     * @param i Row
-     * @param j Column
-     * @param initBoard int[][] representation of minesweeper board.
-     * @return The number of neighbours that are bombs.
-     */
-    private int countBombNeighbours(int i, int j, int[][] initBoard) {
-        int numBombNeighbours = 0;
-        int up = i - 1;
-        int down = i + 1;
-        int left = j - 1;
-        int right = j + 1;
-        int max = initBoard.length;
-        
-        // up, up left, up right
-        if (up >= 0) {
-            if (initBoard[up][j] == BOMB_FLAG)
-                ++numBombNeighbours;
-            if (left >= 0 && initBoard[up][left] == BOMB_FLAG)
-                ++numBombNeighbours;
-            if (right < max && initBoard[up][right] == BOMB_FLAG)
-                ++numBombNeighbours;
-        }
-        // left and right.
-        if (left >= 0 && initBoard[i][left] == BOMB_FLAG)
-            ++numBombNeighbours;
-        if (right < max && initBoard[i][right] == BOMB_FLAG)
-            ++numBombNeighbours;
-        // down, down left, down right
-        if (down < max) {
-            if (initBoard[down][j] == BOMB_FLAG)
-                ++numBombNeighbours;
-            if (left >= 0 && initBoard[down][left] == BOMB_FLAG)
-                ++numBombNeighbours;
-            if (right < max && initBoard[down][right] == BOMB_FLAG)
-                ++numBombNeighbours;
-        }
-        return numBombNeighbours;
-    }    
-    
-    /**
-     * Initialise an N x N minesweeper board.
-     * 
-     * @param size The length/width of the board.
-     * @return int[][] representation of a minesweeper board.
+     * Add up the bomb neighbours of every square, once the bombs are in
+     * squares. Only called from constructors.
      */
-    private static int[][] constructBoard(int size) {
-        int[][] board = new int[size][size];
+    private void countBombNeighbours() {
         for (int i = 0; i < size; i++) {
             for (int j = 0; j < size; j++) {
-                if (Math.random() <= IS_BOMB_PROBABILITY)
-                    board[i][j] = BOMB_FLAG;
-                else
-                    board[i][j] = NO_BOMB_FLAG;
+                if ((squares[i * size + j] & BOMB_BIT) == 0)
+                    continue;
+                // Each neighbour of a bomb has one more bomb neighbour;
+                // at most 8, so the count never reaches BOMB_BIT.
+                for (int up = Math.max(i - 1, 0); up <= Math.min(i + 1, size - 1); up++)
+                    for (int left = Math.max(j - 1, 0); left <= Math.min(j + 1, size - 1); left++)
+                        if (up != i || left != j)
+                            ++squares[up * size + left];
             }
         }
-        return board;
     }
     
     /**
@@ -21,13 +21,13 @@ public final class Square {
     }    
     
     /**
-     * Private constructor for changing Square state.
+     * Constructor for copies of the squares of a Board.
      * 
-     * @param state The new square's state.
+     * @param state The square's state.
      * @param isBomb is this square a bomb?
      * @param numBombNeighbours Number of neigbour squares that are bombs.
      */
-    private Square(State state, boolean isBomb, int numBombNeighbours) {
+    Square(State state, boolean isBomb, int numBombNeighbours) {
         this.state = state;
         this.isBomb = isBomb;
         this.numBombNeighbours = numBombNeighbours;
@@ -48,13 +48,4 @@ public final class Square {
     public int getNumBombNeighbours() {
         return numBombNeighbours;
     }
-    
-    /**
-     * "Change" Square state by returning a new Square with queried state.
-     * @param state The new Square's state.
-     * @return The new Square object with changed state.
-     */
-    Square changeState(State state) {
-        return new Square(state, isBomb, numBombNeighbours);
-    }
 }
\ No newline at end of file
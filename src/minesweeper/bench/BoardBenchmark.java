@@ -0,0 +1,86 @@
+package minesweeper.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import minesweeper.Board;
+
+/**
+ * Measures how long a random Board takes to build, how much heap it keeps,
+ * and how many digs per second one thread and all cores manage on it.
+ *
+ * Retained size is the growth of the used heap, after forced garbage
+ * collection, while the board is kept reachable. Digs go to random squares,
+ * so most of them on a large board miss the cache.
+ *
+ * Usage: java minesweeper.bench.BoardBenchmark [size ...]
+ * Defaults to sizes 1000, 4000 and 10000.
+ */
+public class BoardBenchmark {
+    private static final int DIGS = 5_000_000;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = { 1000, 4000, 10000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (int size : sizes) {
+                long before = usedHeap();
+                long started = System.nanoTime();
+                Board board = Board.getBoard("false", "-s", Integer.toString(size));
+                long construction = System.nanoTime() - started;
+                long retained = usedHeap() - before;
+
+                double single = digsPerSecond(board, size, 1);
+                double all = digsPerSecond(board, size, CORES);
+                // Don't count this board in the next one's size.
+                board = null;
+
+                if (round == 0)
+                    continue; // warm-up
+                System.out.println(String.format(
+                        "%5d x %-5d: built in %7.1fms, %8.1fMB (%.2f bytes/square), "
+                        + "%6.1fM digs/s on 1 thread, %6.1fM digs/s on %d",
+                        size, size, construction / 1e6, retained / 1e6,
+                        (double) retained / ((long) size * size),
+                        single / 1e6, all / 1e6, CORES));
+            }
+        }
+    }
+
+    /**
+     * @return Digs per second, over all threads, of threads each digging
+     *         DIGS random squares of board at once.
+     */
+    private static double digsPerSecond(final Board board, final int size, int threads)
+            throws InterruptedException {
+        Thread[] diggers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            diggers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int d = 0; d < DIGS; d++)
+                    board.dig(random.nextInt(size), random.nextInt(size));
+            });
+        }
+        long started = System.nanoTime();
+        for (Thread digger : diggers)
+            digger.start();
+        for (Thread digger : diggers)
+            digger.join();
+        return (double) threads * DIGS / ((System.nanoTime() - started) / 1e9);
+    }
+
+    /**
+     * @return Bytes of heap in use after garbage collection.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
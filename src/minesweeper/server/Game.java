@@ -0,0 +1,55 @@
+package minesweeper.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minesweeper.Board;
+
+/**
+ * A game of Minesweeper: a board, the id players join it by and the number
+ * of players connected to it.
+ */
+final class Game {
+    private final int id;
+    private final Board board;
+    private final AtomicInteger players = new AtomicInteger();
+
+    // Thread safety argument:
+    //  id and board are final, board is threadsafe,
+    //  players is only changed atomically.
+
+    /**
+     * Make a game with no players.
+     * @param id The id of the game.
+     * @param board The board the game is played on.
+     */
+    Game(int id, Board board) {
+        this.id = id;
+        this.board = board;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Board getBoard() {
+        return board;
+    }
+
+    /**
+     * @return The number of players, including the one joining.
+     */
+    int join() {
+        return players.incrementAndGet();
+    }
+
+    /**
+     * @return The number of players left.
+     */
+    int leave() {
+        return players.decrementAndGet();
+    }
+
+    int players() {
+        return players.get();
+    }
+}
@@ -6,29 +6,48 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 import minesweeper.Board;
 
 /**
  * 
  * User-to-Server Message Protocol:
  * 
- * MESSAGE := ( LOOK | DIG | FLAG | DEFLAG | HELP_REQ | BYE ) NEWLINE
+ * MESSAGE := ( LOOK | DIG | FLAG | DEFLAG | NEW | JOIN | HELP_REQ | STATS_REQ | BYE )
+ *            NEWLINE
  * LOOK := "look"
  * DIG := "dig" SPACE X SPACE Y
  * FLAG := "flag" SPACE X SPACE Y
  * DEFLAG := "deflag" SPACE X SPACE Y
+ * NEW := "new" ( SPACE SIZE )?
+ * JOIN := "join" SPACE ID
  * HELP_REQ := "help"
+ * STATS_REQ := "stats"
  * BYE := "bye"
  * NEWLINE := "\n"
  * X := INT
  * Y := INT
+ * SIZE := INT
+ * ID := INT
  * SPACE := " "
  * INT := [0-9]+
  * 
  * Server-to-User Message Protocol:
  * 
- * MESSAGE := BOARD | BOOM | HELP | HELLO
+ * MESSAGE := BOARD | BOOM | GAME | NO_GAME | HELP | STATS | HELLO
  * BOARD := LINE+
  * LINE := (SQUARE SPACE)* SQUARE NEWLINE
  * SQUARE := "-" | "F" | COUNT | SPACE
@@ -36,41 +55,142 @@ import minesweeper.Board;
  * NEWLINE := "\n"
  * COUNT := [1-8]
  * BOOM := "BOOM!" NEWLINE
+ * GAME := "game " ID NEWLINE
+ * NO_GAME := "no such game" NEWLINE
  * HELP := [^NewLine]+ NEWLINE
+ * STATS := "stats " [^NewLine]* NEWLINE
  * HELLO := "Welcome to Minesweeper. " N " people are playing including you.
  *          Type 'help' for help." NEWLINE
  * N := INT
+ * ID := INT
  * INT := [0-9]+
  * 
+ * The server hosts many games at once, each with its own board. A player
+ * starts in game 0, whose board is given on the command line. NEW makes a
+ * game with a random SIZE x SIZE board (10 x 10 by default, at most
+ * MAX_SIZE) and moves the player to it; JOIN moves the player to another
+ * player's game. Both answer with the id of the player's game, and N in
+ * HELLO counts the players of game 0. A game other than game 0 is dropped
+ * when its last player leaves. Players of different games never wait for
+ * each other's board, and players of one game only wait for each other
+ * while changing the same square.
+ * 
+ * DIG answers BOOM only if it uncovered a bomb; digging a flagged or already
+ * dug square shows the board.
+ * 
+ * Clients are served by a bounded pool of worker threads, one connection per
+ * worker. When every worker is busy the server stops accepting new
+ * connections until one finishes. A player who sends nothing for longer than
+ * the idle timeout is disconnected, so idle connections can't keep the other
+ * players out for ever.
+ * 
+ * STATS is one line of the server's Metrics: connections, requests by command,
+ * bytes in and out, and request latency. The server also prints it to
+ * standard error once a minute.
  */
 
 public class MinesweeperServer {
     // Default port
 	private final static int PORT = 4444;
+	private final static int DEFAULT_MAX_CONNECTIONS = 1024;
+	private final static int DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+	private final static int DEFAULT_SIZE = 10;
+	// Largest board NEW makes, so one request can't take all the memory.
+	private final static int MAX_SIZE = 100;
+	private final static int DEFAULT_GAME = 0;
 	
 	// Server to user Strings
 	private static final String BYE = "And a very good day to you too, sir!";
 	private static final String BOOM = "BOOM";
+	private static final String GAME = "game ";
+	private static final String NO_GAME = "no such game";
+	private static final String STATS = "stats";
+	private static final long METRICS_INTERVAL = 60;
 	private static final String HELP = "Commands:\n"
 	        + "look -> look at current board\n"
 	        + "bye -> quit game\n"
 	        + "dig x y -> dig square at column x, row y\n"
 	        + "flag x y -> flag square at column x, row y\n"
-	        + "deflag x y -> remove flag from square at column x, row y";
+	        + "deflag x y -> remove flag from square at column x, row y\n"
+	        + "new [size] -> start a new game on a size x size board\n"
+	        + "join id -> join the game with that id\n"
+	        + "stats -> show server statistics";
 	
-	// Board instance used by MinesweeperServer
-	private static Board board;
+	// Rep invariant: serverSocket, workers, permits, games != null
+	//                games contains DEFAULT_GAME
+	//                0 <= idleTimeout
+	private final ServerSocket serverSocket;
+	private final ExecutorService workers;
+	// One permit per connection that may be handled at once.
+	private final Semaphore permits;
+	// Milliseconds a player may send nothing before being disconnected;
+	// 0 = forever.
+	private final int idleTimeout;
 	// Don't terminate user connection on BOOM message in DEBUG mode.
-	private static boolean debug;
+	private final boolean debug;
+	// Games being played, by id. A game is joined and left inside the map's
+	// compute methods, so a game is never dropped while someone joins it.
+	private final Map<Integer, Game> games = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger(DEFAULT_GAME + 1);
 	
-	private ServerSocket serverSocket;
+	private final Metrics metrics = new Metrics("MinesweeperServer");
+	private final LongAdder accepted = metrics.counter("connections.accepted");
+	private final LongAdder timedOut = metrics.counter("connections.timedout");
+	private final AtomicInteger open = new AtomicInteger();
+	private final LongAdder bytesIn = metrics.counter("bytes.in");
+	private final LongAdder bytesOut = metrics.counter("bytes.out");
+	private final LongAdder errors = metrics.counter("errors");
+	private final LongAdder invalids = metrics.counter("requests.invalid");
+	private final LongAdder booms = metrics.counter("booms");
+	// Looked up once: these are updated on every request.
+	private final LongAdder looks = metrics.counter("requests.look");
+	private final LongAdder digs = metrics.counter("requests.dig");
+	private final LongAdder flags = metrics.counter("requests.flag");
+	private final LongAdder deflags = metrics.counter("requests.deflag");
+	private final LongAdder news = metrics.counter("requests.new");
+	private final LongAdder joins = metrics.counter("requests.join");
+	private final LongAdder helps = metrics.counter("requests.help");
+	private final LongAdder stats = metrics.counter("requests.stats");
+	private final LongAdder byes = metrics.counter("requests.bye");
+	private final LatencyHistogram latency = metrics.histogram("latency.request");
 	
     /**
-     * Make a MinesweeperServer that listens for connections on port.
+     * Make a MinesweeperServer that listens for connections on port, with a
+     * random board for game 0.
      * @param port port number, requires 0 <= port <= 65535.
      */
     public MinesweeperServer(int port) throws IOException {
+        this(port, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT, false, Board.getBoard("false"));
+    }
+    
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * @param port port number, requires 0 <= port <= 65535.
+     * @param maxConnections Maximum number of clients handled at once, > 0.
+     * @param idleTimeout Milliseconds a player may send nothing before being
+     *        disconnected, >= 0. 0 means no timeout.
+     * @param debug Don't disconnect a player who digs a bomb.
+     * @param board The board of game 0.
+     */
+    public MinesweeperServer(int port, int maxConnections, int idleTimeout, boolean debug,
+            Board board) throws IOException {
+        if (maxConnections <= 0 || idleTimeout < 0)
+            throw new IllegalArgumentException();
         serverSocket = new ServerSocket(port);
+        workers = Executors.newFixedThreadPool(maxConnections);
+        permits = new Semaphore(maxConnections);
+        this.idleTimeout = idleTimeout;
+        this.debug = debug;
+        games.put(DEFAULT_GAME, new Game(DEFAULT_GAME, board));
+        metrics.gauge("connections.open", open::get);
+        metrics.gauge("games", games::size);
+    }
+    
+    /**
+     * @return The metrics of this server.
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
     
     /**
@@ -81,25 +201,74 @@ public class MinesweeperServer {
      */
     public void serve() throws IOException {
         while (true) {
+            // Back-pressure: don't accept a client we have no worker for.
+            permits.acquireUninterruptibly();
             // block until a client connects
-            final Socket socket = serverSocket.accept();
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                permits.release();
+                throw e;
+            }
+            accepted.increment();
             
             // handle the client
-            Thread handler = new Thread(() -> {
+            workers.execute(() -> {
+              open.incrementAndGet();
               try {
                   try {
+                      socket.setSoTimeout(idleTimeout);
                       handleConnection(socket);
                   } finally {
                       socket.close();
                   }
               } catch (IOException ioe) {
+                  errors.increment();
                   ioe.printStackTrace();
+              } finally {
+                  open.decrementAndGet();
+                  permits.release();
               }
             });
-            handler.start();
         }
     }
     
+    /**
+     * Add a player to a game.
+     * @param id The id of the game.
+     * @return The game, or null if there is no game with that id.
+     */
+    private Game join(int id) {
+        return games.computeIfPresent(id, (k, game) -> {
+            game.join();
+            return game;
+        });
+    }
+    
+    /**
+     * Remove a player from a game, dropping the game if it was the last
+     * player, unless it is game 0.
+     * @param game A game the player has joined.
+     */
+    private void leave(Game game) {
+        games.computeIfPresent(game.getId(), (k, g) -> 
+            g.leave() == 0 && k != DEFAULT_GAME ? null : g);
+    }
+    
+    /**
+     * Make a game with a random board and add a player to it.
+     * @param size The length/width of the board.
+     * @return The new game.
+     */
+    private Game newGame(int size) {
+        Game game = new Game(nextId.getAndIncrement(),
+                Board.getBoard("false", "-s", Integer.toString(size)));
+        game.join();
+        games.put(game.getId(), game);
+        return game;
+    }
+    
     /**
      * Handle a single client connection.  Returns when client disconnects.
      * @param socket  socket where client is connected
@@ -109,67 +278,124 @@ public class MinesweeperServer {
         try (
             BufferedReader in = new BufferedReader(
                     new InputStreamReader(
-                            socket.getInputStream()));
+                            Metrics.counting(socket.getInputStream(), bytesIn)));
             PrintWriter out = new PrintWriter(
-                    socket.getOutputStream(), true);
+                    Metrics.counting(socket.getOutputStream(), bytesOut), true);
         ) {
-            int numActivePlayers = Thread.activeCount() - 1;
-            out.println("Welcome to Minesweeper. "+ numActivePlayers 
-                    +  " people are playing including you. Type 'help' for help.");
-            
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = handleRequest(line);
-                if (output != null) {
-                    out.println(output);
-                    // Terminate user connection.
-                    if (output.equals(BYE) || 
-                        (output.equals(BOOM) && !debug))
-                        return;
+            // The game this player is in; one element so requests can move
+            // the player to another game.
+            Game[] game = { join(DEFAULT_GAME) };
+            try {
+                int numActivePlayers = game[0].players();
+                out.println("Welcome to Minesweeper. "+ numActivePlayers 
+                        +  " people are playing including you. Type 'help' for help.");
+                
+                for (String line = readLine(in); line != null; line = readLine(in)) {
+                    long started = System.nanoTime();
+                    String output = handleRequest(line, game);
+                    if (output != null) {
+                        out.println(output);
+                        latency.recordSince(started);
+                        // Terminate user connection.
+                        if (output.equals(BYE) || 
+                            (output.equals(BOOM) && !debug))
+                            return;
+                    }
                 }
+            } finally {
+                leave(game[0]);
             }
         }
     }
 
+    /**
+     * @return The next line from the player, or null if the player
+     *         disconnected or stayed idle for longer than the idle timeout.
+     * @throws IOException
+     */
+    private String readLine(BufferedReader in) throws IOException {
+        try {
+            return in.readLine();
+        } catch (SocketTimeoutException e) {
+            timedOut.increment();
+            return null;
+        }
+    }
+
 	/**
 	 * handler for client input
 	 * 
 	 * make requested mutations on game state if applicable, then return appropriate message to the user
 	 * 
 	 * @param input
+	 * @param game The player's game, changed by new and join.
 	 * @return
 	 */
-	private static String handleRequest(String input) {
+	private String handleRequest(String input, Game[] game) {
 
-		String regex = "(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|(deflag \\d+ \\d+)|(help)|(bye)";
+		String regex = "(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|(deflag \\d+ \\d+)"
+		        + "|(new( \\d{1,9})?)|(join \\d{1,9})|(help)|(stats)|(bye)";
 		if(!input.matches(regex)) {
 			//invalid input
+			invalids.increment();
 			return null;
 		}
 		String[] tokens = input.split(" ");
 		// x y arguments for dig/flag/deflag
 		int x = 0, y = 0;
-		if (tokens.length > 1) {
+		if (tokens.length > 2) {
 		    x = Integer.parseInt(tokens[1]);
 		    y = Integer.parseInt(tokens[2]);
 		}
+		Board board = game[0].getBoard();
 
 		switch (tokens[0]) {
+		case "new":
+		    news.increment();
+		    int size = tokens.length > 1 ? Integer.parseInt(tokens[1]) : DEFAULT_SIZE;
+		    if (size < 1 || size > MAX_SIZE) {
+		        invalids.increment();
+		        return null;
+		    }
+		    Game created = newGame(size);
+		    leave(game[0]);
+		    game[0] = created;
+		    return GAME + created.getId();
+		case "join":
+		    joins.increment();
+		    Game joined = join(Integer.parseInt(tokens[1]));
+		    if (joined == null)
+		        return NO_GAME;
+		    leave(game[0]);
+		    game[0] = joined;
+		    return GAME + joined.getId();
 		case "look":
+		    looks.increment();
 		    return board.toString();
 		case "help":
+		    helps.increment();
 		    return HELP;
+		case "stats":
+		    stats.increment();
+		    return STATS + " " + metrics;
 		case "bye":
+		    byes.increment();
 		    return BYE;
 		case "dig":
-		    board.dig(y, x);
-		    if (board.getSquare(y, x).isBomb())
+		    digs.increment();
+		    // Dug and rendered in one call, so the reply shows this dig.
+		    String dug = board.digAndRender(y, x);
+		    if (dug == null) {
+		        booms.increment();
 		        return BOOM;
-		    else
-		        return board.toString();
+		    }
+		    return dug;
 		case "flag":
+		    flags.increment();
 		    board.flag(y, x);
 		    return board.toString();
 		case "deflag":
+		    deflags.increment();
 		    board.deflag(y, x);
 		    return board.toString();
 		default:
@@ -183,7 +409,7 @@ public class MinesweeperServer {
      * 
      * Command line arguments protocol:
      * 
-     * ARGS := DEBUG SPACE ( SIZE | FILE)?
+     * ARGS := DEBUG ( SPACE ( SIZE | FILE ) )? ( SPACE CONNECTIONS )? ( SPACE TIMEOUT )?
      * DEBUG := "true" | "false"
      * SIZE := SIZE_FLAG SPACE X
      * SIZE_FLAG := "-s"
@@ -191,14 +417,21 @@ public class MinesweeperServer {
      * FILE := FILE_FLAG SPACE PATH
      * FILE_FLAG := "-f"
      * PATH := .+
+     * CONNECTIONS := CONNECTIONS_FLAG SPACE INT
+     * CONNECTIONS_FLAG := "-c"
+     * TIMEOUT := TIMEOUT_FLAG SPACE INT
+     * TIMEOUT_FLAG := "-t"
      * INT := [0-9]+
      * SPACE := " "
+     * 
+     * CONNECTIONS is the number of players served at once, 1024 by default.
+     * TIMEOUT is the milliseconds a player may stay idle before being
+     * disconnected, 10 minutes by default; 0 means never.
      */
     public static void main(String[] args) {
         try {
-            MinesweeperServer server = new MinesweeperServer(PORT);
-            debug = args[0].equals("true");
-            board = Board.getBoard(args);
+            MinesweeperServer server = fromArgs(args, PORT);
+            server.getMetrics().logEvery(METRICS_INTERVAL, TimeUnit.SECONDS, System.err);
             server.serve();
         } catch (IOException e) {
             e.printStackTrace();
@@ -209,17 +442,36 @@ public class MinesweeperServer {
      * Make a new MinesweeperServer that listens on port.
      * Used for testing multiple servers. 
      * 
-     * @param args
+     * @param args Command line arguments, as for main.
      * @param port The port MinesweeperServer listens on.
      */
     public static void test(String[] args, int port) {
         try {
-            MinesweeperServer server = new MinesweeperServer(port);
-            debug = args[0].equals("true");
-            board = Board.getBoard(args);
-            server.serve();
+            fromArgs(args, port).serve();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * @param args Command line arguments, as for main.
+     * @param port The port the server listens on.
+     * @return A server configured by args.
+     */
+    private static MinesweeperServer fromArgs(String[] args, int port) throws IOException {
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        // The arguments left for Board.getBoard.
+        List<String> boardArgs = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-c") && i + 1 < args.length)
+                maxConnections = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-t") && i + 1 < args.length)
+                idleTimeout = Integer.parseInt(args[++i]);
+            else
+                boardArgs.add(args[i]);
+        }
+        return new MinesweeperServer(port, maxConnections, idleTimeout,
+                args[0].equals("true"), Board.getBoard(boardArgs.toArray(new String[0])));
+    }
+}
@@ -2,6 +2,8 @@ package minesweeper.tests;
 
 import static org.junit.Assert.*;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 import minesweeper.Board;
@@ -161,9 +163,111 @@ public class BoardTest {
         Board board = Board.getBoard(args);
     }
     
+    @Test
+    public void digAndRender() {
+        Board board = Board.getBoard("true", "-f", "src/minesweeper/boards/board1.txt");
+        // (0, 0) has one bomb neighbour, (0, 2) is a bomb.
+        String rendered = board.digAndRender(0, 0);
+        assertEquals(board.toString(), rendered);
+        assertEquals('1', rendered.charAt(0));
+        
+        assertNull(board.digAndRender(0, 2));
+        // Digging it again shows it without another BOOM.
+        assertEquals('*', board.digAndRender(0, 2).charAt(2));
+        
+        board.flag(0, 1);
+        assertEquals('F', board.digAndRender(0, 1).charAt(1));
+        assertEquals(State.FLAGGED, board.getSquare(0, 1).getState());
+        assertEquals(board.toString(), board.digAndRender(7, 0));
+    }
+    
+    @Test
+    public void concurrentDigAndRenderShowsEachDig() throws InterruptedException {
+        final int size = 50;
+        final Board board = Board.getBoard("false", "-s", String.valueOf(size));
+        final AtomicInteger booms = new AtomicInteger();
+        final AtomicInteger undug = new AtomicInteger();
+        Thread[] players = new Thread[4];
+        for (int p = 0; p < players.length; p++) {
+            players[p] = new Thread(() -> {
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        String rendered = board.digAndRender(i, j);
+                        if (rendered == null)
+                            booms.incrementAndGet();
+                        else if (rendered.charAt(i * (size + 1) + j) == '-')
+                            undug.incrementAndGet();
+                    }
+                }
+            });
+            players[p].start();
+        }
+        for (Thread player : players)
+            player.join();
+        
+        int bombs = 0;
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                if (board.getSquare(i, j).isBomb())
+                    ++bombs;
+        assertEquals(bombs, booms.get());
+        assertEquals(0, undug.get());
+    }
+    
     private void assertExpectedBoardState(Board board, State expectedState) {
         for (int i = 0; i < SIZE; i++)
             for (int j = 0; j < SIZE; j++)
                 assertEquals(expectedState, board.getSquare(i, j).getState());
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void neighbourCounts() {
+        final int size = 50;
+        Board board = Board.getBoard("false", "-s", String.valueOf(size));
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int bombs = 0;
+                for (int up = i - 1; up <= i + 1; up++)
+                    for (int left = j - 1; left <= j + 1; left++)
+                        if ((up != i || left != j) && up >= 0 && left >= 0
+                                && up < size && left < size
+                                && board.getSquare(up, left).isBomb())
+                            ++bombs;
+                assertEquals(bombs, board.getSquare(i, j).getNumBombNeighbours());
+            }
+        }
+    }
+    
+    @Test
+    public void concurrentDigsUncoverEachBombOnce() throws InterruptedException {
+        final int size = 100;
+        final Board board = Board.getBoard("false", "-s", String.valueOf(size));
+        final AtomicInteger booms = new AtomicInteger();
+        Thread[] players = new Thread[4];
+        for (int p = 0; p < players.length; p++) {
+            players[p] = new Thread(() -> {
+                // Every player digs every square, flagging row 0 first.
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        if (i == 0)
+                            board.flag(i, j);
+                        if (board.dig(i, j))
+                            booms.incrementAndGet();
+                    }
+                }
+            });
+            players[p].start();
+        }
+        for (Thread player : players)
+            player.join();
+        
+        int bombs = 0;
+        for (int i = 1; i < size; i++)
+            for (int j = 0; j < size; j++)
+                if (board.getSquare(i, j).isBomb())
+                    ++bombs;
+        assertEquals(bombs, booms.get());
+        for (int j = 0; j < size; j++)
+            assertEquals(State.FLAGGED, board.getSquare(0, j).getState());
+    }
+}
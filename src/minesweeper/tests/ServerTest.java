@@ -6,6 +6,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
@@ -24,21 +25,37 @@ public class ServerTest {
             };
     
     private static Thread startServer(int port) {
+        return startServer(port, args);
+    }
+    
+    private static Thread startServer(int port, String[] args) {
         Thread serverThread = new Thread(() -> MinesweeperServer.test(args, port));
         serverThread.start();
         return serverThread;
     }
     
-    private static Socket connectToServer(Thread server) 
+    private static Socket connectToServer(Thread server, int port) 
             throws UnknownHostException, IOException {
-        Socket socket = new Socket(HOST, PORT);
-        return socket;
+        // Each test has its own server, which may not be listening yet.
+        for (int tries = 0; ; tries++) {
+            try {
+                return new Socket(HOST, port);
+            } catch (ConnectException e) {
+                if (tries == 100)
+                    throw e;
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ie) {
+                    throw e;
+                }
+            }
+        }
     }
     
     @Test(timeout=TIMEOUT)
     public void testBoardOne() throws UnknownHostException, IOException {
         Thread serverThread = startServer(PORT);
-        Socket socket = connectToServer(serverThread);
+        Socket socket = connectToServer(serverThread, PORT);
         
         BufferedReader in = new BufferedReader(
                 new InputStreamReader(
@@ -101,7 +118,7 @@ public class ServerTest {
     @Test(timeout=TIMEOUT)
     public void testBoardFlag() throws UnknownHostException, IOException {
         Thread serverThread = startServer(PORT+1);
-        Socket socket = connectToServer(serverThread);
+        Socket socket = connectToServer(serverThread, PORT+1);
         
         BufferedReader in = new BufferedReader(
                 new InputStreamReader(
@@ -141,14 +158,14 @@ public class ServerTest {
             UnknownHostException, IOException, InterruptedException {
         Thread serverThread = startServer(PORT+2);
         
-        Socket firstSocket = connectToServer(serverThread);    
+        Socket firstSocket = connectToServer(serverThread, PORT+2);    
         BufferedReader inFirst = new BufferedReader(
                 new InputStreamReader(
                     firstSocket.getInputStream()));
         PrintWriter outFirst = new PrintWriter(
                 firstSocket.getOutputStream(), true);
         
-        Socket secondSocket = connectToServer(serverThread);    
+        Socket secondSocket = connectToServer(serverThread, PORT+2);    
         BufferedReader inSecond = new BufferedReader(
                 new InputStreamReader(
                     secondSocket.getInputStream()));
@@ -161,7 +178,9 @@ public class ServerTest {
         
         // Flag by player one, out by player two.
         outFirst.println("flag 0 0");
-        Thread.sleep(1); // 1 ms for server to change board for player 2.
+        // The server answers once it has changed the board for player 2.
+        while (!inFirst.ready())
+            Thread.sleep(1);
         outSecond.println("look");
         assertEquals("F------", inSecond.readLine());
         assertEquals("-------", inSecond.readLine());
@@ -197,4 +216,102 @@ public class ServerTest {
         assertEquals("-------", inSecond.readLine());
         inSecond.readLine(); // Skip the last \n        
     }
-}
\ No newline at end of file
+    
+    @Test(timeout=TIMEOUT)
+    public void testSeparateGames() throws 
+            UnknownHostException, IOException {
+        Thread serverThread = startServer(PORT+3);
+        
+        Socket firstSocket = connectToServer(serverThread, PORT+3);    
+        BufferedReader inFirst = new BufferedReader(
+                new InputStreamReader(
+                    firstSocket.getInputStream()));
+        PrintWriter outFirst = new PrintWriter(
+                firstSocket.getOutputStream(), true);
+        
+        Socket secondSocket = connectToServer(serverThread, PORT+3);    
+        BufferedReader inSecond = new BufferedReader(
+                new InputStreamReader(
+                    secondSocket.getInputStream()));
+        PrintWriter outSecond = new PrintWriter(
+                secondSocket.getOutputStream(), true);
+        
+        // Skip greeting message.
+        inFirst.readLine();
+        inSecond.readLine();
+        
+        // First player starts a game of their own ...
+        outFirst.println("new 3");
+        String game = inFirst.readLine();
+        assertTrue(game.matches("game [1-9][0-9]*"));
+        outFirst.println("flag 1 1");
+        assertEquals("---", inFirst.readLine());
+        assertEquals("-F-", inFirst.readLine());
+        assertEquals("---", inFirst.readLine());
+        inFirst.readLine(); // Skip the last \n
+        
+        // ... which doesn't change game 0 ...
+        outSecond.println("look");
+        assertEquals("-------", inSecond.readLine());
+        assertEquals("-------", inSecond.readLine());
+        assertEquals("-------", inSecond.readLine());
+        assertEquals("-------", inSecond.readLine());
+        assertEquals("-------", inSecond.readLine());
+        assertEquals("-------", inSecond.readLine());
+        assertEquals("-------", inSecond.readLine());
+        inSecond.readLine(); // Skip the last \n
+        
+        // ... until the second player joins it.
+        outSecond.println("join 12345");
+        assertEquals("no such game", inSecond.readLine());
+        outSecond.println("join " + game.substring("game ".length()));
+        assertEquals(game, inSecond.readLine());
+        outSecond.println("look");
+        assertEquals("---", inSecond.readLine());
+        assertEquals("-F-", inSecond.readLine());
+        assertEquals("---", inSecond.readLine());
+        inSecond.readLine(); // Skip the last \n
+        
+        firstSocket.close();
+        secondSocket.close();
+    }
+    
+    @Test(timeout=TIMEOUT)
+    public void testIdlePlayersTimeOut() throws 
+            UnknownHostException, IOException {
+        // Room for two players, who are disconnected after 500ms idle.
+        String[] limited = { "true", "-f", "src/minesweeper/boards/board1.txt",
+                "-c", "2", "-t", "500" };
+        Thread serverThread = startServer(PORT+4, limited);
+        
+        Socket firstSocket = connectToServer(serverThread, PORT+4);
+        BufferedReader inFirst = new BufferedReader(
+                new InputStreamReader(
+                    firstSocket.getInputStream()));
+        Socket secondSocket = connectToServer(serverThread, PORT+4);
+        BufferedReader inSecond = new BufferedReader(
+                new InputStreamReader(
+                    secondSocket.getInputStream()));
+        inFirst.readLine();
+        inSecond.readLine();
+        
+        // The server is full: a third player waits ...
+        Socket thirdSocket = connectToServer(serverThread, PORT+4);
+        BufferedReader inThird = new BufferedReader(
+                new InputStreamReader(
+                    thirdSocket.getInputStream()));
+        PrintWriter outThird = new PrintWriter(
+                thirdSocket.getOutputStream(), true);
+        
+        // ... until the idle players are disconnected.
+        assertNull(inFirst.readLine());
+        assertNull(inSecond.readLine());
+        assertTrue(inThird.readLine().startsWith("Welcome to Minesweeper."));
+        outThird.println("look");
+        assertEquals("-------", inThird.readLine());
+        
+        firstSocket.close();
+        secondSocket.close();
+        thirdSocket.close();
+    }
+}
@@ -0,0 +1,192 @@
+package primefactors.bench;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import primefactors.factors.client.PrimeFactorsClient;
+
+/**
+ * Measures how the distributed factoring path scales with the number of
+ * servers. For each cluster size a LocalCluster is started and one
+ * PrimeFactorsClient keeps a fixed number of numbers outstanding on it
+ * (closed loop: each reply sends the next number) until every number of the
+ * run is factored. Throughput and the p50, p99 and p999 latency of a whole
+ * number, from factor() to its reply, are reported per cluster size. Every
+ * reply is checked by multiplying it out.
+ *
+ * The numbers are semiprimes drawn from a mix of sizes, so that each costs a
+ * predictable search. The same numbers are used for every cluster size, after
+ * an untimed warm-up of a tenth of them.
+ *
+ * Usage: java primefactors.bench.LoadGenerator [option value]*
+ *   --servers 1,2,4        cluster sizes to measure
+ *   --concurrency 16       numbers outstanding at once
+ *   --requests 2000        numbers per cluster size
+ *   --mix 32:6,40:3,48:1   bits:weight of the semiprimes
+ *   --in-flight 8          chunk requests outstanding per connection
+ *   --binary true          use binary frames
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "Usage: java primefactors.bench.LoadGenerator "
+            + "[--servers 1,2,4] [--concurrency 16] [--requests 2000] "
+            + "[--mix 32:6,40:3,48:1] [--in-flight 8] [--binary false]";
+
+    public static void main(String[] args) throws Exception {
+        int[] servers = { 1, 2, 4 };
+        int concurrency = 16;
+        int requests = 2000;
+        int[][] mix = { { 32, 6 }, { 40, 3 }, { 48, 1 } };
+        int inFlight = PrimeFactorsClient.DEFAULT_MAX_IN_FLIGHT;
+        boolean binary = false;
+        if (args.length % 2 != 0)
+            usage();
+        for (int i = 0; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--servers":
+                servers = ints(value.split(","));
+                break;
+            case "--concurrency":
+                concurrency = Integer.parseInt(value);
+                break;
+            case "--requests":
+                requests = Integer.parseInt(value);
+                break;
+            case "--mix":
+                String[] entries = value.split(",");
+                mix = new int[entries.length][];
+                for (int j = 0; j < entries.length; j++)
+                    mix[j] = ints(entries[j].split(":"));
+                break;
+            case "--in-flight":
+                inFlight = Integer.parseInt(value);
+                break;
+            case "--binary":
+                binary = Boolean.parseBoolean(value);
+                break;
+            default:
+                usage();
+            }
+        }
+
+        BigInteger[] numbers = semiprimes(requests, mix, new Random(6005));
+        System.out.println(String.format("%d numbers, mix %s, %d outstanding, %s protocol",
+                requests, Arrays.deepToString(mix), concurrency, binary ? "binary" : "text"));
+        System.out.println("servers   numbers/s    p50 ms    p99 ms   p999 ms  errors");
+        for (int size : servers) {
+            try (LocalCluster cluster = new LocalCluster(size)) {
+                PrimeFactorsClient client = cluster.newClient(inFlight, binary);
+                try {
+                    run(client, Arrays.copyOf(numbers, Math.max(1, requests / 10)), concurrency);
+                    long started = System.nanoTime();
+                    Result result = run(client, numbers, concurrency);
+                    double seconds = (System.nanoTime() - started) / 1e9;
+                    System.out.println(String.format("%7d %11.1f %9.2f %9.2f %9.2f %7d",
+                            size, requests / seconds, result.percentile(0.5),
+                            result.percentile(0.99), result.percentile(0.999), result.errors));
+                } finally {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Latencies and failures of one run.
+     */
+    private static class Result {
+        // Nanoseconds, sorted.
+        final long[] latencies;
+        final int errors;
+
+        Result(long[] latencies, int errors) {
+            this.latencies = latencies;
+            this.errors = errors;
+            Arrays.sort(latencies);
+        }
+
+        /**
+         * @param p Fraction in (0, 1].
+         * @return The latency below which lies fraction p of the numbers, in
+         *         milliseconds.
+         */
+        double percentile(double p) {
+            int index = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    /**
+     * Factor numbers through client, keeping concurrency of them outstanding.
+     */
+    private static Result run(PrimeFactorsClient client, BigInteger[] numbers, int concurrency)
+            throws InterruptedException {
+        final long[] latencies = new long[numbers.length];
+        final AtomicInteger errors = new AtomicInteger();
+        final Semaphore slots = new Semaphore(concurrency);
+        for (int i = 0; i < numbers.length; i++) {
+            slots.acquire();
+            final int index = i;
+            final BigInteger n = numbers[i];
+            final long sent = System.nanoTime();
+            client.factor(n).whenComplete((factors, e) -> {
+                latencies[index] = System.nanoTime() - sent;
+                if (e != null || !product(factors).equals(n))
+                    errors.incrementAndGet();
+                slots.release();
+            });
+        }
+        // Every slot is back once the last reply is in.
+        slots.acquire(concurrency);
+        return new Result(latencies, errors.get());
+    }
+
+    /**
+     * @param mix Pairs of bit length and relative weight.
+     * @return count semiprimes with sizes drawn from mix.
+     */
+    private static BigInteger[] semiprimes(int count, int[][] mix, Random random) {
+        int total = 0;
+        for (int[] entry : mix)
+            total += entry[1];
+        BigInteger[] numbers = new BigInteger[count];
+        for (int i = 0; i < count; i++) {
+            int pick = random.nextInt(total);
+            int bits = mix[0][0];
+            for (int[] entry : mix) {
+                if (pick < entry[1]) {
+                    bits = entry[0];
+                    break;
+                }
+                pick -= entry[1];
+            }
+            numbers[i] = BigInteger.probablePrime(bits / 2, random).multiply(
+                    BigInteger.probablePrime(bits - bits / 2, random));
+        }
+        return numbers;
+    }
+
+    private static BigInteger product(List<BigInteger> factors) {
+        BigInteger product = BigInteger.ONE;
+        for (BigInteger f : factors)
+            product = product.multiply(f);
+        return product;
+    }
+
+    private static int[] ints(String[] values) {
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = Integer.parseInt(values[i]);
+        return result;
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,107 @@
+package primefactors.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import primefactors.factors.client.PrimeFactorsClient;
+import primefactors.factors.server.PrimeFactorsServer;
+
+/**
+ * A factoring cluster inside one JVM: size PrimeFactorsServers, each on its
+ * own ephemeral port of the loopback interface and served by its own thread,
+ * for exercising the distributed path of PrimeFactorsClient without starting
+ * processes by hand.
+ */
+public class LocalCluster implements Closeable {
+    private static final String HOST = "localhost";
+
+    private final List<PrimeFactorsServer> servers = new ArrayList<PrimeFactorsServer>();
+    private final List<Integer> ports = new ArrayList<Integer>();
+
+    /**
+     * Start a cluster.
+     * @param size Number of servers, > 0.
+     * @throws IOException if a server could not be started; the ones already
+     *         started are shut down
+     */
+    public LocalCluster(int size) throws IOException {
+        if (size <= 0)
+            throw new IllegalArgumentException();
+        try {
+            for (int i = 0; i < size; i++) {
+                final PrimeFactorsServer server = new PrimeFactorsServer(0);
+                servers.add(server);
+                ports.add(server.getPort());
+                Thread serving = new Thread(() -> {
+                    try {
+                        server.serve();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "server " + server.getPort());
+                serving.setDaemon(true);
+                serving.start();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of servers in the cluster.
+     */
+    public int size() {
+        return servers.size();
+    }
+
+    /**
+     * @return The host name of every server, in the order of getPorts().
+     */
+    public List<String> getHosts() {
+        return Collections.nCopies(servers.size(), HOST);
+    }
+
+    /**
+     * @return The port of every server.
+     */
+    public List<Integer> getPorts() {
+        return Collections.unmodifiableList(ports);
+    }
+
+    /**
+     * @return The servers, to inspect their caches or shut some down.
+     */
+    public List<PrimeFactorsServer> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    /**
+     * Make a client connected to every server of the cluster.
+     * @param maxInFlight Most chunk requests outstanding on one connection, > 0.
+     * @param binary True to use binary frames.
+     * @throws IOException
+     */
+    public PrimeFactorsClient newClient(int maxInFlight, boolean binary) throws IOException {
+        return new PrimeFactorsClient(getHosts(), getPorts(), maxInFlight, binary);
+    }
+
+    /**
+     * Shut every server down, waiting a few seconds for their clients.
+     */
+    @Override
+    public void close() {
+        for (PrimeFactorsServer server : servers) {
+            try {
+                server.shutdown(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package primefactors.bench;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import primefactors.util.AutoFactorizer;
+import primefactors.util.LongMath;
+
+/**
+ * Compares factoring numbers below 2^63 with LongMath against the BigInteger
+ * engines (trial division, Pollard's rho and isProbablePrime on BigIntegers).
+ * 
+ * Each round factors the same random semiprimes with both paths after a
+ * warm-up round, and reports the mean time per number.
+ * 
+ * Usage: java primefactors.bench.LongFactorBenchmark [count]
+ */
+public class LongFactorBenchmark {
+    private static final int[] BITS = { 32, 48, 62 };
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        Random random = new Random(6005);
+
+        for (int bits : BITS) {
+            long[] numbers = new long[count];
+            for (int i = 0; i < count; i++)
+                numbers[i] = BigInteger.probablePrime(bits / 2, random).multiply(
+                        BigInteger.probablePrime(bits - bits / 2, random)).longValue();
+
+            for (int round = 0; round <= ROUNDS; round++) {
+                long started = System.nanoTime();
+                long check = 0;
+                for (long n : numbers)
+                    check += LongMath.factor(n).length;
+                long longTime = System.nanoTime() - started;
+
+                started = System.nanoTime();
+                for (long n : numbers)
+                    check -= bigFactorCount(BigInteger.valueOf(n), random);
+                long bigTime = System.nanoTime() - started;
+
+                if (check != 0)
+                    throw new AssertionError("paths disagree");
+                if (round == 0)
+                    continue; // warm-up
+                System.out.println(String.format(
+                        "%d-bit semiprimes: long %.1fus/number, BigInteger %.1fus/number (x%.1f)",
+                        bits, longTime / 1e3 / count, bigTime / 1e3 / count,
+                        (double) bigTime / longTime));
+            }
+        }
+    }
+
+    /**
+     * @return Number of prime factors of n found with the BigInteger engines.
+     */
+    private static int bigFactorCount(BigInteger n, Random random) {
+        AutoFactorizer factorizer = new AutoFactorizer(random);
+        Deque<BigInteger> pieces = new ArrayDeque<BigInteger>();
+        pieces.push(n);
+        int count = 0;
+        while (!pieces.isEmpty()) {
+            BigInteger piece = pieces.pop();
+            if (piece.isProbablePrime(10)) {
+                count++;
+            } else {
+                BigInteger d = factorizer.findFactor(piece);
+                pieces.push(d);
+                pieces.push(piece.divide(d));
+            }
+        }
+        return count;
+    }
+}
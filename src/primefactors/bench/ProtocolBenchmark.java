@@ -0,0 +1,125 @@
+package primefactors.bench;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import primefactors.factors.BinaryProtocol;
+import primefactors.factors.client.PrimeFactorsClient;
+import primefactors.factors.server.PrimeFactorsNioServer;
+
+/**
+ * Compares the text protocol with binary frames, first for encoding and
+ * decoding requests alone and then end to end: a PrimeFactorsClient factoring
+ * a batch of numbers below 2^32 (one request each) through a
+ * PrimeFactorsNioServer on the loopback interface.
+ *
+ * Usage: java primefactors.bench.ProtocolBenchmark [numbers]
+ */
+public class ProtocolBenchmark {
+    private static final int CODEC_COUNT = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Random random = new Random(6005);
+        BigInteger[] numbers = new BigInteger[count];
+        for (int i = 0; i < count; i++)
+            numbers[i] = BigInteger.valueOf(2 + (random.nextLong() >>> 32));
+
+        for (int round = 0; round < 2; round++) {
+            long text = codecText(numbers), binary = codecBinary(numbers);
+            if (round == 1)
+                System.out.println(String.format(
+                        "codec:      text %6.0f ns/request, binary %6.0f ns/request",
+                        (double) text / CODEC_COUNT, (double) binary / CODEC_COUNT));
+        }
+
+        PrimeFactorsNioServer server = new PrimeFactorsNioServer(0);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        serving.start();
+        try {
+            for (int round = 0; round < 2; round++) {
+                double text = endToEnd(server.getPort(), numbers, false);
+                double binary = endToEnd(server.getPort(), numbers, true);
+                if (round == 1)
+                    System.out.println(String.format(
+                            "end to end: text %6.0f numbers/s, binary %6.0f numbers/s",
+                            text, binary));
+            }
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Format and parse request lines as the client and server do.
+     * @return Elapsed nanoseconds.
+     */
+    private static long codecText(BigInteger[] numbers) {
+        long started = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < CODEC_COUNT; i++) {
+            BigInteger n = numbers[i % numbers.length];
+            String line = "factor " + n + " " + BigInteger.valueOf(2) + " " + n;
+            String[] parts = line.split(" ");
+            if (parts.length == 4 && parts[1].matches("\\d+"))
+                sink += new BigInteger(parts[1]).add(new BigInteger(parts[2]))
+                        .add(new BigInteger(parts[3])).bitLength();
+        }
+        if (sink == 42)
+            System.out.println();
+        return System.nanoTime() - started;
+    }
+
+    /**
+     * Encode and decode request frames.
+     * @return Elapsed nanoseconds.
+     */
+    private static long codecBinary(BigInteger[] numbers) {
+        long started = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < CODEC_COUNT; i++) {
+            BigInteger n = numbers[i % numbers.length];
+            byte[] frame = BinaryProtocol.request(i, n, BigInteger.valueOf(2), n);
+            BinaryProtocol.Frame decoded = BinaryProtocol.decode(frame, 4, frame.length - 4);
+            sink += decoded.numbers.get(0).add(decoded.numbers.get(1))
+                    .add(decoded.numbers.get(2)).bitLength();
+        }
+        if (sink == 42)
+            System.out.println();
+        return System.nanoTime() - started;
+    }
+
+    /**
+     * Factor every number through the server.
+     * @return Numbers factored per second.
+     */
+    private static double endToEnd(int port, BigInteger[] numbers, boolean binary)
+            throws Exception {
+        PrimeFactorsClient client = new PrimeFactorsClient(
+                Collections.singletonList("localhost"), Collections.singletonList(port),
+                64, binary);
+        try {
+            long started = System.nanoTime();
+            List<CompletableFuture<List<BigInteger>>> replies =
+                    new ArrayList<CompletableFuture<List<BigInteger>>>();
+            for (BigInteger n : numbers)
+                replies.add(client.factor(n));
+            for (CompletableFuture<List<BigInteger>> reply : replies)
+                reply.get();
+            return numbers.length / ((System.nanoTime() - started) / 1e9);
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package primefactors.bench;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import primefactors.util.BigMath;
+
+/**
+ * Compares BigMath.sqrt against the binary search it replaced and against
+ * BigInteger.sqrt, for inputs from 64 to 4096 bits.
+ * 
+ * Usage: java primefactors.bench.SqrtBenchmark
+ */
+public class SqrtBenchmark {
+    private static final int[] BITS = { 64, 128, 256, 512, 1024, 2048, 4096 };
+    private static final int COUNT = 200;
+
+    public static void main(String[] args) {
+        Random random = new Random(6005);
+        for (int round = 0; round < 2; round++) {
+            for (int bits : BITS) {
+                BigInteger[] inputs = new BigInteger[COUNT];
+                for (int i = 0; i < COUNT; i++)
+                    inputs[i] = new BigInteger(bits, random).setBit(bits - 1);
+
+                long started = System.nanoTime();
+                for (BigInteger n : inputs)
+                    BigMath.sqrt(n);
+                long newton = System.nanoTime() - started;
+
+                started = System.nanoTime();
+                for (BigInteger n : inputs)
+                    n.sqrt();
+                long library = System.nanoTime() - started;
+
+                started = System.nanoTime();
+                for (BigInteger n : inputs)
+                    binarySearchSqrt(n);
+                long binary = System.nanoTime() - started;
+
+                if (round == 0)
+                    continue; // warm-up
+                System.out.println(String.format(
+                        "%4d bits: Newton %8.1fus, BigInteger.sqrt %8.1fus, binary search %9.1fus",
+                        bits, newton / 1e3 / COUNT, library / 1e3 / COUNT, binary / 1e3 / COUNT));
+            }
+        }
+    }
+
+    /**
+     * The previous BigMath.sqrt, kept for comparison.
+     */
+    private static BigInteger binarySearchSqrt(BigInteger n) {
+        BigInteger a = BigInteger.ONE;
+        BigInteger b = new BigInteger(n.shiftRight(5).add(new BigInteger("8")).toString());
+        while (b.compareTo(a) >= 0) {
+            BigInteger mid = new BigInteger(a.add(b).shiftRight(1).toString());
+            if (mid.multiply(mid).compareTo(n) > 0)
+                b = mid.subtract(BigInteger.ONE);
+            else
+                a = mid.add(BigInteger.ONE);
+        }
+        return a.subtract(BigInteger.ONE);
+    }
+}
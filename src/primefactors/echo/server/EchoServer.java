@@ -6,16 +6,27 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 
 /**
  * A simple server that will echo client inputs.
  * 
  * Client-to-Server and Server-to-Client Message Protocol Valid-Input := String
  * NewLine String := [^NewLine]+ NewLine := \n
+ * 
+ * The line "stats" is answered with "stats " and one line of the server's
+ * Metrics instead of being echoed; the same line is printed to standard error
+ * once a minute.
  */
 public class EchoServer {
 
     private static final int DEFAULT_PORT_NUMBER = 4444;
+    private static final String STATS = "stats";
+    private static final long METRICS_INTERVAL = 60;
     
     /**
      * @param args
@@ -34,23 +45,42 @@ public class EchoServer {
             portNumber = Integer.parseInt(args[0]);
         }
 
+        Metrics metrics = new Metrics("EchoServer");
+        LongAdder bytesIn = metrics.counter("bytes.in");
+        LongAdder bytesOut = metrics.counter("bytes.out");
+        LongAdder echoes = metrics.counter("requests.echo");
+        LongAdder stats = metrics.counter("requests.stats");
+        LatencyHistogram latency = metrics.histogram("latency.request");
+        metrics.logEvery(METRICS_INTERVAL, TimeUnit.SECONDS, System.err);
+
         // Keep listening for new incoming clients on the same assigned port.
             try (
                     ServerSocket serverSocket = new ServerSocket(portNumber);
                     Socket clientSocket = serverSocket.accept();
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream()));
+                    PrintWriter out = new PrintWriter(
+                            Metrics.counting(clientSocket.getOutputStream(), bytesOut), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(
+                            Metrics.counting(clientSocket.getInputStream(), bytesIn)));
                 ) {
+                    metrics.counter("connections.accepted").increment();
                     String inputLine;
 
                     out.println(); // Initiate conversation with client.
                     while ((inputLine = in.readLine()) != null) {
-                    out.println(inputLine);
-                    if (inputLine.equals("bb"))
-                        break;
-                }
+                        long started = System.nanoTime();
+                        if (inputLine.equals(STATS)) {
+                            stats.increment();
+                            out.println(STATS + " " + metrics);
+                        } else {
+                            echoes.increment();
+                            out.println(inputLine);
+                        }
+                        latency.recordSince(started);
+                        if (inputLine.equals("bb"))
+                            break;
+                    }
             } catch (IOException e) {
+                metrics.counter("errors").increment();
                 System.out.println("Exception caught when trying to listen on port " + portNumber
                         + " or listening for a connection");
                 System.out.println(e.getMessage());
@@ -0,0 +1,202 @@
+package primefactors.factors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Length-prefixed binary framing for prime factor requests, an alternative
+ * to the text protocol of PrimeFactorsServer for heavy batch traffic.
+ *
+ * A connection starts in the text protocol. A client that wants frames sends
+ * the line "binary" as its first message; a server that supports them answers
+ * with the line "binary" and from then on both directions carry only frames.
+ * A server without frame support answers "invalid" and the client carries on
+ * in text.
+ *
+ * Frame := Length Id Type Count Number*
+ * Number := Length Magnitude
+ * Length, Id, Count := 32-bit big-endian int
+ * Type := byte
+ * Magnitude := unsigned big-endian bytes of the number
+ *
+ * A request has type FACTOR and the three numbers N, LowBound, HighBound.
+ * Its reply carries the same Id and either type FOUND and every prime factor
+ * found, type CANCELLED and no numbers, or type INVALID and no numbers. Before
+ * its reply, a long request may be followed by PROGRESS frames with its Id and
+ * the current candidate. The length of a frame does not count the length field
+ * itself.
+ *
+ * A client may also send, without getting a reply of their own:
+ *  - CANCEL with the Id of an earlier request and no numbers, to stop it;
+ *  - PROGRESS with any Id and one number, the milliseconds between progress
+ *    reports, 0 for none (the default).
+ * and PING with any Id and no numbers, which the server answers at once,
+ * ahead of any outstanding reply, with PONG and the same Id.
+ */
+public class BinaryProtocol {
+
+    /** Line that switches a connection to frames. */
+    public static final String HELLO = "binary";
+    /** Request: factor N over [LowBound, HighBound]. */
+    public static final byte FACTOR = 1;
+    /** Reply: the request succeeded; the numbers are the factors found. */
+    public static final byte FOUND = 2;
+    /** Reply: the request was not valid. */
+    public static final byte INVALID = 3;
+    /** Request: cancel the request with this Id. */
+    public static final byte CANCEL = 4;
+    /** Reply: the request with this Id was cancelled. */
+    public static final byte CANCELLED = 5;
+    /** Report: the request with this Id has reached the candidate. Request:
+     *  set the interval between reports. */
+    public static final byte PROGRESS = 6;
+    /** Request: answer with PONG at once. */
+    public static final byte PING = 7;
+    /** Reply to PING. */
+    public static final byte PONG = 8;
+    /** Longest frame accepted. */
+    public static final int MAX_FRAME = 1 << 20;
+    // Longest line accepted before the switch.
+    private static final int MAX_LINE = 64 * 1024;
+    // Bytes of Id, Type and Count.
+    private static final int HEADER = 9;
+
+    /**
+     * One decoded frame.
+     */
+    public static class Frame {
+        public final int id;
+        public final byte type;
+        public final List<BigInteger> numbers;
+
+        // Rep invariant: numbers != null, every number >= 0
+        public Frame(int id, byte type, List<BigInteger> numbers) {
+            this.id = id;
+            this.type = type;
+            this.numbers = Collections.unmodifiableList(numbers);
+        }
+
+        /**
+         * @return This frame, including its length prefix.
+         */
+        public byte[] encode() {
+            int length = HEADER;
+            byte[][] magnitudes = new byte[numbers.size()][];
+            for (int i = 0; i < magnitudes.length; i++) {
+                magnitudes[i] = magnitude(numbers.get(i));
+                length += 4 + magnitudes[i].length;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(4 + length);
+            buf.putInt(length).putInt(id).put(type).putInt(magnitudes.length);
+            for (byte[] m : magnitudes)
+                buf.putInt(m.length).put(m);
+            return buf.array();
+        }
+    }
+
+    /**
+     * @return Unsigned big-endian bytes of n >= 0, without a sign byte.
+     */
+    private static byte[] magnitude(BigInteger n) {
+        byte[] bytes = n.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0)
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @return Encoded request frame for factor n lo hi.
+     */
+    public static byte[] request(int id, BigInteger n, BigInteger lo, BigInteger hi) {
+        List<BigInteger> numbers = new ArrayList<BigInteger>(3);
+        numbers.add(n);
+        numbers.add(lo);
+        numbers.add(hi);
+        return new Frame(id, FACTOR, numbers).encode();
+    }
+
+    /**
+     * Decode the body of a frame, the bytes after its length field.
+     * @return The frame, or null if the bytes are not a well-formed frame.
+     */
+    public static Frame decode(byte[] buf, int off, int len) {
+        ByteBuffer in = ByteBuffer.wrap(buf, off, len);
+        if (in.remaining() < HEADER)
+            return null;
+        int id = in.getInt();
+        byte type = in.get();
+        int count = in.getInt();
+        // Every number takes at least its 4-byte length.
+        if (count < 0 || count > in.remaining() / 4)
+            return null;
+        List<BigInteger> numbers = new ArrayList<BigInteger>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.remaining() < 4)
+                return null;
+            int size = in.getInt();
+            if (size < 0 || size > in.remaining())
+                return null;
+            byte[] magnitude = new byte[size];
+            in.get(magnitude);
+            numbers.add(new BigInteger(1, magnitude));
+        }
+        if (in.hasRemaining())
+            return null;
+        return new Frame(id, type, numbers);
+    }
+
+    /**
+     * Read one frame.
+     * @return The frame, or null if the stream ended before it.
+     * @throws IOException if the stream failed or the frame is malformed
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER || length > MAX_FRAME)
+            throw new IOException("bad frame length " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        Frame frame = decode(body, 0, length);
+        if (frame == null)
+            throw new IOException("malformed frame");
+        return frame;
+    }
+
+    /**
+     * Read one line of the text protocol without reading ahead of it, so
+     * the stream can switch to frames after it.
+     * @return The line without its terminator, or null at end of stream.
+     * @throws IOException if the stream failed or the line is too long
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                return line.size() == 0 ? null : line.toString("US-ASCII");
+            if (line.size() == MAX_LINE)
+                throw new IOException("line too long");
+            line.write(c);
+        }
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r')
+            len--;
+        return new String(bytes, 0, len, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,155 @@
+package primefactors.factors;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BinaryProtocolTest {
+
+    private static final List<BigInteger> NUMBERS = Arrays.asList(
+            BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(127),
+            // The top bit set: BigInteger adds a sign byte, frames don't.
+            BigInteger.valueOf(255), BigInteger.valueOf(Long.MAX_VALUE),
+            BigInteger.ONE.shiftLeft(521).subtract(BigInteger.ONE));
+
+    private static DataInputStream stream(byte[]... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            bytes.write(part);
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * @return A length field of length followed by some zero bytes.
+     */
+    private static byte[] withLength(int length) {
+        return ByteBuffer.allocate(4 + Math.max(0, Math.min(length, 64)))
+                .putInt(length).array();
+    }
+
+    private static void assertFrame(int id, byte type, List<BigInteger> numbers,
+            BinaryProtocol.Frame frame) {
+        assertNotNull(frame);
+        assertEquals(id, frame.id);
+        assertEquals(type, frame.type);
+        assertEquals(numbers, frame.numbers);
+    }
+
+    @Test
+    public void testEncodeDecodeRoundTrip() {
+        for (int id : new int[] { 0, 1, -1, Integer.MAX_VALUE }) {
+            byte[] encoded = new BinaryProtocol.Frame(id, BinaryProtocol.FOUND, NUMBERS).encode();
+            assertEquals(encoded.length - 4, ByteBuffer.wrap(encoded).getInt());
+            assertFrame(id, BinaryProtocol.FOUND, NUMBERS,
+                    BinaryProtocol.decode(encoded, 4, encoded.length - 4));
+        }
+        byte[] empty = new BinaryProtocol.Frame(7, BinaryProtocol.PING,
+                Collections.<BigInteger>emptyList()).encode();
+        assertFrame(7, BinaryProtocol.PING, Collections.<BigInteger>emptyList(),
+                BinaryProtocol.decode(empty, 4, empty.length - 4));
+    }
+
+    @Test
+    public void testReadFramesInSequence() throws IOException {
+        BigInteger n = BigInteger.valueOf(1470);
+        DataInputStream in = stream(
+                BinaryProtocol.request(3, n, BigInteger.valueOf(2), BigInteger.valueOf(38)),
+                new BinaryProtocol.Frame(4, BinaryProtocol.FOUND, NUMBERS).encode(),
+                new BinaryProtocol.Frame(3, BinaryProtocol.CANCEL,
+                        Collections.<BigInteger>emptyList()).encode());
+        assertFrame(3, BinaryProtocol.FACTOR,
+                Arrays.asList(n, BigInteger.valueOf(2), BigInteger.valueOf(38)),
+                BinaryProtocol.read(in));
+        assertFrame(4, BinaryProtocol.FOUND, NUMBERS, BinaryProtocol.read(in));
+        assertFrame(3, BinaryProtocol.CANCEL, Collections.<BigInteger>emptyList(),
+                BinaryProtocol.read(in));
+        assertNull(BinaryProtocol.read(in));
+    }
+
+    @Test
+    public void testTruncatedFrame() throws IOException {
+        byte[] encoded = new BinaryProtocol.Frame(1, BinaryProtocol.FOUND, NUMBERS).encode();
+        // Every cut inside the body, which the length field promises in full.
+        for (int cut = 5; cut < encoded.length; cut++) {
+            assertNull(BinaryProtocol.decode(encoded, 4, cut - 4));
+            try {
+                BinaryProtocol.read(stream(Arrays.copyOf(encoded, cut)));
+                fail("read a frame cut at " + cut);
+            } catch (EOFException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedBodyIsRejected() throws IOException {
+        byte[] request = BinaryProtocol.request(1, BigInteger.TEN, BigInteger.ONE, BigInteger.TEN);
+        byte[] body = Arrays.copyOfRange(request, 4, request.length);
+        // Count and number length out of range, a number cut short, and
+        // bytes left over.
+        byte[][] bad = {
+                ByteBuffer.allocate(9).putInt(1).put(BinaryProtocol.FACTOR).putInt(-1).array(),
+                ByteBuffer.allocate(13).putInt(1).put(BinaryProtocol.FACTOR).putInt(1).putInt(-1).array(),
+                ByteBuffer.allocate(14).putInt(1).put(BinaryProtocol.FACTOR).putInt(1).putInt(2).array(),
+                Arrays.copyOf(body, body.length - 1),
+                Arrays.copyOf(body, body.length + 1),
+        };
+        for (byte[] b : bad) {
+            assertNull(BinaryProtocol.decode(b, 0, b.length));
+            try {
+                BinaryProtocol.read(stream(ByteBuffer.allocate(4).putInt(b.length).array(), b));
+                fail("read " + Arrays.toString(b));
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testBadLengthIsRejected() throws IOException {
+        int[] lengths = { -1, Integer.MIN_VALUE, 0, 8,
+                BinaryProtocol.MAX_FRAME + 1, Integer.MAX_VALUE };
+        for (int length : lengths) {
+            try {
+                BinaryProtocol.read(stream(withLength(length)));
+                fail("read length " + length);
+            } catch (EOFException e) {
+                fail("length " + length + " read as a truncated frame");
+            } catch (IOException e) {
+                assertEquals("bad frame length " + length, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testReadLineDoesNotReadAhead() throws IOException {
+        byte[] frame = new BinaryProtocol.Frame(9, BinaryProtocol.PONG,
+                Collections.<BigInteger>emptyList()).encode();
+        DataInputStream in = stream(
+                ("\r\n" + BinaryProtocol.HELLO + "\r\n").getBytes(StandardCharsets.US_ASCII), frame);
+        assertEquals("", BinaryProtocol.readLine(in));
+        assertEquals(BinaryProtocol.HELLO, BinaryProtocol.readLine(in));
+        assertFrame(9, BinaryProtocol.PONG, Collections.<BigInteger>emptyList(),
+                BinaryProtocol.read(in));
+        assertNull(BinaryProtocol.readLine(in));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadLineTooLong() throws IOException {
+        byte[] line = new byte[64 * 1024 + 1];
+        Arrays.fill(line, (byte) '1');
+        BinaryProtocol.readLine(stream(line, new byte[] { '\n' }));
+    }
+}
@@ -1,17 +1,37 @@
 package primefactors.factors.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import primefactors.util.BigMath;
+import primefactors.factors.BinaryProtocol;
 
 /**
  *  PrimeFactorsClient class for PrimeFactorsServer.  
@@ -26,8 +46,32 @@ import primefactors.util.BigMath;
  *  that can be processed is a number.  If your input is not of the correct format,
  *  you should ignore it and continue to the next one.
  *  
- *  Your client should distribute to each server the appropriate range of values
- *  to look for prime factors through.
+ *  Your client should distribute to the servers the range of values to look
+ *  for prime factors through. The range is cut into many small chunks and each
+ *  server is given a new chunk as soon as it has answered the last one, so a
+ *  fast server does more of the work than a slow one. No more chunks are sent
+ *  once the factors found so far leave a cofactor of 1 or a prime, and the
+ *  chunks of that number still in flight are cancelled on the servers.
+ *  
+ *  Many numbers can be in progress at once: factor(n) returns a future and
+ *  the chunks of all outstanding numbers share the connections, with up to a
+ *  fixed number of chunk requests in flight on each connection. Replies are
+ *  read by one thread per connection and matched to their request by the
+ *  number and range they repeat.
+ *  
+ *  A fixed number of connections is kept open to each server. Every
+ *  connection is pinged once per HEARTBEAT_INTERVAL and dropped if the server
+ *  stays silent for several intervals. The chunks in flight on a dropped
+ *  connection are handed to the others, and the connection is reopened with
+ *  an increasing delay between attempts, so factoring carries on through the
+ *  restart of a server. Numbers fail only once no server has been reachable
+ *  for GIVE_UP milliseconds.
+ *  
+ *  A server with a request timeout cancels a chunk that runs past it. Such a
+ *  chunk is split in two and the halves are handed out again after a delay
+ *  that doubles with each cancellation; a number fails once a chunk of it
+ *  has been cancelled MAX_CANCELLATIONS times, rather than being retried for
+ *  ever.
  *  
  *  User-to-Client Message Protocol:
  *  Valid-Input := Space N Space NewLine
@@ -52,10 +96,80 @@ import primefactors.util.BigMath;
 
 public class PrimeFactorsClient {
 
-    private final List<SubClient> subClients;
+    /** Chunk requests in flight on one connection unless told otherwise. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    /** Connections kept open to each server unless told otherwise. */
+    public static final int DEFAULT_CONNECTIONS_PER_SERVER = 1;
+    /** Milliseconds between heartbeats on each connection. */
+    public static final long HEARTBEAT_INTERVAL = 1000;
+    /** Milliseconds without any server before outstanding numbers fail. */
+    public static final long GIVE_UP = 10000;
+    // Heartbeats a connection may miss before it is dropped.
+    private static final int MISSED_HEARTBEATS = 3;
+    // Longest delay between attempts to reconnect to a server.
+    private static final long MAX_BACKOFF = 8000;
+    /** Times a server may cancel a chunk, or the chunks it was split from. */
+    public static final int MAX_CANCELLATIONS = 5;
+    // Milliseconds before a chunk cancelled once is retried; doubled on each
+    // further cancellation.
+    private static final long CANCEL_BACKOFF = 100;
+
+    private final List<String> hostNames;
+    private final List<Integer> ports;
+    private final int maxInFlight;
+    private final boolean binary;
+    private final int connectionsPerServer;
+    // Open connections. Guarded by this.
+    private final List<SubClient> subClients = new ArrayList<SubClient>();
+    // Per server: connection attempts under way, and the time of and delay
+    // before the next one. Guarded by this.
+    private final int[] connecting;
+    private final long[] nextAttempt;
+    private final long[] backoff;
+    // When the last open connection was lost; meaningless while there is one.
+    // Guarded by this.
+    private long allLostAt = System.nanoTime();
+    // Sends heartbeats and notices dead connections ...
+    private final ScheduledExecutorService health;
+    // ... and new connections are opened here, so a server that does not
+    // answer cannot hold up the heartbeats of the others.
+    private final ExecutorService connector;
+    // Numbers not yet fully factorised, oldest first. Guarded by this.
+    private final List<Job> jobs = new LinkedList<Job>();
+    private boolean closed = false;
+    // Reply to the last sendRequest, for the one-at-a-time interface.
+    private CompletableFuture<List<BigInteger>> current;
+
+    /**
+     * A number being factorised.
+     */
+    static class Job {
+        final RangeScheduler scheduler;
+        final CompletableFuture<List<BigInteger>> result = new CompletableFuture<>();
+
+        Job(RangeScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+    }
+
+    /**
+     * A chunk request sent to one server, and what it has replied so far.
+     */
+    static class Chunk {
+        final Job job;
+        final RangeScheduler.Range range;
+        final List<BigInteger> found = new ArrayList<BigInteger>();
+        // Frame id, set when sent over a binary connection.
+        int id;
+
+        Chunk(Job job, RangeScheduler.Range range) {
+            this.job = job;
+            this.range = range;
+        }
+    }
     
     /**
-     * Make a PrimeFactorsClient.
+     * Make a PrimeFactorsClient with DEFAULT_MAX_IN_FLIGHT.
      * Requires host name and port number for each sub client.
      * @param hostNames The list of all host names.
      * @param ports The list of all ports.
@@ -63,96 +177,365 @@ public class PrimeFactorsClient {
      */
     public PrimeFactorsClient(List<String> hostNames, List<Integer> ports) 
             throws IOException {
+        this(hostNames, ports, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Make a PrimeFactorsClient.
+     * Requires host name and port number for each sub client.
+     * @param hostNames The list of all host names.
+     * @param ports The list of all ports.
+     * @param maxInFlight Most chunk requests outstanding on one connection, > 0.
+     * @throws IOException
+     */
+    public PrimeFactorsClient(List<String> hostNames, List<Integer> ports,
+            int maxInFlight) throws IOException {
+        this(hostNames, ports, maxInFlight, false);
+    }
+
+    /**
+     * Make a PrimeFactorsClient.
+     * Requires host name and port number for each sub client.
+     * @param hostNames The list of all host names.
+     * @param ports The list of all ports.
+     * @param maxInFlight Most chunk requests outstanding on one connection, > 0.
+     * @param binary True to use binary frames with the servers that support
+     *        them; see BinaryProtocol.
+     * @throws IOException
+     */
+    public PrimeFactorsClient(List<String> hostNames, List<Integer> ports,
+            int maxInFlight, boolean binary) throws IOException {
+        this(hostNames, ports, maxInFlight, binary, DEFAULT_CONNECTIONS_PER_SERVER);
+    }
+
+    /**
+     * Make a PrimeFactorsClient.
+     * Requires host name and port number for each sub client.
+     * @param hostNames The list of all host names.
+     * @param ports The list of all ports.
+     * @param maxInFlight Most chunk requests outstanding on one connection, > 0.
+     * @param binary True to use binary frames with the servers that support
+     *        them; see BinaryProtocol.
+     * @param connectionsPerServer Connections kept open to each server, > 0.
+     *        A server computes the requests of one connection one at a time,
+     *        so more connections let it use more of its cores.
+     * @throws IOException if no server could be reached; the servers that
+     *         could not be reached are retried later
+     */
+    public PrimeFactorsClient(List<String> hostNames, List<Integer> ports,
+            int maxInFlight, boolean binary, int connectionsPerServer) throws IOException {
         assert hostNames.size() == ports.size();
-        subClients = new ArrayList<SubClient>();
+        if (maxInFlight <= 0 || connectionsPerServer <= 0)
+            throw new IllegalArgumentException();
+        this.hostNames = new ArrayList<String>(hostNames);
+        this.ports = new ArrayList<Integer>(ports);
+        this.maxInFlight = maxInFlight;
+        this.binary = binary;
+        this.connectionsPerServer = connectionsPerServer;
+        connecting = new int[hostNames.size()];
+        nextAttempt = new long[hostNames.size()];
+        backoff = new long[hostNames.size()];
+        Arrays.fill(nextAttempt, System.nanoTime());
         
-        // For each pair <host name : port>, make a new sub client that is 
+        // For each pair <host name : port>, make new sub clients that are
         // connected to a server running on host name at specified port.
+        IOException failure = null;
         for (int i = 0; i < hostNames.size(); i++) {
-            SubClient p = new SubClient(hostNames.get(i), ports.get(i));
-            subClients.add(p);
+            try {
+                for (int k = 0; k < connectionsPerServer; k++)
+                    subClients.add(connect(i));
+            } catch (IOException e) {
+                failure = e;
+                failed(i);
+            }
         }
+        if (subClients.isEmpty() && failure != null)
+            throw failure;
+        for (SubClient sc : subClients)
+            sc.start();
+
+        ThreadFactory daemons = r -> {
+            Thread t = new Thread(r, "client health");
+            t.setDaemon(true);
+            return t;
+        };
+        health = Executors.newSingleThreadScheduledExecutor(daemons);
+        connector = Executors.newCachedThreadPool(daemons);
+        health.scheduleWithFixedDelay(this::checkHealth,
+                HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open a new connection to a server.
+     * @param server Index of the server in the host and port lists.
+     * @throws IOException
+     */
+    private SubClient connect(int server) throws IOException {
+        return new SubClient(this, server, hostNames.get(server), ports.get(server),
+                binary, (int) HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Record a failed attempt to connect to server.
+     */
+    private synchronized void failed(int server) {
+        backoff[server] = Math.min(MAX_BACKOFF, Math.max(HEARTBEAT_INTERVAL, 2 * backoff[server]));
+        nextAttempt[server] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff[server]);
+    }
+
+    /**
+     * Factorise n on the servers.
+     * @param n The number to be factorised, >= 2.
+     * @return A future of the prime factors of n in increasing order,
+     *         repeated according to multiplicity. It fails with an
+     *         IOException if every server is lost before n is factorised, or
+     *         if the servers cancel a chunk of it MAX_CANCELLATIONS times.
+     */
+    public CompletableFuture<List<BigInteger>> factor(BigInteger n) {
+        if (n.compareTo(BigInteger.ONE) <= 0)
+            throw new IllegalArgumentException();
+        Job job = new Job(new RangeScheduler(n, Math.max(1, hostNames.size())));
+        synchronized (this) {
+            if (closed) {
+                job.result.completeExceptionally(new IOException("client closed"));
+                return job.result;
+            }
+            jobs.add(job);
+            finishIfDone(job);
+            dispatch();
+        }
+        return job.result;
     }
         
     /**
-     * Send request to each sub client.
-     * @param n The number to be factorised.
+     * Start factorising n on all servers.
+     * @param n The number to be factorised, >= 2.
      * @throws IOException
      */
     public void sendRequest(BigInteger n) throws IOException {
-        // Partition the search space and send request to each sub client.
-        // The result has the form [low1, high1], [low2, high2], ... , [low n, high n]
-        List<BigInteger> partitions = partition(n, BigInteger.ONE);
-
-        for (int i = 0; i < subClients.size(); i++) {
-            BigInteger lo = partitions.get(i*2);
-            BigInteger hi = partitions.get(i*2+1);
-            subClients.get(i).sendRequest(n, lo, hi);
-        }
+        current = factor(n);
     }
     
     /**
-     * Collect replies from all sub clients.
-     * @param n User's query number.
+     * Wait for the servers to finish the last request.
+     * @param number User's query number.
      * @return The result of prime factorisation 
      *          as defined in Client-to-User protocol.
-     * @throws IOException
+     * @throws IOException if the servers failed before the search was complete
      */
     public String getReply(String number) throws IOException {
-        List<String> allFactors = new LinkedList<String>();
-
-        for (SubClient sc : subClients) {
-            List<String> subClientsFactors = sc.getReply();
-            allFactors.addAll(subClientsFactors);
+        try {
+            return format(number, current.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
         }
+    }
 
+    /**
+     * @return factors formatted as defined in Client-to-User protocol.
+     */
+    private static String format(String number, List<BigInteger> factors) {
         StringBuilder sb = new StringBuilder();
         sb.append(">>> " + number + " = ");
-        for (String s : allFactors)
-            sb.append(s + " * ");
+        for (BigInteger f : factors)
+            sb.append(f + " * ");
         
         return sb.toString()
                 .substring(0,  sb.length()-2); // Don't include trailing "*".
     }
-    
+
     /**
-     * Partition the search space according to the number of servers available.
-     * 
-     * Partition for i servers:
-     * [2, sqrt(N)/i], [sqrt(N)/i + 1, 2*sqrt(N)/i], [2*sqrt(N)/i + 1, 3*sqrt(N)/i]
-     * ...
-     * [i-1*sqrt(N)/i + 1, i*sqrt(N)/i]
-     * 
-     * @param n The query number
-     * @return List of search space intervals.
-     */
-    private List<BigInteger> partition(BigInteger n, BigInteger g) {
-        List<BigInteger> intervals = new ArrayList<BigInteger>();
-        BigInteger denom = BigInteger.valueOf(subClients.size());
-        BigInteger sqrtN = BigMath.sqrt(n);
-        BigInteger rhs = sqrtN.divide(denom);
-        
-        BigInteger start = new BigInteger("2");
-        BigInteger end = rhs;
-        intervals.add(start);
-        intervals.add(end);
-        
-        for (int i = 2; i <= subClients.size(); i++) {
-            start = end.add(BigInteger.ONE);
-            end = rhs.multiply(BigInteger.valueOf(i));
-            
-            intervals.add(start);
-            intervals.add(end);
+     * Fill the free request slots of every live connection with chunks of
+     * the oldest numbers that still have some to hand out.
+     */
+    private synchronized void dispatch() {
+        for (SubClient sc : subClients) {
+            Iterator<Job> it = jobs.iterator();
+            while (sc.isAlive() && sc.inFlight() < maxInFlight && it.hasNext()) {
+                Job job = it.next();
+                RangeScheduler.Range range;
+                while (sc.isAlive() && sc.inFlight() < maxInFlight
+                        && (range = job.scheduler.next()) != null)
+                    sc.send(new Chunk(job, range));
+            }
+        }
+    }
+
+    /**
+     * Called by sc's reader thread when a chunk has been answered.
+     */
+    synchronized void chunkDone(SubClient sc, Chunk chunk) {
+        chunk.job.scheduler.complete(chunk.range, chunk.found);
+        finishIfDone(chunk.job);
+        dispatch();
+    }
+
+    /**
+     * Called by sc's reader thread when the server cancelled a chunk instead
+     * of answering it.
+     */
+    synchronized void chunkCancelled(SubClient sc, Chunk chunk) {
+        final Job job = chunk.job;
+        // Unless we cancelled it ourselves, the server did, most likely
+        // because it ran past its request timeout: search it again in
+        // smaller pieces, after a while.
+        if (!job.result.isDone() && !closed) {
+            int cancellations = chunk.range.cancellations + 1;
+            if (cancellations >= MAX_CANCELLATIONS) {
+                jobs.remove(job);
+                job.result.completeExceptionally(new IOException("range " + chunk.range
+                        + " of " + job.scheduler.getN() + " cancelled by the servers "
+                        + cancellations + " times"));
+                for (SubClient other : subClients)
+                    other.cancel(job);
+            } else {
+                final List<RangeScheduler.Range> halves = chunk.range.split();
+                try {
+                    health.schedule(() -> retry(job, halves),
+                            CANCEL_BACKOFF << (cancellations - 1), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Closing.
+                }
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Hand out again the parts of a chunk a server cancelled.
+     */
+    private synchronized void retry(Job job, List<RangeScheduler.Range> parts) {
+        if (job.result.isDone())
+            return;
+        for (RangeScheduler.Range range : parts)
+            job.scheduler.abandon(range);
+        dispatch();
+    }
+
+    /**
+     * Called by sc's reader thread when its connection has failed.
+     * @param lost The chunks sc had not answered.
+     */
+    synchronized void connectionLost(SubClient sc, List<Chunk> lost, IOException cause) {
+        subClients.remove(sc);
+        for (Chunk chunk : lost)
+            chunk.job.scheduler.abandon(chunk.range);
+        if (subClients.isEmpty()) {
+            allLostAt = System.nanoTime();
+            // Closed connections are not reopened.
+            if (closed) {
+                failAll(cause);
+                return;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Ping every connection, drop the ones that have stopped answering and
+     * reopen missing connections whose server is due for another attempt.
+     * Runs once per HEARTBEAT_INTERVAL.
+     */
+    private void checkHealth() {
+        long silence = TimeUnit.MILLISECONDS.toNanos(MISSED_HEARTBEATS * HEARTBEAT_INTERVAL);
+        List<SubClient> open;
+        synchronized (this) {
+            if (closed)
+                return;
+            open = new ArrayList<SubClient>(subClients);
+        }
+        int[] healthy = new int[hostNames.size()];
+        for (SubClient sc : open) {
+            if (sc.silentFor() > silence) {
+                // Its reader reports the chunks it had as lost.
+                sc.abort();
+            } else {
+                sc.ping();
+                healthy[sc.server]++;
+            }
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (int i = 0; i < hostNames.size(); i++) {
+                if (now - nextAttempt[i] < 0)
+                    continue;
+                for (int k = healthy[i] + connecting[i]; k < connectionsPerServer; k++) {
+                    final int server = i;
+                    connecting[i]++;
+                    connector.execute(() -> reconnect(server));
+                }
+            }
+            if (subClients.isEmpty() && !jobs.isEmpty()
+                    && now - allLostAt > TimeUnit.MILLISECONDS.toNanos(GIVE_UP))
+                failAll(new IOException("no server reachable"));
+        }
+    }
+
+    /**
+     * Try once to open another connection to server, and use it at once.
+     */
+    private void reconnect(int server) {
+        SubClient sc = null;
+        try {
+            sc = connect(server);
+        } catch (IOException e) {
+            // Tried again once the back-off has passed.
+        }
+        synchronized (this) {
+            connecting[server]--;
+            if (sc == null) {
+                failed(server);
+                return;
+            }
+            backoff[server] = 0;
+            if (closed) {
+                sc.abort();
+                return;
+            }
+            subClients.add(sc);
+            sc.start();
+            dispatch();
+        }
+    }
+
+    private void failAll(IOException cause) {
+        for (Job job : jobs)
+            job.result.completeExceptionally(cause);
+        jobs.clear();
+    }
+
+    private void finishIfDone(Job job) {
+        if (job.scheduler.isFinished()) {
+            jobs.remove(job);
+            job.result.complete(job.scheduler.getFactors());
+            for (SubClient sc : subClients)
+                sc.cancel(job);
         }
-        
-        // i*sqrt(N)/i might not equal sqrtN.
-        // Remove the last element and add sqrt(N) instead.
-        intervals.remove(intervals.size() -1);
-        intervals.add(sqrtN);
-        
-        return intervals;
     }
     
+    /**
+     * Close the connections to all servers. Numbers still in progress
+     * fail with an IOException.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        List<SubClient> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<SubClient>(subClients);
+            if (open.isEmpty())
+                failAll(new IOException("client closed"));
+        }
+        health.shutdownNow();
+        connector.shutdownNow();
+        for (SubClient sc : open)
+            sc.close();
+    }
         
     /**
      * See class description for use of args.
@@ -163,7 +546,7 @@ public class PrimeFactorsClient {
             
       // Collect args and add them to the appropriate lists.
       for (int i = 0; i < args.length; i++) {
-          int delimiterPosition = args[0].indexOf(":");
+          int delimiterPosition = args[i].indexOf(":");
           if (delimiterPosition == -1) {
               System.err.println("Usage: <host name>:<port>");
               System.exit(1);
@@ -181,26 +564,34 @@ public class PrimeFactorsClient {
       }
       
       // Make a new client and reply to user input until user types "bb".
+      // Every number is sent as soon as it is read; replies are printed in
+      // input order.
       PrimeFactorsClient client = new PrimeFactorsClient(hosts, ports);
       BufferedReader stdIn = new BufferedReader(
               new InputStreamReader(System.in));
+      CompletableFuture<Void> printed = CompletableFuture.completedFuture(null);
       
       try {
-          String fromUser = stdIn.readLine();
-          
-          while (!fromUser.equals("bb")) {
-              if (fromUser.matches("\\d+")) {
-                  client.sendRequest(new BigInteger(fromUser));
-                  String reply = client.getReply(fromUser);
-                  System.out.println(reply); 
+          String fromUser;
+          while ((fromUser = stdIn.readLine()) != null && !fromUser.equals("bb")) {
+              final String number = fromUser;
+              CompletableFuture<String> reply;
+              if (number.matches("\\d+") 
+                      && new BigInteger(number).compareTo(BigInteger.ONE) > 0) {
+                  reply = client.factor(new BigInteger(number)).handle(
+                          (factors, e) -> e == null ? format(number, factors)
+                                  : ">>> " + number + " failed: " + e.getMessage());
               } else {
-                  System.out.println(">>> invalid");
+                  reply = CompletableFuture.completedFuture(">>> invalid");
               }
-              fromUser = stdIn.readLine();
+              printed = printed.thenCombine(reply, (v, line) -> {
+                  System.out.println(line);
+                  return null;
+              });
           }
+          printed.join();
       } finally {
-          for (SubClient sc : client.subClients)
-              sc.close(); 
+          client.close();
           stdIn.close();
       } 
     }     
@@ -208,58 +599,313 @@ public class PrimeFactorsClient {
 
 class SubClient {
     
-    private static final String SERVER_DONE = "done";
+    private static final String SERVER_DONE = "done ";
+    private static final String SERVER_FOUND = "found ";
     private static final String SERVER_FACTOR = "factor ";
+    private static final String SERVER_INVALID = "invalid";
+    private static final String SERVER_CANCELLED = "cancelled ";
+    private static final String SERVER_PROGRESS = "progress ";
+    private static final String SERVER_CANCEL = "cancel ";
+    private static final String SERVER_PING = "ping";
+    private static final String SERVER_PONG = "pong";
     
+    /** Index of the server among those of the client. */
+    final int server;
+    private final PrimeFactorsClient client;
     private final Socket socket;
-    private final BufferedReader in;
+    private final DataInputStream in;
+    private final OutputStream rawOut;
     private final PrintWriter out;
+    private final Thread reader;
+    // True if the server accepted binary frames for this connection.
+    private final boolean binary;
+    // Id of the next frame. Guarded by this.
+    private int nextId = 0;
+    // Requests sent and not yet answered, in the order they were sent;
+    // the server answers them in that order. Guarded by this.
+    private final Deque<PrimeFactorsClient.Chunk> inFlight =
+            new ArrayDeque<PrimeFactorsClient.Chunk>();
+    private boolean alive = true;
+    // When anything was last read from the server.
+    private volatile long lastHeard = System.nanoTime();
     
     /**
      * Make a sub client and connect it to server.
+     * @param client Client told about replies and failures.
+     * @param server Index of the server among those of client.
      * @param hostName
      * @param port
+     * @param binary True to ask the server for binary frames; the text
+     *        protocol is used if the server does not support them.
+     * @param timeout Milliseconds to wait for the server to accept the
+     *        connection and answer the switch to binary frames.
      * @throws IOException
      */
-    SubClient(String hostName, int port) throws IOException {
-        socket = new Socket(hostName, port);
-        in = new BufferedReader(
-                new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(
-                new OutputStreamWriter(socket.getOutputStream()));
+    SubClient(PrimeFactorsClient client, int server, String hostName, int port,
+            boolean binary, int timeout) throws IOException {
+        this.client = client;
+        this.server = server;
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostName, port), timeout);
+            socket.setSoTimeout(timeout);
+            in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            rawOut = new BufferedOutputStream(socket.getOutputStream());
+            out = new PrintWriter(
+                    new OutputStreamWriter(rawOut, StandardCharsets.US_ASCII));
+            this.binary = binary && negotiateBinary();
+            // From now on heartbeats tell whether the server is there.
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        reader = new Thread(this::readReplies, "reader " + hostName + ":" + port);
+        reader.setDaemon(true);
     }
-        
+
     /**
-     * Send a request to server.
-     * 
-     * @param n The integer to be factorised.
-     * @param low Low factor bound.
-     * @param high High factor bound.
+     * Ask the server to switch the connection to binary frames.
+     * @return True if it did.
      * @throws IOException
      */
-    public void sendRequest(BigInteger n, BigInteger low, BigInteger high)
-            throws IOException {
-        out.println(SERVER_FACTOR + n + " " + low + " " + high);
+    private boolean negotiateBinary() throws IOException {
+        out.println(BinaryProtocol.HELLO);
         out.flush();
+        String fromServer;
+        do {
+            fromServer = BinaryProtocol.readLine(in);
+            if (fromServer == null)
+                throw new IOException("connection to server lost");
+        } while (fromServer.length() == 0); // Skip the greeting.
+        return fromServer.equals(BinaryProtocol.HELLO);
+    }
+
+    /**
+     * Start reading replies.
+     */
+    void start() {
+        reader.start();
+    }
+
+    synchronized boolean isAlive() {
+        return alive;
+    }
+
+    synchronized int inFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return Nanoseconds since anything was read from the server.
+     */
+    long silentFor() {
+        return System.nanoTime() - lastHeard;
+    }
+
+    /**
+     * Ask the server for a sign of life.
+     */
+    synchronized void ping() {
+        if (!alive)
+            return;
+        boolean failed;
+        if (binary) {
+            try {
+                rawOut.write(new BinaryProtocol.Frame(0, BinaryProtocol.PING,
+                        Collections.<BigInteger>emptyList()).encode());
+                rawOut.flush();
+                failed = false;
+            } catch (IOException e) {
+                failed = true;
+            }
+        } else {
+            out.println(SERVER_PING);
+            out.flush();
+            failed = out.checkError();
+        }
+        if (failed)
+            closeQuietly();
+    }
+
+    /**
+     * Drop the connection. The chunks in flight are reported as lost.
+     */
+    void abort() {
+        closeQuietly();
+    }
+        
+    /**
+     * Send a chunk request to server.
+     * @param chunk
+     */
+    synchronized void send(PrimeFactorsClient.Chunk chunk) {
+        inFlight.add(chunk);
+        BigInteger n = chunk.job.scheduler.getN();
+        boolean failed;
+        if (binary) {
+            chunk.id = nextId++;
+            try {
+                rawOut.write(BinaryProtocol.request(chunk.id, n, chunk.range.lo, chunk.range.hi));
+                rawOut.flush();
+                failed = false;
+            } catch (IOException e) {
+                failed = true;
+            }
+        } else {
+            out.println(SERVER_FACTOR + n + " " + chunk.range.lo + " " + chunk.range.hi);
+            out.flush();
+            failed = out.checkError();
+        }
+        // A failed write also closes the input, so the reader reports it.
+        if (failed)
+            closeQuietly();
+    }
+
+    /**
+     * Ask the server to stop working on the chunks of job in flight. Each is
+     * still answered, either normally or as cancelled.
+     * @param job
+     */
+    synchronized void cancel(PrimeFactorsClient.Job job) {
+        if (!alive)
+            return;
+        boolean any = false;
+        for (PrimeFactorsClient.Chunk chunk : inFlight) {
+            if (chunk.job != job)
+                continue;
+            any = true;
+            if (binary) {
+                try {
+                    rawOut.write(new BinaryProtocol.Frame(chunk.id, BinaryProtocol.CANCEL,
+                            Collections.<BigInteger>emptyList()).encode());
+                } catch (IOException e) {
+                    closeQuietly();
+                    return;
+                }
+            } else {
+                out.println(SERVER_CANCEL + job.scheduler.getN() + " "
+                        + chunk.range.lo + " " + chunk.range.hi);
+            }
+        }
+        if (!any)
+            return;
+        boolean failed;
+        if (binary) {
+            try {
+                rawOut.flush();
+                failed = false;
+            } catch (IOException e) {
+                failed = true;
+            }
+        } else {
+            out.flush();
+            failed = out.checkError();
+        }
+        if (failed)
+            closeQuietly();
     }
     
     /**
-     * Get a reply from server.
-     * @return The list of factors found by server.
-     * @throws IOException
+     * Read replies until the connection fails or is closed, matching
+     * each to the oldest request in flight.
+     */
+    private void readReplies() {
+        IOException failure = null;
+        try {
+            if (binary)
+                readFrames();
+            else
+                readLines();
+            failure = new IOException("connection to server lost");
+        } catch (IOException | RuntimeException e) {
+            failure = e instanceof IOException ? (IOException) e
+                    : new IOException("malformed reply", e);
+        }
+        List<PrimeFactorsClient.Chunk> lost;
+        synchronized (this) {
+            alive = false;
+            lost = new ArrayList<PrimeFactorsClient.Chunk>(inFlight);
+            inFlight.clear();
+        }
+        closeQuietly();
+        client.connectionLost(this, lost, failure);
+    }
+
+    /**
+     * Read reply frames until the connection ends.
+     * @throws IOException if it fails or a reply does not match its request
      */
-    public List<String> getReply() throws IOException {
-        List<String> factors = new LinkedList<>();
+    private void readFrames() throws IOException {
+        BinaryProtocol.Frame frame;
+        while ((frame = BinaryProtocol.read(in)) != null) {
+            lastHeard = System.nanoTime();
+            if (frame.type == BinaryProtocol.PROGRESS || frame.type == BinaryProtocol.PONG)
+                continue;
+            PrimeFactorsClient.Chunk chunk;
+            synchronized (this) {
+                chunk = inFlight.poll();
+            }
+            if (chunk == null || frame.id != chunk.id)
+                throw new IOException("reply out of order: " + frame.id);
+            if (frame.type == BinaryProtocol.CANCELLED) {
+                client.chunkCancelled(this, chunk);
+                continue;
+            }
+            if (frame.type != BinaryProtocol.FOUND)
+                throw new IOException("server refused request");
+            chunk.found.addAll(frame.numbers);
+            client.chunkDone(this, chunk);
+        }
+    }
+
+    /**
+     * Read text replies until the connection ends.
+     * @throws IOException if it fails or a reply does not match its request
+     */
+    private void readLines() throws IOException {
+        BufferedReader lines = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.US_ASCII));
         String fromServer;
-        
-        while ((fromServer = in.readLine()) != null 
-                && fromServer.indexOf(SERVER_DONE) == -1) {
-            if (fromServer.length() > 0) {
-                String[] result = fromServer.split(" ");
-                factors.add(result[2]); // Factor is at position 2.
+        while ((fromServer = lines.readLine()) != null) {
+            lastHeard = System.nanoTime();
+            if (fromServer.length() == 0 || fromServer.startsWith(SERVER_PROGRESS)
+                    || fromServer.equals(SERVER_PONG))
+                continue;
+            PrimeFactorsClient.Chunk chunk;
+            synchronized (this) {
+                chunk = inFlight.peek();
+            }
+            if (chunk == null || fromServer.startsWith(SERVER_INVALID))
+                throw new IOException("unexpected reply: " + fromServer);
+            String[] result = fromServer.split(" ");
+            if (!new BigInteger(result[1]).equals(chunk.job.scheduler.getN()))
+                throw new IOException("reply out of order: " + fromServer);
+            if (fromServer.startsWith(SERVER_FOUND)) {
+                chunk.found.add(new BigInteger(result[2])); // Factor is at position 2.
+            } else if (fromServer.startsWith(SERVER_DONE)) {
+                synchronized (this) {
+                    inFlight.poll();
+                }
+                client.chunkDone(this, chunk);
+            } else if (fromServer.startsWith(SERVER_CANCELLED)) {
+                synchronized (this) {
+                    inFlight.poll();
+                }
+                client.chunkCancelled(this, chunk);
+            } else {
+                throw new IOException("unexpected reply: " + fromServer);
             }
         }
-        return factors;
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
     }
     
     /**
@@ -267,8 +913,9 @@ class SubClient {
      * @throws IOException
      */
     public void close() throws IOException {
+        // Closing the socket first wakes the reader blocked in readLine.
+        socket.close();
         out.close();
         in.close();
-        socket.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,338 @@
+package primefactors.factors.client;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import primefactors.factors.server.FactorCache;
+import primefactors.factors.server.PrimeFactorsServer;
+import primefactors.util.BigMath;
+import primefactors.util.SearchProgress;
+
+public class PrimeFactorsClientTest {
+    // Two primes near 2^61 and 2^62: a chunk of its search range takes far
+    // longer than a short request timeout.
+    private static final BigInteger SEMIPRIME = BigInteger.ONE.shiftLeft(61)
+            .subtract(BigInteger.ONE).multiply(BigInteger.ONE.shiftLeft(62).nextProbablePrime());
+
+    private static BigInteger big(long n) {
+        return BigInteger.valueOf(n);
+    }
+
+    private static List<BigInteger> bigs(long... ns) {
+        BigInteger[] result = new BigInteger[ns.length];
+        for (int i = 0; i < ns.length; i++)
+            result[i] = big(ns[i]);
+        return Arrays.asList(result);
+    }
+
+    /**
+     * A cache whose searches never finish until released or cancelled, so
+     * that a chunk stays in flight.
+     */
+    private static class StuckCache extends FactorCache {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public List<BigInteger> findAllPrimeFactors(BigInteger n, BigInteger lo, BigInteger hi,
+                SearchProgress progress, ForkJoinPool pool) {
+            try {
+                while (!release.await(10, TimeUnit.MILLISECONDS))
+                    if (!progress.proceed(lo))
+                        throw new CancellationException();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Run server on a thread of its own.
+     */
+    private static Thread serve(final PrimeFactorsServer server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Wait until server has been sent a factor request.
+     */
+    private static void awaitRequest(PrimeFactorsServer server) throws InterruptedException {
+        while (server.getMetrics().counter("requests.factor").sum() == 0)
+            Thread.sleep(10);
+    }
+
+    private static PrimeFactorsClient connect(PrimeFactorsServer... servers)
+            throws IOException {
+        List<String> hosts = Collections.nCopies(servers.length, "localhost");
+        Integer[] ports = new Integer[servers.length];
+        for (int i = 0; i < servers.length; i++)
+            ports[i] = servers[i].getPort();
+        return new PrimeFactorsClient(hosts, Arrays.asList(ports));
+    }
+
+    @Test
+    public void testChunksCancelledByServerFailTheNumber() throws Exception {
+        // Cancels every request not answered within 20ms.
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 20);
+        serve(server);
+        PrimeFactorsClient client = connect(server);
+        try {
+            // Quick chunks are answered in time ...
+            assertEquals(bigs(2, 2, 3), client.factor(big(12)).get(10, TimeUnit.SECONDS));
+
+            // ... but these never are, however often they are split.
+            CompletableFuture<List<BigInteger>> slow = client.factor(SEMIPRIME);
+            try {
+                slow.get(30, TimeUnit.SECONDS);
+                fail("factored " + SEMIPRIME);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(
+                        "cancelled by the servers " + PrimeFactorsClient.MAX_CANCELLATIONS));
+            }
+            assertTrue(server.getMetrics().counter("requests.timedout").sum()
+                    >= PrimeFactorsClient.MAX_CANCELLATIONS);
+        } finally {
+            client.close();
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Factor many numbers at once over one connection to server.
+     */
+    private static void factorPipelined(boolean binary) throws Exception {
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0);
+        serve(server);
+        PrimeFactorsClient client = new PrimeFactorsClient(Arrays.asList("localhost"),
+                Arrays.asList(server.getPort()), 32, binary);
+        try {
+            // Each of several chunks; replies for the numbers interleave.
+            List<BigInteger> numbers = new ArrayList<BigInteger>();
+            for (long p : new long[] { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29 })
+                for (long q : new long[] { 1000003, 1000033, 1000037 })
+                    numbers.add(big(p * q));
+            numbers.add(big(1000003L * 1000033L));
+            numbers.add(big(1000000000039L));
+            List<CompletableFuture<List<BigInteger>>> results =
+                    new ArrayList<CompletableFuture<List<BigInteger>>>();
+            for (BigInteger n : numbers)
+                results.add(client.factor(n));
+            for (int i = 0; i < numbers.size(); i++)
+                assertEquals(BigMath.factor(numbers.get(i)),
+                        results.get(i).get(30, TimeUnit.SECONDS));
+            // All of them on the one connection.
+            assertEquals(1, server.getMetrics().counter("connections.accepted").sum());
+            assertTrue(server.getMetrics().counter("requests.factor").sum() > numbers.size());
+        } finally {
+            client.close();
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testManyNumbersInFlightOnOneConnection() throws Exception {
+        factorPipelined(false);
+    }
+
+    @Test
+    public void testManyNumbersInFlightOnOneBinaryConnection() throws Exception {
+        factorPipelined(true);
+    }
+
+    /**
+     * Answer the requests of one connection accepted on fake, the way a
+     * server does, except that the first is answered for n + 1 if wrong.
+     * @return The lines read from the client.
+     */
+    private static List<String> fakeServe(ServerSocket fake, BigInteger n, boolean wrong)
+            throws IOException {
+        List<String> lines = new ArrayList<String>();
+        try (Socket socket = fake.accept()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println();
+            for (String line; (line = in.readLine()) != null; ) {
+                lines.add(line);
+                String[] request = line.split(" ");
+                if (line.equals("ping")) {
+                    out.println("pong");
+                } else if (request[0].equals("factor")) {
+                    BigInteger lo = new BigInteger(request[2]);
+                    BigInteger hi = new BigInteger(request[3]);
+                    if (wrong) {
+                        out.println("done " + n.add(BigInteger.ONE) + " " + lo + " " + hi);
+                        wrong = false;
+                        continue;
+                    }
+                    for (BigInteger f : BigMath.findAllPrimeFactors(n, lo, hi))
+                        out.println("found " + n + " " + f);
+                    out.println("done " + n + " " + lo + " " + hi);
+                }
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testReplyForAnotherNumberDropsTheConnection() throws Exception {
+        final BigInteger n = big(1000003L * 1000033L);
+        final ServerSocket fake = new ServerSocket(0);
+        final List<List<String>> connections = new CopyOnWriteArrayList<List<String>>();
+        Thread serving = new Thread(() -> {
+            try {
+                // The first connection answers its first request for n + 1;
+                // the client drops it, and the next answers correctly.
+                connections.add(fakeServe(fake, n, true));
+                connections.add(fakeServe(fake, n, false));
+            } catch (IOException e) {
+                // Closed below.
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        PrimeFactorsClient client = new PrimeFactorsClient(Arrays.asList("localhost"),
+                Arrays.asList(fake.getLocalPort()));
+        try {
+            // Long before a silent connection would be given up on.
+            assertEquals(bigs(1000003, 1000033), client.factor(n).get(
+                    PrimeFactorsClient.HEARTBEAT_INTERVAL * 3, TimeUnit.MILLISECONDS));
+            assertFalse("first connection kept", connections.isEmpty());
+            List<String> first = connections.get(0);
+            assertTrue(first.toString(), first.get(0).startsWith("factor " + n + " "));
+        } finally {
+            client.close();
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testJobSurvivesServerRestart() throws Exception {
+        BigInteger n = big(1000003L * 1000033L);
+        StuckCache stuck = new StuckCache();
+        PrimeFactorsServer first = new PrimeFactorsServer(0, 4, 0, stuck);
+        int port = first.getPort();
+        serve(first);
+        PrimeFactorsClient client = connect(first);
+        PrimeFactorsServer second = null;
+        try {
+            CompletableFuture<List<BigInteger>> result = client.factor(n);
+            awaitRequest(first);
+            // Drops the connection with the chunk still in flight.
+            assertFalse(first.shutdown(100, TimeUnit.MILLISECONDS));
+
+            // Attempts to reconnect fail for a while and then back off.
+            Thread.sleep(2 * PrimeFactorsClient.HEARTBEAT_INTERVAL);
+            assertFalse(result.isDone());
+            second = new PrimeFactorsServer(port, 4, 0);
+            serve(second);
+            assertEquals(bigs(1000003, 1000033), result.get(20, TimeUnit.SECONDS));
+            assertTrue(second.getMetrics().counter("requests.factor").sum() > 0);
+        } finally {
+            client.close();
+            stuck.release.countDown();
+            if (second != null)
+                second.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSilentServerIsDropped() throws Exception {
+        final BigInteger n = big(1000003L * 1000033L);
+        final ServerSocket fake = new ServerSocket(0);
+        final List<String> silent = new CopyOnWriteArrayList<String>();
+        final long[] dropped = new long[1];
+        Thread serving = new Thread(() -> {
+            try {
+                // The first connection reads but never answers, not even
+                // the pings ...
+                try (Socket socket = fake.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(
+                            socket.getInputStream(), StandardCharsets.US_ASCII));
+                    new PrintWriter(socket.getOutputStream(), true).println();
+                    for (String line; (line = in.readLine()) != null; )
+                        silent.add(line);
+                    dropped[0] = System.nanoTime();
+                }
+                // ... so the client gives up on it and opens another.
+                fakeServe(fake, n, false);
+            } catch (IOException e) {
+                // Closed below.
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        long started = System.nanoTime();
+        PrimeFactorsClient client = new PrimeFactorsClient(Arrays.asList("localhost"),
+                Arrays.asList(fake.getLocalPort()));
+        try {
+            assertEquals(bigs(1000003, 1000033), client.factor(n).get(20, TimeUnit.SECONDS));
+            assertTrue(silent.toString(), silent.contains("ping"));
+            assertTrue(dropped[0] - started >= TimeUnit.MILLISECONDS.toNanos(
+                    2 * PrimeFactorsClient.HEARTBEAT_INTERVAL));
+        } finally {
+            client.close();
+            fake.close();
+        }
+    }
+
+    @Test
+    public void testJobFailsOnceNoServerIsReachable() throws Exception {
+        StuckCache stuck = new StuckCache();
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0, stuck);
+        serve(server);
+        PrimeFactorsClient client = connect(server);
+        try {
+            CompletableFuture<List<BigInteger>> result = client.factor(big(1000003L * 1000033L));
+            awaitRequest(server);
+            // The server goes away for good.
+            assertFalse(server.shutdown(100, TimeUnit.MILLISECONDS));
+            long lost = System.nanoTime();
+            try {
+                result.get(PrimeFactorsClient.GIVE_UP + 10000, TimeUnit.MILLISECONDS);
+                fail("factored without a server");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            }
+            // Not before GIVE_UP has passed.
+            assertTrue(System.nanoTime() - lost >= TimeUnit.MILLISECONDS.toNanos(
+                    PrimeFactorsClient.GIVE_UP));
+        } finally {
+            client.close();
+            stuck.release.countDown();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package primefactors.factors.client;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import primefactors.util.BigMath;
+import primefactors.util.Primality;
+
+/**
+ * Hands out the search space [2, sqrt(N)] of one query in small chunks, to
+ * whichever server asks next, and assembles the factors they report.
+ *
+ * Because servers pull a new chunk only when they finish the last one, fast
+ * servers and sparse parts of the range take more chunks and no server is
+ * left holding a large slow range at the end. Once the part of N not yet
+ * accounted for (the cofactor) is 1 or prime, the factorisation is complete
+ * and no further chunks are handed out.
+ *
+ * The search also narrows as factors are found: only primes up to the square
+ * root of the cofactor need searching, since the cofactor has at most one
+ * prime factor above that, and it is whatever is left at the end. Once every
+ * chunk from 2 up to that bound has been answered, the search is complete.
+ *
+ * Thread safe: called concurrently by the threads driving each server.
+ */
+class RangeScheduler {
+
+    // Chunks per server, so that uneven servers still finish close together.
+    private static final int CHUNKS_PER_SERVER = 16;
+    // Smallest chunk worth a round trip.
+    private static final BigInteger MIN_CHUNK = BigInteger.valueOf(1 << 16);
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    /**
+     * A chunk [lo, hi] of the search space.
+     */
+    static class Range {
+        final BigInteger lo;
+        final BigInteger hi;
+        // Times a server cancelled this chunk or the chunks it was split from.
+        final int cancellations;
+
+        Range(BigInteger lo, BigInteger hi) {
+            this(lo, hi, 0);
+        }
+
+        Range(BigInteger lo, BigInteger hi, int cancellations) {
+            this.lo = lo;
+            this.hi = hi;
+            this.cancellations = cancellations;
+        }
+
+        /**
+         * @return The two halves of this chunk, or this chunk alone if it is
+         *         a single candidate, each with one more cancellation.
+         */
+        List<Range> split() {
+            int c = cancellations + 1;
+            if (lo.equals(hi))
+                return Collections.singletonList(new Range(lo, hi, c));
+            BigInteger mid = lo.add(hi).shiftRight(1);
+            return Arrays.asList(new Range(lo, mid, c), new Range(mid.add(BigInteger.ONE), hi, c));
+        }
+
+        @Override
+        public String toString() {
+            return "[" + lo + ", " + hi + "]";
+        }
+    }
+
+    private final BigInteger n;
+    private final BigInteger chunk;
+    // Start of the next fresh chunk.
+    private BigInteger next = TWO;
+    // Chunks given back by servers that failed, to be handed out again.
+    private final Deque<Range> retry = new ArrayDeque<Range>();
+    // N divided by every factor accepted so far.
+    private BigInteger cofactor;
+    // Largest candidate still worth searching: sqrt(cofactor).
+    private BigInteger bound;
+    // Every chunk within [2, prefix] has been answered.
+    private BigInteger prefix = BigInteger.ONE;
+    // Answered chunks above the prefix, by their low end.
+    private final TreeMap<BigInteger, BigInteger> answered = new TreeMap<BigInteger, BigInteger>();
+    private final List<BigInteger> factors = new ArrayList<BigInteger>();
+    private boolean finished = false;
+
+    // Rep invariant: n >= 2, product(factors) * cofactor == n,
+    //   bound == sqrt(cofactor), cofactor has no prime factor <= prefix
+
+    /**
+     * @param n The query number, >= 2.
+     * @param servers Number of servers sharing the work, > 0.
+     */
+    RangeScheduler(BigInteger n, int servers) {
+        this.n = n;
+        this.cofactor = n;
+        this.bound = BigMath.sqrt(n);
+        BigInteger width = bound.divide(BigInteger.valueOf(servers * CHUNKS_PER_SERVER));
+        this.chunk = width.max(MIN_CHUNK);
+        if (bound.compareTo(TWO) < 0)
+            finish();
+    }
+
+    /**
+     * @return The query number.
+     */
+    BigInteger getN() {
+        return n;
+    }
+
+    /**
+     * Take the next chunk to search.
+     * @return A chunk, or null if there is nothing left to hand out.
+     */
+    synchronized Range next() {
+        if (finished)
+            return null;
+        Range range;
+        // A failed chunk above the bound is no longer needed.
+        while ((range = retry.poll()) != null && range.lo.compareTo(bound) > 0)
+            ;
+        if (range == null) {
+            if (next.compareTo(bound) > 0)
+                return null;
+            BigInteger hi = next.add(chunk).subtract(BigInteger.ONE).min(bound);
+            range = new Range(next, hi);
+            next = hi.add(BigInteger.ONE);
+        }
+        return range;
+    }
+
+    /**
+     * Record the reply of a server for a chunk it was given.
+     * @param range A chunk returned by next().
+     * @param found Primes the server reported for it.
+     */
+    synchronized void complete(Range range, List<BigInteger> found) {
+        if (finished)
+            return;
+        answered.put(range.lo, range.hi);
+        for (Map.Entry<BigInteger, BigInteger> first;
+                (first = answered.firstEntry()) != null
+                && first.getKey().compareTo(prefix.add(BigInteger.ONE)) <= 0; ) {
+            prefix = prefix.max(first.getValue());
+            answered.pollFirstEntry();
+        }
+
+        boolean divided = false;
+        for (BigInteger f : found) {
+            // A server also reports its leftover cofactor when that is prime,
+            // so the same prime can arrive twice; only count it while it
+            // still divides what is left.
+            if (cofactor.mod(f).signum() == 0) {
+                factors.add(f);
+                cofactor = cofactor.divide(f);
+                divided = true;
+            }
+        }
+        if (divided) {
+            bound = BigMath.sqrt(cofactor);
+            if (Primality.isProbablePrime(cofactor))
+                finish();
+        }
+        if (prefix.compareTo(bound) >= 0)
+            finish();
+    }
+
+    /**
+     * Give back a chunk whose server failed, so another server can take it.
+     * @param range A chunk returned by next().
+     */
+    synchronized void abandon(Range range) {
+        if (!finished)
+            retry.push(range);
+    }
+
+    /**
+     * @return True if the factorisation of N is complete.
+     */
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @requires isFinished()
+     * @return The prime factors of N in increasing order, with multiplicity.
+     */
+    synchronized List<BigInteger> getFactors() {
+        assert finished;
+        List<BigInteger> result = new ArrayList<BigInteger>(factors);
+        // Every prime up to sqrt(cofactor) has been divided out, so what is
+        // left is 1 or a single prime.
+        if (!cofactor.equals(BigInteger.ONE))
+            result.add(cofactor);
+        Collections.sort(result);
+        return result;
+    }
+
+    private void finish() {
+        finished = true;
+        retry.clear();
+    }
+}
@@ -0,0 +1,164 @@
+package primefactors.factors.client;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import primefactors.util.BigMath;
+
+public class RangeSchedulerTest {
+
+    private static BigInteger big(long n) {
+        return BigInteger.valueOf(n);
+    }
+
+    private static List<BigInteger> bigs(long... ns) {
+        BigInteger[] result = new BigInteger[ns.length];
+        for (int i = 0; i < ns.length; i++)
+            result[i] = big(ns[i]);
+        return Arrays.asList(result);
+    }
+
+    /**
+     * @return What a server reports for range: the primes of primes that
+     *         lie in it, each as often as it divides n.
+     */
+    private static List<BigInteger> found(RangeScheduler.Range range, BigInteger n,
+            List<BigInteger> primes) {
+        List<BigInteger> found = new ArrayList<BigInteger>();
+        for (BigInteger p : primes)
+            if (p.compareTo(range.lo) >= 0 && p.compareTo(range.hi) <= 0)
+                for (BigInteger m = n; m.mod(p).signum() == 0; m = m.divide(p))
+                    found.add(p);
+        return found;
+    }
+
+    /**
+     * @return Every chunk scheduler has left to hand out.
+     */
+    private static List<RangeScheduler.Range> takeAll(RangeScheduler scheduler) {
+        List<RangeScheduler.Range> ranges = new ArrayList<RangeScheduler.Range>();
+        for (RangeScheduler.Range r; (r = scheduler.next()) != null; )
+            ranges.add(r);
+        return ranges;
+    }
+
+    @Test
+    public void testCompleteAndAbandonInAnyOrder() {
+        // Prime, so the whole of [2, sqrt(n)] must be answered.
+        BigInteger n = big(1000000000039L);
+        Random random = new Random(35);
+        for (int round = 0; round < 20; round++) {
+            RangeScheduler scheduler = new RangeScheduler(n, 2);
+            List<RangeScheduler.Range> ranges = takeAll(scheduler);
+            assertTrue(ranges.size() > 1);
+            Collections.shuffle(ranges, random);
+            // Some servers fail; their chunks are handed out again.
+            List<RangeScheduler.Range> failed = new ArrayList<RangeScheduler.Range>(
+                    ranges.subList(0, ranges.size() / 3));
+            for (RangeScheduler.Range r : failed)
+                scheduler.abandon(r);
+            List<RangeScheduler.Range> remaining = new ArrayList<RangeScheduler.Range>(
+                    ranges.subList(ranges.size() / 3, ranges.size()));
+            remaining.addAll(takeAll(scheduler));
+            assertEquals(ranges.size(), remaining.size());
+            Collections.shuffle(remaining, random);
+
+            for (RangeScheduler.Range r : remaining) {
+                assertFalse(scheduler.isFinished());
+                scheduler.complete(r, Collections.<BigInteger>emptyList());
+            }
+            assertTrue(scheduler.isFinished());
+            assertEquals(Arrays.asList(n), scheduler.getFactors());
+        }
+    }
+
+    @Test
+    public void testSamePrimeReportedByTwoChunks() {
+        // 3^2 * 1000003 * 1000033
+        List<BigInteger> primes = bigs(3, 1000003, 1000033);
+        BigInteger n = big(9 * 1000003L * 1000033L);
+        RangeScheduler scheduler = new RangeScheduler(n, 1);
+        RangeScheduler.Range first = scheduler.next();
+        RangeScheduler.Range second = scheduler.next();
+
+        // The first chunk is given up on, handed out again, and then
+        // answered by both servers.
+        scheduler.abandon(first);
+        RangeScheduler.Range retried = scheduler.next();
+        assertSame(first, retried);
+        scheduler.complete(retried, found(retried, n, primes));
+        scheduler.complete(first, found(first, n, primes));
+        // Another chunk reports 3 as well.
+        scheduler.complete(second, bigs(3));
+        assertFalse(scheduler.isFinished());
+
+        for (RangeScheduler.Range r : takeAll(scheduler))
+            scheduler.complete(r, found(r, n, primes));
+        assertTrue(scheduler.isFinished());
+        assertEquals(bigs(3, 3, 1000003, 1000033), scheduler.getFactors());
+    }
+
+    @Test
+    public void testCofactorBecomesPrimeMidRange() {
+        // The cofactor is prime once 1000003 is found, far below sqrt(n).
+        List<BigInteger> primes = bigs(1000003, 1000000000039L);
+        BigInteger n = big(1000003).multiply(big(1000000000039L));
+        RangeScheduler scheduler = new RangeScheduler(n, 1);
+        RangeScheduler.Range r;
+        List<RangeScheduler.Range> outstanding = new ArrayList<RangeScheduler.Range>();
+        while ((r = scheduler.next()) != null) {
+            // One chunk ahead is still being searched.
+            outstanding.add(r);
+            if (outstanding.size() > 1)
+                scheduler.complete(outstanding.get(0), found(outstanding.remove(0), n, primes));
+            if (scheduler.isFinished())
+                break;
+        }
+        assertTrue(scheduler.isFinished());
+        assertTrue(outstanding.get(0).hi.compareTo(BigMath.sqrt(n)) < 0);
+        assertNull(scheduler.next());
+
+        // Late answers change nothing.
+        scheduler.complete(outstanding.get(0), bigs(1000003));
+        assertEquals(primes, scheduler.getFactors());
+    }
+
+    @Test
+    public void testBoundNarrowsOnceAFactorIsFound() {
+        // Once 5 is found only sqrt(1000003 * 1000033) = 1000017 is left to
+        // search, about half of sqrt(n).
+        List<BigInteger> primes = bigs(5, 1000003, 1000033);
+        BigInteger n = big(5 * 1000003L * 1000033L);
+        BigInteger bound = big(1000017);
+        RangeScheduler scheduler = new RangeScheduler(n, 1);
+        List<RangeScheduler.Range> ranges = new ArrayList<RangeScheduler.Range>();
+        RangeScheduler.Range r;
+        do {
+            r = scheduler.next();
+            ranges.add(r);
+        } while (r.lo.compareTo(bound) <= 0);
+        RangeScheduler.Range beyond = ranges.remove(ranges.size() - 1);
+
+        scheduler.complete(ranges.remove(0), bigs(5));
+        // Nothing above the new bound is handed out, even when given back.
+        scheduler.abandon(beyond);
+        assertNull(scheduler.next());
+        assertFalse(scheduler.isFinished());
+
+        // The chunk holding 1000003 leaves the prime 1000033.
+        for (RangeScheduler.Range chunk : ranges) {
+            assertFalse(scheduler.isFinished());
+            scheduler.complete(chunk, found(chunk, n, primes));
+        }
+        assertTrue(scheduler.isFinished());
+        assertEquals(primes, scheduler.getFactors());
+    }
+}
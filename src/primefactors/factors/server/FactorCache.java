@@ -0,0 +1,348 @@
+package primefactors.factors.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import primefactors.util.AutoFactorizer;
+import primefactors.util.BigMath;
+import primefactors.util.SearchProgress;
+
+/**
+ * Bounded cache of findAllPrimeFactors results, shared by the threads of a
+ * server.
+ *
+ * Two caches are kept, each least recently used first and each limited in
+ * size and in the age of its entries:
+ *  - answers by (N, LowBound, HighBound), for repeated requests;
+ *  - complete factorisations by N, learned whenever an answer multiplies out
+ *    to N. Any range of such an N is answered from its factorisation without
+ *    searching, so overlapping ranges of a number already factored are free.
+ *
+ * Complete factorisations can also be kept in a FactorStore on disk, which is
+ * consulted when N is not in memory, so they outlive the server. Numbers
+ * below STORE_MIN_BITS are not stored: they factor faster than they are
+ * read back. A store that fails is reported and otherwise ignored.
+ *
+ * Results are computed outside the lock; two threads missing on the same key
+ * at once both compute it.
+ */
+public class FactorCache {
+
+    /** Entries per cache unless told otherwise. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    /** Lifetime of an entry in milliseconds unless told otherwise. */
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+    /** Bit length from which complete factorisations go to the store. */
+    public static final int STORE_MIN_BITS = 32;
+
+    /**
+     * A cached value and when it stops being valid.
+     */
+    private static class Entry {
+        final List<BigInteger> factors;
+        final long expires;
+
+        Entry(List<BigInteger> factors, long expires) {
+            this.factors = factors;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Key of a range request.
+     */
+    private static class RangeKey {
+        final BigInteger n;
+        final BigInteger lo;
+        final BigInteger hi;
+
+        RangeKey(BigInteger n, BigInteger lo, BigInteger hi) {
+            this.n = n;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RangeKey))
+                return false;
+            RangeKey other = (RangeKey) obj;
+            return n.equals(other.n) && lo.equals(other.lo) && hi.equals(other.hi);
+        }
+
+        @Override
+        public int hashCode() {
+            return (n.hashCode() * 31 + lo.hashCode()) * 31 + hi.hashCode();
+        }
+    }
+
+    // Rep invariant: maxEntries > 0, ttlNanos > 0, every cached list is
+    //   unmodifiable, every factorisation is sorted and multiplies out to its key
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<RangeKey, Entry> ranges;
+    private final Map<BigInteger, Entry> factorizations;
+    // Null if none.
+    private final FactorStore store;
+
+    private final AtomicLong rangeHits = new AtomicLong();
+    private final AtomicLong factorizationHits = new AtomicLong();
+    private final AtomicLong storeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Make a cache with DEFAULT_MAX_ENTRIES and DEFAULT_TTL.
+     */
+    public FactorCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * Make a cache.
+     * @param maxEntries Most entries in each of the two caches, > 0.
+     * @param ttl Milliseconds an entry stays valid, > 0.
+     */
+    public FactorCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, null);
+    }
+
+    /**
+     * Make a cache backed by a store of complete factorisations.
+     * @param maxEntries Most entries in each of the two caches, > 0.
+     * @param ttl Milliseconds an entry stays valid, > 0.
+     * @param store Store consulted for factorisations not in memory and
+     *        given every new one, or null for none.
+     */
+    public FactorCache(int maxEntries, long ttl, FactorStore store) {
+        if (maxEntries <= 0 || ttl <= 0)
+            throw new IllegalArgumentException();
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.ranges = lru();
+        this.factorizations = lru();
+        this.store = store;
+    }
+
+    private <K> Map<K, Entry> lru() {
+        return new LinkedHashMap<K, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * BigMath.findAllPrimeFactors, answered from the cache when possible.
+     * @param n BigInteger N such that 2 <= N
+     * @param lo, hi such that 1 <= lo <= hi
+     * @return As BigMath.findAllPrimeFactors; unmodifiable.
+     */
+    public List<BigInteger> findAllPrimeFactors(BigInteger n, BigInteger lo, BigInteger hi) {
+        return findAllPrimeFactors(n, lo, hi, SearchProgress.NONE);
+    }
+
+    /**
+     * BigMath.findAllPrimeFactors with progress, answered from the cache
+     * when possible. A search that is abandoned is not cached.
+     * @throws CancellationException if progress abandoned the search
+     */
+    public List<BigInteger> findAllPrimeFactors(BigInteger n, BigInteger lo, BigInteger hi,
+            SearchProgress progress) {
+        return findAllPrimeFactors(n, lo, hi, progress, null);
+    }
+
+    /**
+     * As findAllPrimeFactors(n, lo, hi, progress), but a search is spread
+     * over pool with BigMath.findAllPrimeFactorsParallel.
+     * @param pool Pool to search on, or null to search on the calling thread.
+     * @throws CancellationException if progress abandoned the search
+     */
+    public List<BigInteger> findAllPrimeFactors(BigInteger n, BigInteger lo, BigInteger hi,
+            SearchProgress progress, ForkJoinPool pool) {
+        RangeKey key = new RangeKey(n, lo, hi);
+        List<BigInteger> factors = get(ranges, key);
+        if (factors != null) {
+            rangeHits.incrementAndGet();
+            return factors;
+        }
+        List<BigInteger> factorization = get(factorizations, n);
+        if (factorization == null)
+            factorization = load(n);
+        if (factorization != null) {
+            factorizationHits.incrementAndGet();
+            factors = inRange(factorization, lo, hi);
+        } else {
+            misses.incrementAndGet();
+            factors = Collections.unmodifiableList(new ArrayList<BigInteger>(pool == null
+                    ? BigMath.findAllPrimeFactors(n, lo, hi, progress)
+                    : BigMath.findAllPrimeFactorsParallel(n, lo, hi, pool, progress)));
+            if (product(factors).equals(n)) {
+                List<BigInteger> sorted = new ArrayList<BigInteger>(factors);
+                Collections.sort(sorted);
+                put(factorizations, n, Collections.unmodifiableList(sorted));
+                save(n, sorted);
+            }
+        }
+        put(ranges, key, factors);
+        return factors;
+    }
+
+    /**
+     * BigMath.factor with progress, answered from the factorisation cache or
+     * the store when possible. The result is kept like any other complete
+     * factorisation; a search that is abandoned is not.
+     * @param n BigInteger N such that 2 <= N
+     * @return The prime factors of N in increasing order; unmodifiable.
+     * @throws CancellationException if progress abandoned the search
+     */
+    public List<BigInteger> factor(BigInteger n, SearchProgress progress) {
+        List<BigInteger> factorization = get(factorizations, n);
+        if (factorization == null)
+            factorization = load(n);
+        if (factorization != null) {
+            factorizationHits.incrementAndGet();
+            return factorization;
+        }
+        misses.incrementAndGet();
+        factorization = Collections.unmodifiableList(
+                BigMath.factor(n, new AutoFactorizer(new Random(), progress)));
+        put(factorizations, n, factorization);
+        save(n, factorization);
+        return factorization;
+    }
+
+    /**
+     * @return Number of requests answered from the range cache.
+     */
+    public long rangeHits() {
+        return rangeHits.get();
+    }
+
+    /**
+     * @return Number of requests answered from a known factorisation.
+     */
+    public long factorizationHits() {
+        return factorizationHits.get();
+    }
+
+    /**
+     * @return Number of the factorisation hits whose factorisation was read
+     *         from the store.
+     */
+    public long storeHits() {
+        return storeHits.get();
+    }
+
+    /**
+     * @return Number of requests that had to be computed.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of entries in the range cache and the factorisation
+     *         cache, including expired ones not yet dropped.
+     */
+    public synchronized int[] sizes() {
+        return new int[] { ranges.size(), factorizations.size() };
+    }
+
+    @Override
+    public String toString() {
+        int[] sizes = sizes();
+        return "range hits " + rangeHits() + ", factorisation hits " + factorizationHits()
+                + " (" + storeHits() + " from store), misses " + misses() + ", entries " + sizes[0] + "/" + sizes[1];
+    }
+
+    /**
+     * @return The factorisation of n from the store, now also in memory, or
+     *         null if it is not there.
+     */
+    private List<BigInteger> load(BigInteger n) {
+        if (store == null || n.bitLength() < STORE_MIN_BITS)
+            return null;
+        try {
+            List<BigInteger> factorization = store.get(n);
+            if (factorization != null) {
+                storeHits.incrementAndGet();
+                put(factorizations, n, factorization);
+            }
+            return factorization;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Keep the factorisation of n in the store.
+     */
+    private void save(BigInteger n, List<BigInteger> factorization) {
+        if (store == null || n.bitLength() < STORE_MIN_BITS)
+            return;
+        try {
+            store.put(n, factorization);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized <K> List<BigInteger> get(Map<K, Entry> map, K key) {
+        Entry entry = map.get(key);
+        if (entry == null)
+            return null;
+        if (System.nanoTime() - entry.expires > 0) {
+            map.remove(key);
+            return null;
+        }
+        return entry.factors;
+    }
+
+    private synchronized <K> void put(Map<K, Entry> map, K key, List<BigInteger> factors) {
+        map.put(key, new Entry(factors, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * findAllPrimeFactors(n, lo, hi) from the complete factorisation of n:
+     * the factors in range, then what is left of n if that is a single prime.
+     * @param factorization The prime factors of n in increasing order.
+     */
+    static List<BigInteger> inRange(List<BigInteger> factorization,
+            BigInteger lo, BigInteger hi) {
+        List<BigInteger> factors = new ArrayList<BigInteger>();
+        BigInteger outside = null;
+        int outsideCount = 0;
+        for (BigInteger f : factorization) {
+            if (f.compareTo(lo) >= 0 && f.compareTo(hi) <= 0) {
+                factors.add(f);
+            } else {
+                outside = f;
+                outsideCount++;
+            }
+        }
+        if (outsideCount == 1)
+            factors.add(outside);
+        return Collections.unmodifiableList(factors);
+    }
+
+    private static BigInteger product(List<BigInteger> factors) {
+        BigInteger product = BigInteger.ONE;
+        for (BigInteger f : factors)
+            product = product.multiply(f);
+        return product;
+    }
+}
@@ -0,0 +1,98 @@
+package primefactors.factors.server;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import primefactors.util.BigMath;
+import primefactors.util.SearchProgress;
+
+public class FactorCacheTest {
+
+    private static BigInteger big(long n) {
+        return BigInteger.valueOf(n);
+    }
+
+    private static List<BigInteger> bigs(long... ns) {
+        BigInteger[] result = new BigInteger[ns.length];
+        for (int i = 0; i < ns.length; i++)
+            result[i] = big(ns[i]);
+        return Arrays.asList(result);
+    }
+
+    @Test
+    public void testRepeatedRangeIsHit() {
+        FactorCache cache = new FactorCache(10, 60000);
+        assertEquals(bigs(2, 2, 3), cache.findAllPrimeFactors(big(12), big(2), big(3)));
+        assertEquals(bigs(2, 2, 3), cache.findAllPrimeFactors(big(12), big(2), big(3)));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.rangeHits());
+    }
+
+    @Test
+    public void testOtherRangeFromFactorization() {
+        FactorCache cache = new FactorCache(10, 60000);
+        // 2 * 3 * 5 * 7 * 7: the whole range gives the whole factorisation.
+        BigInteger n = big(1470);
+        cache.findAllPrimeFactors(n, big(2), big(38));
+        long[][] ranges = { { 2, 2 }, { 3, 5 }, { 6, 38 }, { 4, 6 }, { 1, 1 } };
+        for (long[] r : ranges)
+            assertEquals(BigMath.findAllPrimeFactors(n, big(r[0]), big(r[1])),
+                    cache.findAllPrimeFactors(n, big(r[0]), big(r[1])));
+        assertEquals(1, cache.misses());
+        assertEquals(ranges.length, cache.factorizationHits());
+    }
+
+    @Test
+    public void testIncompleteAnswerNotUsedAsFactorization() {
+        FactorCache cache = new FactorCache(10, 60000);
+        // 3 * 5 * 7 * 11: [3, 3] leaves the composite 385.
+        BigInteger n = big(1155);
+        assertEquals(bigs(3), cache.findAllPrimeFactors(n, big(3), big(3)));
+        assertEquals(bigs(5, 7), cache.findAllPrimeFactors(n, big(5), big(7)));
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        FactorCache cache = new FactorCache(2, 60000);
+        cache.findAllPrimeFactors(big(6), big(2), big(2));
+        cache.findAllPrimeFactors(big(10), big(2), big(3));
+        cache.findAllPrimeFactors(big(6), big(2), big(2));
+        cache.findAllPrimeFactors(big(14), big(2), big(3));
+        assertArrayEquals(new int[] { 2, 2 }, cache.sizes());
+        cache.findAllPrimeFactors(big(6), big(2), big(2));
+        assertEquals(2, cache.rangeHits());
+        // The range of 10 was evicted, but not its factorisation.
+        cache.findAllPrimeFactors(big(10), big(2), big(3));
+        assertEquals(3, cache.misses());
+        assertEquals(1, cache.factorizationHits());
+    }
+
+    @Test
+    public void testExpiredEntryRecomputed() throws InterruptedException {
+        FactorCache cache = new FactorCache(10, 1);
+        cache.findAllPrimeFactors(big(12), big(2), big(3));
+        Thread.sleep(5);
+        cache.findAllPrimeFactors(big(12), big(2), big(3));
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.rangeHits() + cache.factorizationHits());
+    }
+
+    @Test
+    public void testFactorIsCachedAndAnswersRanges() {
+        FactorCache cache = new FactorCache(10, 60000);
+        // Two 31-bit primes: far too slow to reach by trial division here.
+        BigInteger n = big(2147483647L).multiply(big(2147483629L));
+        assertEquals(Arrays.asList(big(2147483629L), big(2147483647L)),
+                cache.factor(n, SearchProgress.NONE));
+        assertEquals(cache.factor(n, SearchProgress.NONE),
+                cache.findAllPrimeFactors(n, big(2), n));
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.factorizationHits());
+    }
+}
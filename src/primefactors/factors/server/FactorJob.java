@@ -0,0 +1,119 @@
+package primefactors.factors.server;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+
+import primefactors.util.SearchProgress;
+
+/**
+ * A factor request accepted on a connection. It can be cancelled from another
+ * thread while it waits or runs, and it reports progress while it runs.
+ */
+class FactorJob implements SearchProgress {
+
+    /**
+     * Where a running job sends its progress.
+     */
+    interface Reporter {
+        /**
+         * @return Nanoseconds between progress reports, 0 for none.
+         */
+        long progressInterval();
+
+        /**
+         * Report that job has reached candidate. Called from the thread
+         * running job.
+         */
+        void progress(FactorJob job, BigInteger candidate);
+    }
+
+    final FactorRequest request;
+    // Frame id on binary connections, 0 on text ones.
+    final int id;
+    // Answered with the complete factorisation of n, rather than by a search
+    // of the range. Only for requests of the whole range, factor N 2 N.
+    final boolean complete;
+    // System.nanoTime() when the request was read.
+    final long received = System.nanoTime();
+    private final Reporter reporter;
+    // Cancels this job when it has taken too long, or null for none.
+    volatile ScheduledFuture<?> deadline;
+    private volatile boolean cancelled = false;
+    // Time of the last progress report, or of the start. Guarded by this.
+    private long lastReport;
+
+    FactorJob(FactorRequest request, int id, Reporter reporter) {
+        this(request, id, reporter, false);
+    }
+
+    /**
+     * @param complete Find the complete factorisation with BigMath.factor
+     *        instead of searching the range; requires the request to be of
+     *        the whole range, factor N 2 N.
+     */
+    FactorJob(FactorRequest request, int id, Reporter reporter, boolean complete) {
+        this.request = request;
+        this.id = id;
+        this.reporter = reporter;
+        this.complete = complete;
+    }
+
+    /**
+     * Stop this job as soon as possible.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Search for the factors of the request on the calling thread.
+     * @param cache Cache consulted before searching.
+     * @return The factors found, or null if the job was cancelled.
+     */
+    List<BigInteger> run(FactorCache cache) {
+        return run(cache, null);
+    }
+
+    /**
+     * Search for the factors of the request.
+     * @param cache Cache consulted before searching.
+     * @param pool Pool to spread the search over, or null to search on the
+     *        calling thread. Not used by complete jobs.
+     * @return The factors found, or null if the job was cancelled.
+     */
+    List<BigInteger> run(FactorCache cache, ForkJoinPool pool) {
+        if (cancelled)
+            return null;
+        synchronized (this) {
+            lastReport = System.nanoTime();
+        }
+        try {
+            if (complete)
+                return cache.factor(request.n, this);
+            return cache.findAllPrimeFactors(request.n, request.lo, request.hi, this, pool);
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean proceed(BigInteger candidate) {
+        if (cancelled)
+            return false;
+        long interval = reporter.progressInterval();
+        if (interval <= 0)
+            return true;
+        // A parallel search calls from several threads; one of them reports.
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (now - lastReport < interval)
+                return true;
+            lastReport = now;
+        }
+        reporter.progress(this, candidate);
+        return true;
+    }
+}
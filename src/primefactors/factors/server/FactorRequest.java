@@ -0,0 +1,256 @@
+package primefactors.factors.server;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import primefactors.factors.BinaryProtocol;
+
+/**
+ * A valid client request "factor N LowBound HighBound", parsed once. The
+ * same shape also names the target of "cancel N LowBound HighBound", and
+ * each number of "factorbatch N+" is the request "factor N 2 N".
+ *
+ * See PrimeFactorsServer for the message protocol. Additional requirements:
+ * 2 <= N
+ * 1 <= LowBound <= HighBound
+ */
+class FactorRequest {
+    private static final byte[] FACTOR = "factor".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CANCEL = "cancel".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BATCH = "factorbatch".getBytes(StandardCharsets.US_ASCII);
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    // Longest decimal string that always fits in a long.
+    private static final int MAX_LONG_DIGITS = 18;
+
+    final BigInteger n;
+    final BigInteger lo;
+    final BigInteger hi;
+    // "N LowBound HighBound" as the client wrote them, if that is not how
+    // they print (leading zeros); null otherwise. Echoed in the done and
+    // cancelled lines, as the server always has.
+    private final String sent;
+
+    // Rep invariant: n >= 2, 1 <= lo <= hi
+    private FactorRequest(BigInteger n, BigInteger lo, BigInteger hi, String sent) {
+        this.n = n;
+        this.lo = lo;
+        this.hi = hi;
+        this.sent = sent;
+    }
+
+    /**
+     * Parse a client message.
+     * @param message The client's message, without the line terminator.
+     * @return The request, or null if the message is not a valid request.
+     */
+    static FactorRequest parse(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.ISO_8859_1);
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parse a client message straight from a byte buffer, without decoding
+     * it to a String first.
+     * @param buf Buffer holding the message.
+     * @param off Offset of the first byte of the message.
+     * @param len Length of the message, without the line terminator.
+     * @return The request, or null if the message is not a valid request.
+     */
+    static FactorRequest parse(byte[] buf, int off, int len) {
+        return parse(FACTOR, buf, off, len);
+    }
+
+    /**
+     * Parse a client message "cancel N LowBound HighBound".
+     * @param buf Buffer holding the message.
+     * @param off Offset of the first byte of the message.
+     * @param len Length of the message, without the line terminator.
+     * @return The request to cancel, or null if the message is not a valid
+     *         cancel message.
+     */
+    static FactorRequest parseCancel(byte[] buf, int off, int len) {
+        return parse(CANCEL, buf, off, len);
+    }
+
+    /**
+     * Parse a client message "cancel N LowBound HighBound".
+     * @return The request to cancel, or null if the message is not a valid
+     *         cancel message.
+     */
+    static FactorRequest parseCancel(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.ISO_8859_1);
+        return parseCancel(bytes, 0, bytes.length);
+    }
+
+    private static FactorRequest parse(byte[] keyword, byte[] buf, int off, int len) {
+        int end = trimmedEnd(buf, off, len);
+        if (!startsWith(keyword, buf, off, end))
+            return null;
+
+        BigInteger[] numbers = new BigInteger[3];
+        int pos = off + keyword.length;
+        boolean padded = false;
+        for (int i = 0; i < numbers.length; i++) {
+            if (pos >= end || buf[pos] != ' ')
+                return null;
+            int start = ++pos;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9')
+                pos++;
+            if (pos == start)
+                return null;
+            padded |= buf[start] == '0' && pos - start > 1;
+            numbers[i] = parseNumber(buf, start, pos - start);
+        }
+        if (pos != end)
+            return null;
+
+        int first = off + keyword.length + 1;
+        return of(numbers[0], numbers[1], numbers[2],
+                padded ? new String(buf, first, end - first, StandardCharsets.US_ASCII) : null);
+    }
+
+    /**
+     * Parse a client message "factorbatch N+". Each number is a request for
+     * all its prime factors, factor N 2 N.
+     * @return The requests in the order given, or null if the message is not
+     *         a valid batch.
+     */
+    static List<FactorRequest> parseBatch(String message) {
+        byte[] buf = message.getBytes(StandardCharsets.ISO_8859_1);
+        int end = trimmedEnd(buf, 0, buf.length);
+        if (!startsWith(BATCH, buf, 0, end) || end == BATCH.length)
+            return null;
+
+        List<FactorRequest> requests = new ArrayList<FactorRequest>();
+        int pos = BATCH.length;
+        while (pos < end) {
+            if (buf[pos] != ' ')
+                return null;
+            int start = ++pos;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9')
+                pos++;
+            if (pos == start)
+                return null;
+            BigInteger n = parseNumber(buf, start, pos - start);
+            FactorRequest request = of(n, TWO, n, null);
+            if (request == null)
+                return null;
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    /**
+     * @return End of the message in buf[off..off+len), without trailing
+     *         spaces; they are tolerated, as String.split(" ") did.
+     */
+    private static int trimmedEnd(byte[] buf, int off, int len) {
+        int end = off + len;
+        while (end > off && buf[end - 1] == ' ')
+            end--;
+        return end;
+    }
+
+    /**
+     * @return True if buf[off..end) starts with keyword.
+     */
+    private static boolean startsWith(byte[] keyword, byte[] buf, int off, int end) {
+        if (end - off < keyword.length)
+            return false;
+        for (int i = 0; i < keyword.length; i++)
+            if (buf[off + i] != keyword[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Parse a request frame of the binary protocol.
+     * @param frame
+     * @return The request, or null if the frame is not a valid request.
+     */
+    static FactorRequest parse(BinaryProtocol.Frame frame) {
+        if (frame.type != BinaryProtocol.FACTOR || frame.numbers.size() != 3)
+            return null;
+        return of(frame.numbers.get(0), frame.numbers.get(1), frame.numbers.get(2), null);
+    }
+
+    /**
+     * @param sent The numbers as the client wrote them, or null if they
+     *        print the same.
+     * @return The request factor n lo hi, or null if it is not valid.
+     */
+    private static FactorRequest of(BigInteger n, BigInteger lo, BigInteger hi, String sent) {
+        if (n.compareTo(TWO) < 0 || lo.signum() <= 0 || hi.compareTo(lo) < 0)
+            return null;
+        return new FactorRequest(n, lo, hi, sent);
+    }
+
+    /**
+     * @requires buf[off..off+len) are all decimal digits, len > 0
+     * @return The number those digits represent.
+     */
+    private static BigInteger parseNumber(byte[] buf, int off, int len) {
+        if (len <= MAX_LONG_DIGITS) {
+            long value = 0;
+            for (int i = off; i < off + len; i++)
+                value = value * 10 + (buf[i] - '0');
+            return BigInteger.valueOf(value);
+        }
+        return new BigInteger(new String(buf, off, len, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return Reply line reporting factor of this request's number.
+     */
+    String found(BigInteger factor) {
+        return "found " + n + " " + factor;
+    }
+
+    /**
+     * @return Reply line marking the end of this request.
+     */
+    String done() {
+        return "done " + numbers();
+    }
+
+    /**
+     * @return Reply line ending this request when it was cancelled.
+     */
+    String cancelled() {
+        return "cancelled " + numbers();
+    }
+
+    /**
+     * @return "N LowBound HighBound" as the client sent them.
+     */
+    private String numbers() {
+        return sent != null ? sent : n + " " + lo + " " + hi;
+    }
+
+    /**
+     * @return Reply line reporting that the search has reached candidate.
+     */
+    String progress(BigInteger candidate) {
+        return "progress " + n + " " + candidate;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FactorRequest))
+            return false;
+        FactorRequest other = (FactorRequest) obj;
+        return n.equals(other.n) && lo.equals(other.lo) && hi.equals(other.hi);
+    }
+
+    @Override
+    public int hashCode() {
+        return (n.hashCode() * 31 + lo.hashCode()) * 31 + hi.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "factor " + n + " " + lo + " " + hi;
+    }
+}
@@ -0,0 +1,599 @@
+package primefactors.factors.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Complete factorisations kept on disk, so that a server does not factor the
+ * same large numbers again after a restart.
+ *
+ * A store is a directory of two files:
+ *  - factors.log, an append-only log of records (length, CRC32, N and its
+ *    prime factors). A record is forced to disk before it is indexed, so a
+ *    crash loses at most the record being written.
+ *  - factors.idx, a hash table of (digest of N, offset of its record) with
+ *    open addressing, mapped into memory. Opening a store that was closed
+ *    cleanly only maps it: nothing is read until a lookup touches it. The
+ *    index can always be rebuilt from the log, and is whenever it was not
+ *    closed cleanly or does not match the log.
+ *
+ * A torn record at the end of the log is cut off when the index is rebuilt.
+ * A damaged record before the end is skipped, up to the next record that
+ * passes its checksum, so the records after it are kept. Records that can no
+ * longer be reached (one of two copies of N, or a record that fails its
+ * checksum) are dead; compact() rewrites the log without them
+ * and runs on opening once they are half of it. Compaction and growing the
+ * index write new files and rename them over the old ones, so a crash leaves
+ * either the old files or the new.
+ *
+ * Safe for use by several threads; operations are serialised.
+ */
+public class FactorStore implements Closeable {
+
+    private static final String LOG = "factors.log";
+    private static final String INDEX = "factors.idx";
+    private static final long LOG_MAGIC = 0x666163746f72736cL;
+    private static final long INDEX_MAGIC = 0x666163746f727369L;
+    // Log header: magic, generation.
+    private static final int LOG_HEADER = 16;
+    // Index header: magic, generation, log length, dead bytes, count,
+    // capacity, clean.
+    private static final int INDEX_HEADER = 48;
+    private static final int GENERATION = 8;
+    private static final int LOG_LENGTH = 16;
+    private static final int DEAD_BYTES = 24;
+    private static final int COUNT = 32;
+    private static final int CAPACITY = 36;
+    private static final int CLEAN = 40;
+    // Slot: digest (0 if empty), offset of the record.
+    private static final int SLOT = 16;
+    // Record header: payload length, CRC32 of the payload.
+    private static final int RECORD_HEADER = 8;
+    private static final int MIN_CAPACITY = 1 << 10;
+
+    // Rep invariant: capacity is a power of two >= MIN_CAPACITY,
+    //   count * 4 <= capacity * 3, every slot points to a record of the log
+    //   below logLength whose digest it holds, no two slots hold the same N.
+    //   Guarded by this.
+    private final Path dir;
+    private FileChannel log;
+    private MappedByteBuffer index;
+    private long generation;
+    private long logLength;
+    private long deadBytes;
+    private int count;
+    private int capacity;
+    private boolean closed = false;
+
+    /**
+     * Open the store in dir, making it if there is none.
+     * @param dir Directory of the store; made if missing.
+     * @throws IOException if dir holds something other than a store, or
+     *         cannot be read or written
+     */
+    public FactorStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        if (log.size() < LOG_HEADER) {
+            generation = newGeneration();
+            log.truncate(0);
+            writeLogHeader(log, generation);
+            log.force(true);
+            logLength = LOG_HEADER;
+        } else {
+            ByteBuffer header = read(LOG_HEADER, 0);
+            if (header.getLong() != LOG_MAGIC) {
+                log.close();
+                throw new IOException(dir + " is not a factor store");
+            }
+            generation = header.getLong();
+            logLength = log.size();
+        }
+        if (!mapIndex())
+            rebuildIndex();
+        if (deadBytes > (logLength - LOG_HEADER) / 2)
+            compact();
+        // Until close(), a crash leaves the index to be rebuilt.
+        index.putInt(CLEAN, 0);
+    }
+
+    /**
+     * @return The prime factors of n in increasing order, unmodifiable, or
+     *         null if n is not in the store.
+     * @throws IOException
+     */
+    public synchronized List<BigInteger> get(BigInteger n) throws IOException {
+        checkOpen();
+        int slot = find(n, digest(n));
+        if (digestAt(slot) == 0)
+            return null;
+        Record record = record(offsetAt(slot));
+        return record == null ? null : record.factors;
+    }
+
+    /**
+     * Add the factorisation of n, forced to disk before this returns. Does
+     * nothing if n is in the store already.
+     * @param factors The prime factors of n in increasing order.
+     * @throws IOException
+     */
+    public synchronized void put(BigInteger n, List<BigInteger> factors) throws IOException {
+        checkOpen();
+        long digest = digest(n);
+        int slot = find(n, digest);
+        if (digestAt(slot) != 0 && record(offsetAt(slot)) != null)
+            return;
+        long offset = append(encode(n, factors));
+        log.force(false);
+        if (digestAt(slot) != 0) {
+            // A record of n that fails its checksum: replace it.
+            deadBytes += storedSize(offsetAt(slot));
+            setSlot(slot, digest, offset);
+        } else {
+            insert(digest, offset);
+        }
+        writeIndexHeader();
+    }
+
+    /**
+     * @return Number of numbers in the store.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return Bytes of the log taken by records that can no longer be
+     *         reached.
+     */
+    public synchronized long deadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * Rewrite the log with only the records the index reaches, and rebuild
+     * the index to fit them.
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        long newGeneration = newGeneration();
+        long[] digests = new long[count];
+        long[] offsets = new long[count];
+        int live = 0;
+        Path tmp = dir.resolve(LOG + ".tmp");
+        long length;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeLogHeader(out, newGeneration);
+            length = LOG_HEADER;
+            for (int i = 0; i < capacity; i++) {
+                long digest = digestAt(i);
+                if (digest == 0)
+                    continue;
+                byte[] raw = raw(offsetAt(i));
+                if (raw == null)
+                    continue;
+                writeFully(out, ByteBuffer.wrap(raw), length);
+                digests[live] = digest;
+                offsets[live++] = length;
+                length += raw.length;
+            }
+            out.force(true);
+        }
+        Path logPath = dir.resolve(LOG);
+        Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+        log.close();
+        log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        generation = newGeneration;
+        logLength = length;
+        deadBytes = 0;
+        writeIndex(capacityFor(live), digests, offsets, live);
+    }
+
+    /**
+     * Mark the index as matching the log and close the store.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        index.putInt(CLEAN, 1);
+        index.force();
+        log.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FactorStore " + dir + ": " + count + " numbers, " + logLength + " bytes, "
+                + deadBytes + " dead";
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("factor store closed");
+    }
+
+    /**
+     * A record of the log, decoded.
+     */
+    private static class Record {
+        final BigInteger n;
+        final List<BigInteger> factors;
+
+        Record(BigInteger n, List<BigInteger> factors) {
+            this.n = n;
+            this.factors = factors;
+        }
+    }
+
+    /**
+     * @return A record holding n and factors, with its header.
+     */
+    private static byte[] encode(BigInteger n, List<BigInteger> factors) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0);
+        writeNumber(out, n);
+        out.writeInt(factors.size());
+        for (BigInteger f : factors)
+            writeNumber(out, f);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER, record.length - RECORD_HEADER);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(record.length - RECORD_HEADER);
+        header.putInt((int) crc.getValue());
+        return record;
+    }
+
+    private static void writeNumber(DataOutputStream out, BigInteger n) throws IOException {
+        byte[] bytes = n.toByteArray();
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return The record at offset, or null if it is cut off or fails its
+     *         checksum.
+     */
+    private Record record(long offset) throws IOException {
+        return decode(raw(offset));
+    }
+
+    /**
+     * @param raw A record with its header, or null.
+     * @return The record, or null if raw is null or nonsense.
+     */
+    private static Record decode(byte[] raw) {
+        if (raw == null)
+            return null;
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(raw, RECORD_HEADER, raw.length - RECORD_HEADER));
+        try {
+            BigInteger n = readNumber(in);
+            int size = in.readInt();
+            if (size < 0 || size > raw.length)
+                return null;
+            List<BigInteger> factors = new ArrayList<BigInteger>(size);
+            for (int i = 0; i < size; i++)
+                factors.add(readNumber(in));
+            return new Record(n, Collections.unmodifiableList(factors));
+        } catch (IOException e) {
+            // Checksum passed on nonsense: as good as corrupt.
+            return null;
+        }
+    }
+
+    private static BigInteger readNumber(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * @return The record at offset with its header, or null if it is cut off
+     *         or fails its checksum.
+     */
+    private byte[] raw(long offset) throws IOException {
+        if (offset + RECORD_HEADER > logLength)
+            return null;
+        ByteBuffer header = read(RECORD_HEADER, offset);
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length <= 0 || length > logLength - offset - RECORD_HEADER)
+            return null;
+        byte[] raw = new byte[RECORD_HEADER + length];
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        buffer.put(header.array());
+        while (buffer.hasRemaining())
+            if (log.read(buffer, offset + buffer.position()) < 0)
+                return null;
+        CRC32 check = new CRC32();
+        check.update(raw, RECORD_HEADER, length);
+        return (int) check.getValue() == crc ? raw : null;
+    }
+
+    /**
+     * @return Size of the record at offset as its header gives it, 0 if that
+     *         is out of bounds.
+     */
+    private long storedSize(long offset) throws IOException {
+        if (offset + RECORD_HEADER > logLength)
+            return 0;
+        int length = read(RECORD_HEADER, offset).getInt();
+        return length <= 0 || length > logLength - offset - RECORD_HEADER
+                ? 0 : RECORD_HEADER + length;
+    }
+
+    private ByteBuffer read(int size, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            if (log.read(buffer, offset + buffer.position()) < 0)
+                throw new IOException("unexpected end of " + LOG);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Write record at the end of the log.
+     * @return Its offset.
+     */
+    private long append(byte[] record) throws IOException {
+        long offset = logLength;
+        writeFully(log, ByteBuffer.wrap(record), offset);
+        logLength += record.length;
+        return offset;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset)
+            throws IOException {
+        long start = offset - buffer.position();
+        while (buffer.hasRemaining())
+            channel.write(buffer, start + buffer.position());
+    }
+
+    private static void writeLogHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+        header.putLong(LOG_MAGIC).putLong(generation).flip();
+        writeFully(channel, header, 0);
+    }
+
+    /**
+     * Map the index if it was closed cleanly and matches the log.
+     * @return True if it was mapped.
+     */
+    private boolean mapIndex() throws IOException {
+        Path path = dir.resolve(INDEX);
+        if (!Files.exists(path) || Files.size(path) < INDEX_HEADER)
+            return false;
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        int mappedCapacity = map.getInt(CAPACITY);
+        if (map.getLong(0) != INDEX_MAGIC || map.getLong(GENERATION) != generation
+                || map.getLong(LOG_LENGTH) != logLength || map.getInt(CLEAN) != 1
+                || Integer.bitCount(mappedCapacity) != 1
+                || map.capacity() != INDEX_HEADER + (long) mappedCapacity * SLOT)
+            return false;
+        index = map;
+        capacity = mappedCapacity;
+        count = map.getInt(COUNT);
+        deadBytes = map.getLong(DEAD_BYTES);
+        return true;
+    }
+
+    /**
+     * Index every record of the log. A record that is torn or fails its
+     * checksum is skipped and counted as dead, or cut off if no good record
+     * follows it.
+     */
+    private void rebuildIndex() throws IOException {
+        writeIndex(MIN_CAPACITY, new long[0], new long[0], 0);
+        long end = logLength;
+        long offset = LOG_HEADER;
+        while (offset < end) {
+            byte[] raw = raw(offset);
+            Record record = decode(raw);
+            if (record == null) {
+                long next = nextRecord(offset);
+                if (next < 0)
+                    break;
+                deadBytes += next - offset;
+                offset = next;
+                continue;
+            }
+            long digest = digest(record.n);
+            int slot = find(record.n, digest);
+            if (digestAt(slot) != 0) {
+                // The later copy wins.
+                deadBytes += storedSize(offsetAt(slot));
+                setSlot(slot, digest, offset);
+            } else {
+                insert(digest, offset);
+            }
+            offset += raw.length;
+        }
+        if (offset < end) {
+            log.truncate(offset);
+            log.force(true);
+            logLength = offset;
+        }
+        writeIndexHeader();
+    }
+
+    /**
+     * Find where the log goes on after the damaged record at offset: where
+     * its header says it ends if a good record starts there, otherwise the
+     * first later offset at which a record passes its checksum.
+     * @return Offset of the next good record, or -1 if there is none.
+     */
+    private long nextRecord(long offset) throws IOException {
+        long size = storedSize(offset);
+        if (size > 0 && decode(raw(offset + size)) != null)
+            return offset + size;
+        for (long next = offset + 1; next + RECORD_HEADER < logLength; next++)
+            if (decode(raw(next)) != null)
+                return next;
+        return -1;
+    }
+
+    /**
+     * Replace the index by a new one of the given capacity holding the given
+     * slots, written beside it and renamed over it.
+     */
+    private void writeIndex(int newCapacity, long[] digests, long[] offsets, int size)
+            throws IOException {
+        Path tmp = dir.resolve(INDEX + ".tmp");
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER + (long) newCapacity * SLOT);
+        }
+        index = map;
+        capacity = newCapacity;
+        count = 0;
+        index.putLong(0, INDEX_MAGIC);
+        for (int i = 0; i < size; i++)
+            insert(digests[i], offsets[i]);
+        writeIndexHeader();
+        index.force();
+        Files.move(tmp, dir.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+    }
+
+    private void writeIndexHeader() {
+        index.putLong(GENERATION, generation);
+        index.putLong(LOG_LENGTH, logLength);
+        index.putLong(DEAD_BYTES, deadBytes);
+        index.putInt(COUNT, count);
+        index.putInt(CAPACITY, capacity);
+    }
+
+    /**
+     * @return The slot holding n, or the empty slot where it would go.
+     */
+    private int find(BigInteger n, long digest) throws IOException {
+        int mask = capacity - 1;
+        for (int i = (int) digest & mask;; i = (i + 1) & mask) {
+            long d = digestAt(i);
+            if (d == 0)
+                return i;
+            if (d == digest) {
+                // Equal digests of different numbers are all but impossible;
+                // a record of n too corrupt to read still belongs to n.
+                Record record = record(offsetAt(i));
+                if (record == null || record.n.equals(n))
+                    return i;
+            }
+        }
+    }
+
+    /**
+     * Add a slot for a number not in the index, growing it if needed.
+     */
+    private void insert(long digest, long offset) throws IOException {
+        if ((count + 1) * 4L > capacity * 3L) {
+            long[] digests = new long[count];
+            long[] offsets = new long[count];
+            int size = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (digestAt(i) != 0) {
+                    digests[size] = digestAt(i);
+                    offsets[size++] = offsetAt(i);
+                }
+            }
+            writeIndex(capacity * 2, digests, offsets, size);
+        }
+        int mask = capacity - 1;
+        int i = (int) digest & mask;
+        while (digestAt(i) != 0)
+            i = (i + 1) & mask;
+        setSlot(i, digest, offset);
+        count++;
+    }
+
+    private long digestAt(int slot) {
+        return index.getLong(INDEX_HEADER + slot * SLOT);
+    }
+
+    private long offsetAt(int slot) {
+        return index.getLong(INDEX_HEADER + slot * SLOT + 8);
+    }
+
+    private void setSlot(int slot, long digest, long offset) {
+        // Offset first: a slot is live once its digest is set.
+        index.putLong(INDEX_HEADER + slot * SLOT + 8, offset);
+        index.putLong(INDEX_HEADER + slot * SLOT, digest);
+    }
+
+    /**
+     * @return Smallest capacity that holds size slots.
+     */
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (size * 4L > capacity * 3L)
+            capacity *= 2;
+        return capacity;
+    }
+
+    /**
+     * Force the renames in dir to disk, where the platform allows it.
+     */
+    private void syncDir() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on some platforms.
+        }
+    }
+
+    private static long newGeneration() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /**
+     * @return First 8 bytes of the SHA-256 of n, never 0.
+     */
+    static long digest(BigInteger n) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(n.toByteArray());
+            long digest = ByteBuffer.wrap(hash).getLong();
+            return digest == 0 ? 1 : digest;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package primefactors.factors.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FactorStoreTest {
+
+    private static BigInteger big(long n) {
+        return BigInteger.valueOf(n);
+    }
+
+    private static List<BigInteger> bigs(long... ns) {
+        BigInteger[] result = new BigInteger[ns.length];
+        for (int i = 0; i < ns.length; i++)
+            result[i] = big(ns[i]);
+        return Arrays.asList(result);
+    }
+
+    private static Path newDir() throws IOException {
+        Path dir = Files.createTempDirectory("factorstore");
+        return dir;
+    }
+
+    @Test
+    public void testReopenedStoreKeepsFactorizations() throws IOException {
+        Path dir = newDir();
+        try (FactorStore store = new FactorStore(dir)) {
+            store.put(big(1001), bigs(7, 11, 13));
+            store.put(big(1001), bigs(7, 11, 13));
+            assertEquals(1, store.size());
+            assertNull(store.get(big(1002)));
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            assertEquals(bigs(7, 11, 13), store.get(big(1001)));
+            assertNull(store.get(big(1002)));
+        }
+    }
+
+    @Test
+    public void testIndexGrowsAndSurvivesReopen() throws IOException {
+        Path dir = newDir();
+        try (FactorStore store = new FactorStore(dir)) {
+            for (long p = 3; p < 6000; p += 2)
+                store.put(big(2 * p), bigs(2, p));
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            assertEquals(2999, store.size());
+            for (long p = 3; p < 6000; p += 2)
+                assertEquals(bigs(2, p), store.get(big(2 * p)));
+        }
+    }
+
+    @Test
+    public void testCrashRebuildsIndexAndCutsTornRecord() throws IOException {
+        Path dir = newDir();
+        // Never closed, as if the server died.
+        FactorStore crashed = new FactorStore(dir);
+        crashed.put(big(15), bigs(3, 5));
+        crashed.put(big(77), bigs(7, 11));
+        long length = Files.size(dir.resolve("factors.log"));
+        try (RandomAccessFile log = new RandomAccessFile(dir.resolve("factors.log").toFile(),
+                "rw")) {
+            // Half of a record: its header claims more than is there.
+            log.seek(length);
+            log.writeInt(100);
+            log.writeInt(0);
+            log.write(new byte[10]);
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            assertEquals(2, store.size());
+            assertEquals(bigs(3, 5), store.get(big(15)));
+            assertEquals(bigs(7, 11), store.get(big(77)));
+            assertEquals(length, Files.size(dir.resolve("factors.log")));
+            store.put(big(91), bigs(7, 13));
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            assertEquals(bigs(7, 13), store.get(big(91)));
+        }
+    }
+
+    @Test
+    public void testCrashKeepsRecordsAfterDamagedOnes() throws IOException {
+        Path dir = newDir();
+        Path logPath = dir.resolve("factors.log");
+        // Never closed, as if the server died.
+        FactorStore crashed = new FactorStore(dir);
+        // Enough good records that the damaged ones are not compacted away.
+        for (long p = 101; p < 140; p += 2)
+            crashed.put(big(2 * p), bigs(2, p));
+        crashed.put(big(15), bigs(3, 5));
+        long second = Files.size(logPath);
+        crashed.put(big(1001), bigs(7, 11, 13));
+        long third = Files.size(logPath);
+        crashed.put(big(77), bigs(7, 11));
+        long fourth = Files.size(logPath);
+        crashed.put(big(91), bigs(7, 13));
+        long length = Files.size(logPath);
+        try (RandomAccessFile log = new RandomAccessFile(logPath.toFile(), "rw")) {
+            // The second record fails its checksum ...
+            log.seek(second + 8 + 2);
+            int b = log.read();
+            log.seek(second + 8 + 2);
+            log.write(b ^ 0xff);
+            // ... and the third has a nonsense length.
+            log.seek(third);
+            log.writeInt(-1);
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            assertEquals(22, store.size());
+            assertEquals(bigs(3, 5), store.get(big(15)));
+            assertNull(store.get(big(1001)));
+            assertNull(store.get(big(77)));
+            assertEquals(bigs(7, 13), store.get(big(91)));
+            assertEquals(fourth - second, store.deadBytes());
+            assertEquals(length, Files.size(logPath));
+        }
+    }
+
+    @Test
+    public void testCorruptRecordIsReplacedAndCompactedAway() throws IOException {
+        Path dir = newDir();
+        try (FactorStore store = new FactorStore(dir)) {
+            store.put(big(1001), bigs(7, 11, 13));
+            store.put(big(15), bigs(3, 5));
+            // Flip a byte inside the first record, after the log header and
+            // the record header.
+            try (RandomAccessFile log = new RandomAccessFile(
+                    dir.resolve("factors.log").toFile(), "rw")) {
+                log.seek(16 + 8 + 2);
+                int b = log.read();
+                log.seek(16 + 8 + 2);
+                log.write(b ^ 0xff);
+            }
+            assertNull(store.get(big(1001)));
+            store.put(big(1001), bigs(7, 11, 13));
+            assertTrue(store.deadBytes() > 0);
+            long before = Files.size(dir.resolve("factors.log"));
+
+            store.compact();
+            assertEquals(0, store.deadBytes());
+            assertTrue(Files.size(dir.resolve("factors.log")) < before);
+            assertEquals(bigs(7, 11, 13), store.get(big(1001)));
+            assertEquals(bigs(3, 5), store.get(big(15)));
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            assertEquals(2, store.size());
+            assertEquals(bigs(7, 11, 13), store.get(big(1001)));
+        }
+    }
+
+    @Test
+    public void testCacheReadsStoreAfterRestart() throws IOException {
+        Path dir = newDir();
+        // A semiprime above FactorCache.STORE_MIN_BITS.
+        BigInteger n = big(1000003L * 1000033L);
+        try (FactorStore store = new FactorStore(dir)) {
+            FactorCache cache = new FactorCache(10, 60000, store);
+            assertEquals(bigs(1000003, 1000033), cache.findAllPrimeFactors(n, big(2), n));
+            assertEquals(1, cache.misses());
+        }
+        try (FactorStore store = new FactorStore(dir)) {
+            FactorCache cache = new FactorCache(10, 60000, store);
+            // Another range, answered from the stored factorisation.
+            assertEquals(bigs(1000003, 1000033),
+                    cache.findAllPrimeFactors(n, big(2), big(1000010)));
+            assertEquals(0, cache.misses());
+            assertEquals(1, cache.storeHits());
+        }
+    }
+}
@@ -0,0 +1,714 @@
+package primefactors.factors.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import primefactors.factors.BinaryProtocol;
+
+/**
+ * PrimeFactorsNioServer speaks the same protocol as PrimeFactorsServer, but
+ * multiplexes every client over a single selector thread instead of giving
+ * each client a thread of its own. Request lines are parsed directly from the
+ * read buffers, the factoring itself runs on a fixed pool of workers, and the
+ * replies are written back by the selector thread. An idle client costs only
+ * its channel and a small read buffer, so one server can keep tens of
+ * thousands of connections open.
+ *
+ * Requests from one client are answered in the order they were sent; requests
+ * from different clients are computed concurrently. cancel, progress, ping and
+ * stats messages take effect as soon as they are read, even while a request
+ * runs. Here a request's latency is measured from when it is started. A
+ * connection may have at most maxPending requests waiting to be started and
+ * at most maxPending replies waiting to be written; beyond either the server
+ * stops reading it until they drain, so a client that pipelines without
+ * reading its replies is slowed down instead of queueing without bound. A
+ * client may switch its connection to the framed protocol of BinaryProtocol by
+ * sending the line "binary" first, as with PrimeFactorsServer.
+ */
+public class PrimeFactorsNioServer {
+
+    private final static int DEFAULT_PORT = 4444;
+    private final static byte[] INVALID = "invalid\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] GREETING = "\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] HELLO = BinaryProtocol.HELLO.getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] HELLO_REPLY = (BinaryProtocol.HELLO + "\n").getBytes(StandardCharsets.US_ASCII);
+    private final static String PROGRESS = "progress ";
+    private final static byte[] PING = "ping".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] PONG = "pong\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] STATS = "stats".getBytes(StandardCharsets.US_ASCII);
+    private final static long METRICS_INTERVAL = 60;
+    private final static int INITIAL_BUFFER = 256;
+    private final static int DEFAULT_MAX_PENDING = 256;
+    // Longest request line accepted before the client is disconnected.
+    private final static int MAX_LINE = 64 * 1024;
+
+    // Rep invariant: selector, serverChannel, workers, tasks != null
+    //                0 < maxPending
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    // Work posted by the workers for the selector thread to run.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final FactorCache cache;
+    // Requests waiting, or replies unwritten, before a connection is not read.
+    private final int maxPending;
+    private volatile boolean running = true;
+    // True once shutdown has stopped accepting and reading. Only touched by
+    // the selector thread.
+    private boolean stopping = false;
+    // Completes once stopping and every connection has been closed.
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    private final Metrics metrics = new Metrics("PrimeFactorsNioServer");
+    // Looked up once: these are updated on every request.
+    private final LongAdder accepted = metrics.counter("connections.accepted");
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder bytesIn = metrics.counter("bytes.in");
+    private final LongAdder bytesOut = metrics.counter("bytes.out");
+    private final LongAdder errors = metrics.counter("errors");
+    private final LongAdder factors = metrics.counter("requests.factor");
+    private final LongAdder cancels = metrics.counter("requests.cancel");
+    private final LongAdder progresses = metrics.counter("requests.progress");
+    private final LongAdder pings = metrics.counter("requests.ping");
+    private final LongAdder stats = metrics.counter("requests.stats");
+    private final LongAdder invalids = metrics.counter("requests.invalid");
+    private final LongAdder cancelledReplies = metrics.counter("replies.cancelled");
+    private final LatencyHistogram latency = metrics.histogram("latency.factor");
+    private final LatencyHistogram compute = metrics.histogram("compute.factor");
+
+    /**
+     * Make a server that listens for connections on port and factors on
+     * one worker thread per available processor.
+     * @param port
+     * @throws IOException
+     */
+    public PrimeFactorsNioServer(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Make a server that listens for connections on port.
+     * @param port
+     * @param workerThreads Number of threads running factor requests, > 0.
+     * @throws IOException
+     */
+    public PrimeFactorsNioServer(int port, int workerThreads) throws IOException {
+        this(port, workerThreads, new FactorCache());
+    }
+
+    /**
+     * Make a server that listens for connections on port.
+     * @param port
+     * @param workerThreads Number of threads running factor requests, > 0.
+     * @param cache Cache of results consulted before factoring.
+     * @throws IOException
+     */
+    public PrimeFactorsNioServer(int port, int workerThreads, FactorCache cache)
+            throws IOException {
+        this(port, workerThreads, DEFAULT_MAX_PENDING, cache);
+    }
+
+    /**
+     * Make a server that listens for connections on port.
+     * @param port
+     * @param workerThreads Number of threads running factor requests, > 0.
+     * @param maxPending Maximum number of requests of one client waiting to
+     *        be started, or of its replies waiting to be written, before the
+     *        server stops reading from it, > 0.
+     * @param cache Cache of results consulted before factoring.
+     * @throws IOException
+     */
+    public PrimeFactorsNioServer(int port, int workerThreads, int maxPending,
+            FactorCache cache) throws IOException {
+        if (workerThreads <= 0 || maxPending <= 0)
+            throw new IllegalArgumentException();
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerThreads);
+        this.cache = cache;
+        this.maxPending = maxPending;
+        metrics.gauge("connections.open", open::get);
+        metrics.gauge("cache.hits", () -> cache.rangeHits() + cache.factorizationHits());
+        metrics.gauge("cache.misses", cache::misses);
+    }
+
+    /**
+     * @return The port this server listens on.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return The metrics of this server.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The cache of results, with its hit and miss counts.
+     */
+    public FactorCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Run the selector loop. Returns once shutdown() has been called.
+     * @throws IOException if the selector fails
+     */
+    public void serve() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                for (Runnable task; (task = tasks.poll()) != null; )
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        if (key.isAcceptable())
+                            accept();
+                        if (key.isValid() && key.isReadable())
+                            ((Connection) key.attachment()).read();
+                        if (key.isValid() && key.isWritable())
+                            ((Connection) key.attachment()).write();
+                    } catch (IOException e) {
+                        errors.increment();
+                        if (key.attachment() != null)
+                            ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+            selector.close();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Stop accepting clients and reading requests, and disconnect the
+     * connected ones once their running request has been answered. Requests
+     * read but not yet started are answered as cancelled.
+     * @param timeout How long to wait for connections to finish.
+     * @param unit Unit of timeout.
+     * @return True if all connections finished within the timeout.
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Stop taking requests first, so that none is handed to the workers
+        // once they have stopped taking them.
+        CountDownLatch stopped = new CountDownLatch(1);
+        post(() -> {
+            stop();
+            stopped.countDown();
+        });
+        boolean finished = stopped.await(timeout, unit);
+        workers.shutdown();
+        finished &= workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        // Let the replies of the last requests be written.
+        try {
+            drained.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            finished = false;
+        }
+        running = false;
+        selector.wakeup();
+        return finished;
+    }
+
+    /**
+     * Stop accepting clients and reading from the connected ones. Runs on
+     * the selector thread.
+     */
+    private void stop() {
+        stopping = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            errors.increment();
+        }
+        for (SelectionKey key : selector.keys())
+            if (key.attachment() != null)
+                ((Connection) key.attachment()).stop();
+        if (open.get() == 0)
+            drained.complete(null);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Connection connection = new Connection(key);
+        key.attach(connection);
+        accepted.increment();
+        open.incrementAndGet();
+        connection.send(GREETING);
+    }
+
+    /**
+     * Run task on the selector thread.
+     */
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * State of one client. Only ever touched by the selector thread, except
+     * for the progress reports of its running job.
+     */
+    private class Connection implements FactorJob.Reporter {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        // Complete request lines, or frame bodies once binary, not yet started.
+        private final Queue<byte[]> pending = new ArrayDeque<>();
+        // True once the client switched to frames.
+        private boolean binary = false;
+        // True until the first line has been read.
+        private boolean first = true;
+        // True while a request of this client is on a worker.
+        private boolean busy = false;
+        // The request on a worker, if any.
+        private FactorJob running;
+        // Pending entries cancelled before they started.
+        private final Set<byte[]> cancelled =
+                Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        private volatile long progressInterval = 0;
+        // True once the client said bb or disconnected its input.
+        private boolean closing = false;
+
+        Connection(SelectionKey key) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= (binary ? BinaryProtocol.MAX_FRAME + 4 : MAX_LINE)) {
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            int read = channel.read(in);
+            if (read > 0)
+                bytesIn.add(read);
+            if (read < 0) {
+                closing = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (binary)
+                splitFrames();
+            else
+                splitLines();
+            next();
+        }
+
+        /**
+         * Move every complete line out of the read buffer.
+         */
+        private void splitLines() throws IOException {
+            byte[] buf = in.array();
+            int start = 0;
+            for (int i = 0; i < in.position(); i++) {
+                if (buf[i] == '\n') {
+                    int end = i;
+                    if (end > start && buf[end - 1] == '\r')
+                        end--;
+                    byte[] line = new byte[end - start];
+                    System.arraycopy(buf, start, line, 0, line.length);
+                    start = i + 1;
+                    if (first && Arrays.equals(line, HELLO)) {
+                        first = false;
+                        binary = true;
+                        send(HELLO_REPLY);
+                        discard(start);
+                        splitFrames();
+                        return;
+                    }
+                    first = false;
+                    if (!control(line))
+                        pending.add(line);
+                }
+            }
+            discard(start);
+        }
+
+        /**
+         * Act on line at once if it is a cancel, progress, ping or stats
+         * message.
+         * @return True if it was.
+         */
+        private boolean control(byte[] line) {
+            if (Arrays.equals(line, PING)) {
+                pings.increment();
+                send(PONG);
+                return true;
+            }
+            if (Arrays.equals(line, STATS)) {
+                stats.increment();
+                send(("stats " + metrics + "\n").getBytes(StandardCharsets.US_ASCII));
+                return true;
+            }
+            if (line.length == 0 || (line[0] != 'c' && line[0] != 'p'))
+                return false;
+            FactorRequest target = FactorRequest.parseCancel(line, 0, line.length);
+            if (target != null) {
+                cancels.increment();
+                if (running != null && running.request.equals(target))
+                    running.cancel();
+                for (byte[] p : pending)
+                    if (target.equals(FactorRequest.parse(p, 0, p.length)))
+                        cancelled.add(p);
+                return true;
+            }
+            String text = new String(line, StandardCharsets.US_ASCII);
+            if (text.startsWith(PROGRESS) && text.substring(PROGRESS.length()).matches("\\d{1,9}")) {
+                progresses.increment();
+                setProgressInterval(Integer.parseInt(text.substring(PROGRESS.length())));
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Act on a frame body at once if it is a cancel, progress or ping
+         * frame.
+         * @return True if it was.
+         */
+        private boolean controlFrame(byte[] body) {
+            // The type follows the 4-byte id.
+            if (body.length < 5 || (body[4] != BinaryProtocol.CANCEL
+                    && body[4] != BinaryProtocol.PROGRESS && body[4] != BinaryProtocol.PING))
+                return false;
+            BinaryProtocol.Frame frame = BinaryProtocol.decode(body, 0, body.length);
+            if (frame == null)
+                return false;
+            if (frame.type == BinaryProtocol.PING) {
+                pings.increment();
+                send(new BinaryProtocol.Frame(frame.id, BinaryProtocol.PONG,
+                        Collections.<BigInteger>emptyList()).encode());
+                return true;
+            }
+            if (frame.type == BinaryProtocol.CANCEL) {
+                cancels.increment();
+                if (running != null && running.id == frame.id)
+                    running.cancel();
+                for (byte[] p : pending)
+                    if (ByteBuffer.wrap(p).getInt() == frame.id)
+                        cancelled.add(p);
+                return true;
+            }
+            if (frame.numbers.size() == 1 && frame.numbers.get(0).bitLength() < Integer.SIZE) {
+                progresses.increment();
+                setProgressInterval(frame.numbers.get(0).intValue());
+                return true;
+            }
+            return false;
+        }
+
+        private void setProgressInterval(int millis) {
+            progressInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public long progressInterval() {
+            return progressInterval;
+        }
+
+        @Override
+        public void progress(FactorJob job, BigInteger candidate) {
+            final byte[] report = binary
+                    ? new BinaryProtocol.Frame(job.id, BinaryProtocol.PROGRESS,
+                            Collections.singletonList(candidate)).encode()
+                    : (job.request.progress(candidate) + "\n").getBytes(StandardCharsets.US_ASCII);
+            post(() -> send(report));
+        }
+
+        /**
+         * Move every complete frame body out of the read buffer.
+         */
+        private void splitFrames() throws IOException {
+            byte[] buf = in.array();
+            int start = 0;
+            while (in.position() - start >= 4) {
+                int length = ByteBuffer.wrap(buf, start, 4).getInt();
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME)
+                    throw new IOException("bad frame length " + length);
+                if (in.position() - start - 4 < length)
+                    break;
+                byte[] body = Arrays.copyOfRange(buf, start + 4, start + 4 + length);
+                if (!controlFrame(body))
+                    pending.add(body);
+                start += 4 + length;
+            }
+            discard(start);
+        }
+
+        /**
+         * Drop the first count bytes of the read buffer.
+         */
+        private void discard(int count) {
+            in.flip();
+            in.position(count);
+            in.compact();
+        }
+
+        /**
+         * Start the next pending request unless one is already running.
+         */
+        private void next() {
+            // Closed while a request ran: nobody is left to answer.
+            if (!channel.isOpen())
+                return;
+            while (!busy && !pending.isEmpty()) {
+                byte[] line = pending.poll();
+                final FactorRequest request;
+                final BinaryProtocol.Frame frame;
+                if (binary) {
+                    frame = BinaryProtocol.decode(line, 0, line.length);
+                    if (frame == null) {
+                        close();
+                        return;
+                    }
+                    request = FactorRequest.parse(frame);
+                } else {
+                    if (line.length == 2 && line[0] == 'b' && line[1] == 'b') {
+                        closing = true;
+                        pending.clear();
+                        break;
+                    }
+                    frame = null;
+                    request = FactorRequest.parse(line, 0, line.length);
+                }
+                if (request == null) {
+                    invalids.increment();
+                    send(frame == null ? INVALID : invalid(frame));
+                    continue;
+                }
+                factors.increment();
+                final FactorJob job = new FactorJob(request, frame == null ? 0 : frame.id, this);
+                if (cancelled.remove(line)) {
+                    cancelledReplies.increment();
+                    send(reply(job, null));
+                    continue;
+                }
+                busy = true;
+                running = job;
+                try {
+                    execute(job, frame);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down: the workers take no more requests.
+                    busy = false;
+                    running = null;
+                    cancelledReplies.increment();
+                    send(reply(job, null));
+                }
+            }
+            if (closing && !busy && out.isEmpty())
+                close();
+            else
+                throttle();
+        }
+
+        /**
+         * Run job on a worker and send its reply from the selector thread.
+         * @param frame The frame of job on binary connections, else null.
+         * @throws RejectedExecutionException if the workers are shut down
+         */
+        private void execute(final FactorJob job, final BinaryProtocol.Frame frame) {
+            workers.execute(() -> {
+                byte[] reply;
+                long started = System.nanoTime();
+                try {
+                    List<BigInteger> found = job.run(cache);
+                    if (found == null)
+                        cancelledReplies.increment();
+                    reply = reply(job, found);
+                } catch (RuntimeException e) {
+                    errors.increment();
+                    e.printStackTrace();
+                    reply = frame == null ? INVALID : invalid(frame);
+                }
+                compute.recordSince(started);
+                final byte[] result = reply;
+                post(() -> {
+                    busy = false;
+                    running = null;
+                    send(result);
+                    latency.recordSince(job.received);
+                    next();
+                });
+            });
+        }
+
+        /**
+         * Read from the client only while fewer than maxPending of its
+         * requests wait to be started and fewer than maxPending of its
+         * replies wait to be written.
+         */
+        private void throttle() {
+            if (!key.isValid())
+                return;
+            if (closing || pending.size() >= maxPending || out.size() >= maxPending)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        /**
+         * Read no more, and close once the requests already read have been
+         * answered.
+         */
+        void stop() {
+            closing = true;
+            if (!busy && out.isEmpty())
+                close();
+            else
+                throttle();
+        }
+
+        void send(byte[] bytes) {
+            if (!key.isValid())
+                return;
+            out.add(ByteBuffer.wrap(bytes));
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void write() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer head = out.peek();
+                bytesOut.add(channel.write(head));
+                if (head.hasRemaining()) {
+                    throttle();
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing && !busy && pending.isEmpty())
+                close();
+            else
+                throttle();
+        }
+
+        /**
+         * @param found The factors found for job, or null if it was cancelled.
+         * @return Every reply line, or the reply frame, for job.
+         */
+        private byte[] reply(FactorJob job, List<BigInteger> found) {
+            if (binary) {
+                if (found == null)
+                    return new BinaryProtocol.Frame(job.id, BinaryProtocol.CANCELLED,
+                            Collections.<BigInteger>emptyList()).encode();
+                return new BinaryProtocol.Frame(job.id, BinaryProtocol.FOUND, found).encode();
+            }
+            if (found == null)
+                return (job.request.cancelled() + "\n").getBytes(StandardCharsets.US_ASCII);
+            StringBuilder sb = new StringBuilder();
+            for (BigInteger bi : found)
+                sb.append(job.request.found(bi)).append('\n');
+            sb.append(job.request.done()).append('\n');
+            return sb.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            if (open.decrementAndGet() == 0 && stopping)
+                drained.complete(null);
+            // Nobody is left to read the answer, nor the ones queued.
+            if (running != null)
+                running.cancel();
+            pending.clear();
+            cancelled.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return Encoded reply frame rejecting the request in frame.
+     */
+    private static byte[] invalid(BinaryProtocol.Frame frame) {
+        return new BinaryProtocol.Frame(frame.id, BinaryProtocol.INVALID,
+                Collections.<BigInteger>emptyList()).encode();
+    }
+
+    /**
+     * @param args
+     *            String array containing Program arguments: the port to
+     *            listen on, optionally followed by the number of worker
+     *            threads. Defaults to port 4444 and one worker per processor.
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int workerThreads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 2) {
+            System.err.println("Usage: java PrimeFactorsNioServer <port number>? <workers>?");
+            System.exit(1);
+        }
+        if (args.length >= 1)
+            port = Integer.parseInt(args[0]);
+        if (args.length == 2)
+            workerThreads = Integer.parseInt(args[1]);
+
+        try {
+            PrimeFactorsNioServer server = new PrimeFactorsNioServer(port, workerThreads);
+            server.getMetrics().logEvery(METRICS_INTERVAL, TimeUnit.SECONDS, System.err);
+            server.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
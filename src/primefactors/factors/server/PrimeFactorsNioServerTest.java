@@ -0,0 +1,130 @@
+package primefactors.factors.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PrimeFactorsNioServerTest {
+    // (2^61 - 1)^2: no factor below 2^61, so its search runs the whole range.
+    private static final BigInteger SQUARE =
+            BigInteger.ONE.shiftLeft(61).subtract(BigInteger.ONE).pow(2);
+    // Takes in the order of a second.
+    private static final String SLOW = "factor " + SQUARE + " 2 100000000";
+
+    private static Thread serve(final PrimeFactorsNioServer server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static Socket connect(PrimeFactorsNioServer server) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(20000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.US_ASCII));
+        // Skip greeting.
+        assertEquals("", in.readLine());
+        return in;
+    }
+
+    @Test
+    public void testClientNotReadingRepliesIsNotReadAhead() throws Exception {
+        PrimeFactorsNioServer server = new PrimeFactorsNioServer(0, 1, 4, new FactorCache());
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        reader(socket);
+        final OutputStream out = socket.getOutputStream();
+
+        // Far more than fits in the socket buffers. Its replies are never
+        // read, so the writes block once the buffers are full.
+        final byte[] line = "factor 12 2 3\n".getBytes(StandardCharsets.US_ASCII);
+        final int count = 1_000_000;
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++)
+                    out.write(line);
+            } catch (IOException e) {
+                // Closed below.
+            }
+        });
+        writer.start();
+        writer.join(2000);
+
+        // The server reads only as much as the replies it could write.
+        assertTrue(writer.isAlive());
+        long read = server.getMetrics().counter("bytes.in").sum();
+        assertTrue("read " + read, read < (long) count * line.length / 4);
+
+        socket.close();
+        writer.join();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testShutdownAnswersRequestInFlight() throws Exception {
+        final PrimeFactorsNioServer server = new PrimeFactorsNioServer(0, 1);
+        int port = server.getPort();
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.println("progress 10");
+        out.println(SLOW);
+        out.println("factor 12 2 3");
+
+        // Started once it reports progress.
+        String line = in.readLine();
+        assertTrue(line, line.startsWith("progress " + SQUARE + " "));
+        final boolean[] finished = new boolean[1];
+        Thread stopping = new Thread(() -> {
+            try {
+                finished[0] = server.shutdown(20, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        stopping.start();
+
+        // The running request is answered; the one waiting behind it is not
+        // started.
+        while ((line = in.readLine()).startsWith("progress "))
+            ;
+        assertEquals("done " + SQUARE + " 2 100000000", line);
+        assertEquals("cancelled 12 2 3", in.readLine());
+        assertNull(in.readLine());
+        stopping.join();
+        serving.join();
+        assertTrue(finished[0]);
+
+        // No longer accepting.
+        try {
+            new Socket("localhost", port).close();
+            fail("connected after shutdown");
+        } catch (ConnectException e) {
+            // Expected.
+        }
+        socket.close();
+    }
+}
@@ -1,16 +1,44 @@
 package primefactors.factors.server;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
-import primefactors.util.BigMath;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import primefactors.factors.BinaryProtocol;
 
 /**
  * PrimeFactorsServer performs the "server-side" algorithm for counting prime
@@ -20,9 +48,24 @@ import primefactors.util.BigMath;
  * which port your Server will be listening on. ex. arg of "4444" will make your
  * Server listen on 4444.
  * 
- * Your server will only need to handle one client at a time. If the connected
- * client disconnects, your server should go back to listening for future
- * clients to connect to.
+ * Clients are served concurrently by a bounded pool of worker threads, one
+ * connection per worker. When every worker is busy the server stops accepting
+ * new connections until one finishes, so excess clients wait in the listen
+ * backlog instead of piling up inside the server. A request that is not
+ * answered within the request timeout of being read is cancelled and ends
+ * with a cancelled line, and a connection that sends nothing for longer
+ * than the request timeout is closed. A connection may have at most
+ * maxPending requests outstanding, each number of a batch counting as one;
+ * beyond that the server stops reading it until some are answered, so a
+ * client that pipelines faster than it is answered is slowed down instead
+ * of queueing without bound. Cancel lines sent meanwhile wait too. Results are kept in
+ * a FactorCache, so repeated and overlapping requests are answered without
+ * factoring again. Given a store directory, main keeps complete
+ * factorisations in a FactorStore there, so they are not computed again
+ * after a restart. While fewer requests are being computed than there are
+ * cores, each is spread over the common ForkJoinPool so that the idle cores
+ * help. The same metrics are printed to standard error once a minute when the
+ * server is run from main.
  * 
  * The client messages that come in will indicate the value that is being
  * factored and the range of values this server will be processing over. Your
@@ -31,7 +74,18 @@ import primefactors.util.BigMath;
  * Client-to-Server Message Protocol:
  * 
  * Message := Factor Space N Space LowBound Space HighBound Space NewLine
+ *            | FactorBatch (Space N)+ NewLine
+ *            | Cancel Space N Space LowBound Space HighBound Space NewLine
+ *            | Progress Space Millis NewLine
+ *            | Ping NewLine
+ *            | Stats NewLine
  * Factor := factor
+ * FactorBatch := factorbatch
+ * Cancel := cancel
+ * Progress := progress
+ * Ping := ping
+ * Stats := stats
+ * Millis := Number
  * N := Number
  * LowBound := Number
  * HighBound := Number
@@ -44,25 +98,118 @@ import primefactors.util.BigMath;
  * Protocol := Message*
  * Message := Found Space N Space Factor NewLine
  *            | Done Space N Space LowBound Space HighBound NewLine
+ *            | Cancelled Space N Space LowBound Space HighBound NewLine
+ *            | Progress Space N Space Candidate NewLine
+ *            | Pong NewLine
+ *            | Stats Space [^NewLine]* NewLine
  *            | Invalid NewLine
  * Found := found
  * Done := done
+ * Cancelled := cancelled
+ * Progress := progress
+ * Pong := pong
+ * Stats := stats
  * Invalid := invalid
  * N := Number
  * Factor := Number
+ * Candidate := Number
  * LowBound := Number
  * HighBound := Number
  * Number := [0-9]+
  * Space = " "
  * NewLine := "\n"
+ * 
+ * Requests are answered in order, each with its found lines and then one
+ * done line, or one invalid line. Messages are read while earlier requests are
+ * being computed:
+ *  - factorbatch asks for all the prime factors of each of its numbers, as
+ *    if by factor N 2 N, but found with Pollard's rho and the elliptic
+ *    curve method (BigMath.factor) instead of trial division, so a large
+ *    semiprime does not hold a lane for ever. Their progress lines carry the
+ *    piece being split. Up to BATCH_LANES of them are factored at once,
+ *    and each is answered with its found lines and done line as soon as it
+ *    is finished, so the numbers of a batch are answered out of order. The
+ *    batch as a whole keeps its place among the other requests. Text
+ *    protocol only.
+ *  - cancel stops every outstanding request of the connection equal to the
+ *    one named, including a number of a batch; a cancelled request ends with a cancelled line instead of its
+ *    found and done lines.
+ *  - progress sets the milliseconds between progress lines, sent while a
+ *    request runs with the candidate its search has reached; 0 (the default)
+ *    turns them off.
+ *  - ping is answered with pong at once, ahead of any outstanding reply, so
+ *    a client can tell a busy server from a dead one.
+ *  - stats is answered at once with one line of the server's Metrics:
+ *    connections, requests by command, bytes in and out, errors, and
+ *    histograms of request latency and compute time. Text protocol only.
+ * bb, or the end of the client's input, closes the connection once every
+ * outstanding request is answered. Once a reply or progress line can no
+ * longer be written to the client, its outstanding requests are cancelled.
+ * 
+ * A client may instead send the line "binary" as its first message. The
+ * server answers "binary" and the rest of the connection uses the framed
+ * protocol described in BinaryProtocol.
  */
 public class PrimeFactorsServer {
 
     private final static int DEFAULT_PORT = 4444;
+    private final static int DEFAULT_MAX_CONNECTIONS = 64;
+    private final static int DEFAULT_REQUEST_TIMEOUT = 0;
+    private final static int DEFAULT_MAX_PENDING = 256;
     private final static String INVALID = "invalid";
+    private final static String PROGRESS = "progress ";
+    private final static String PING = "ping";
+    private final static String PONG = "pong";
+    private final static String STATS = "stats";
+    private final static long METRICS_INTERVAL = 60;
+    private final static int CORES = Runtime.getRuntime().availableProcessors();
+    // Numbers of one batch factored at once. More than the cores, so that a
+    // number that takes long does not hold up the quick ones behind it.
+    private final static int BATCH_LANES = 2 * CORES;
+    
+    // Rep invariant: serverSocket, workers, searchers, permits, clients,
+    //                deadlines != null
+    //                0 <= requestTimeout, 0 < maxPending
+    private final ServerSocket serverSocket;
+    // Each connection is read by a worker ...
+    private final ExecutorService workers;
+    // ... and its requests are computed, one at a time, by a searcher.
+    private final ExecutorService searchers;
+    // One permit per connection that may be in flight at once.
+    private final Semaphore permits;
+    // Connections currently being handled, so shutdown can reach them.
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    // Milliseconds a connection may stay idle between requests, and a
+    // request may take to be answered; 0 = forever.
+    private final int requestTimeout;
+    // Cancels requests that outlive requestTimeout.
+    private final ScheduledExecutorService deadlines;
+    // Requests a connection may have outstanding before it is not read.
+    private final int maxPending;
+    private final FactorCache cache;
+    // Requests being computed, over all connections.
+    private final AtomicInteger searching = new AtomicInteger();
+    private volatile boolean running = true;
     
-    // Rep invariant: serverSocket != null
-    private ServerSocket serverSocket;
+    private final Metrics metrics = new Metrics("PrimeFactorsServer");
+    // Looked up once: these are updated on every request.
+    private final LongAdder accepted = metrics.counter("connections.accepted");
+    private final LongAdder bytesIn = metrics.counter("bytes.in");
+    private final LongAdder bytesOut = metrics.counter("bytes.out");
+    private final LongAdder errors = metrics.counter("errors");
+    private final LongAdder factors = metrics.counter("requests.factor");
+    private final LongAdder batches = metrics.counter("requests.factorbatch");
+    private final LongAdder cancels = metrics.counter("requests.cancel");
+    private final LongAdder progresses = metrics.counter("requests.progress");
+    private final LongAdder pings = metrics.counter("requests.ping");
+    private final LongAdder stats = metrics.counter("requests.stats");
+    private final LongAdder invalids = metrics.counter("requests.invalid");
+    private final LongAdder timeouts = metrics.counter("requests.timedout");
+    private final LongAdder cancelledReplies = metrics.counter("replies.cancelled");
+    // From reading a request to writing its reply ...
+    private final LatencyHistogram latency = metrics.histogram("latency.factor");
+    // ... of which searching.
+    private final LatencyHistogram compute = metrics.histogram("compute.factor");
     
     /**
      * Make a server that listens for connections on port.
@@ -70,25 +217,179 @@ public class PrimeFactorsServer {
      * @throws IOException
      */
     public PrimeFactorsServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, DEFAULT_MAX_CONNECTIONS, DEFAULT_REQUEST_TIMEOUT);
     }
     
     /**
-     * Run server and handle connections.
+     * Make a server that listens for connections on port.
+     * @param port
+     * @param maxConnections Maximum number of clients handled at once, > 0.
+     * @param requestTimeout Milliseconds a client may stay idle before it is
+     *        disconnected, >= 0. 0 means no timeout.
      * @throws IOException
      */
+    public PrimeFactorsServer(int port, int maxConnections, int requestTimeout) 
+            throws IOException {
+        this(port, maxConnections, requestTimeout, new FactorCache());
+    }
+    
+    /**
+     * Make a server that listens for connections on port.
+     * @param port
+     * @param maxConnections Maximum number of clients handled at once, > 0.
+     * @param requestTimeout Milliseconds a client may stay idle before it is
+     *        disconnected, >= 0. 0 means no timeout.
+     * @param cache Cache of results consulted before factoring.
+     * @throws IOException
+     */
+    public PrimeFactorsServer(int port, int maxConnections, int requestTimeout,
+            FactorCache cache) throws IOException {
+        this(port, maxConnections, requestTimeout, DEFAULT_MAX_PENDING, cache);
+    }
+    
+    /**
+     * Make a server that listens for connections on port.
+     * @param port
+     * @param maxConnections Maximum number of clients handled at once, > 0.
+     * @param requestTimeout Milliseconds a client may stay idle before it is
+     *        disconnected, and a request may take before it is cancelled,
+     *        >= 0. 0 means no timeout.
+     * @param maxPending Maximum number of requests of one client outstanding
+     *        before the server stops reading from it, > 0.
+     * @param cache Cache of results consulted before factoring.
+     * @throws IOException
+     */
+    public PrimeFactorsServer(int port, int maxConnections, int requestTimeout,
+            int maxPending, FactorCache cache) throws IOException {
+        if (maxConnections <= 0 || requestTimeout < 0 || maxPending <= 0)
+            throw new IllegalArgumentException();
+        this.serverSocket = new ServerSocket(port);
+        this.workers = Executors.newFixedThreadPool(maxConnections);
+        // Daemons: a searcher only works for a worker, which waits for it.
+        this.searchers = Executors.newFixedThreadPool(maxConnections, r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        this.permits = new Semaphore(maxConnections);
+        this.requestTimeout = requestTimeout;
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PrimeFactorsServer deadlines");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxPending = maxPending;
+        this.cache = cache;
+        metrics.gauge("connections.open", clients::size);
+        metrics.gauge("searches.running", searching::get);
+        metrics.gauge("cache.hits", () -> cache.rangeHits() + cache.factorizationHits());
+        metrics.gauge("cache.misses", cache::misses);
+        metrics.gauge("cache.store.hits", cache::storeHits);
+    }
+    
+    /**
+     * @return The port this server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /**
+     * @return The metrics of this server.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * @return The cache of results, with its hit and miss counts.
+     */
+    public FactorCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * Run server and handle connections concurrently.
+     * Returns once shutdown() has been called.
+     * @throws IOException if the server socket fails
+     */
     public void serve() throws IOException {
-        while (true) {
-            Socket socket = serverSocket.accept();
-            
-            try { 
-                handle(socket);
+        try {
+            while (running) {
+                // Back-pressure: don't accept a client we have no worker for.
+                permits.acquireUninterruptibly();
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    permits.release();
+                    if (!running)
+                        return;
+                    throw e;
+                }
+                
+                clients.add(socket);
+                accepted.increment();
+                workers.execute(() -> {
+                    try {
+                        try {
+                            socket.setSoTimeout(requestTimeout);
+                            handle(socket);
+                        } finally {
+                            clients.remove(socket);
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                        e.printStackTrace();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+    
+    /**
+     * Stop accepting clients and disconnect the connected ones once their
+     * current request has been answered.
+     * @param timeout How long to wait for connections to finish.
+     * @param unit Unit of timeout.
+     * @return True if all connections finished within the timeout.
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) 
+            throws InterruptedException {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Ends the read loop of each handler after its current request.
+        for (Socket socket : clients) {
+            try {
+                socket.shutdownInput();
             } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
+                // Already closed by the client.
+            }
+        }
+        workers.shutdown();
+        if (workers.awaitTermination(timeout, unit)) {
+            searchers.shutdown();
+            deadlines.shutdown();
+            return true;
+        }
+        for (Socket socket : clients) {
+            try {
                 socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        return false;
     }
     
     /**
@@ -97,36 +398,31 @@ public class PrimeFactorsServer {
      * @throws IOException
      */
     private void handle(Socket clientSocket) throws IOException {
+        OutputStream rawOut = new BufferedOutputStream(
+                Metrics.counting(clientSocket.getOutputStream(), bytesOut));
         PrintWriter out = new PrintWriter(
-                new OutputStreamWriter(clientSocket.getOutputStream()));
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(clientSocket.getInputStream()));
+                new OutputStreamWriter(rawOut, StandardCharsets.US_ASCII));
+        Connection connection = new Connection(out, rawOut);
+        // Lines are read without read-ahead, so the same stream can carry
+        // binary frames after the switch.
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new PatientInputStream(
+                        Metrics.counting(clientSocket.getInputStream(), bytesIn), connection)));
         
         out.println();
+        out.flush();
 
         try {
-            String inputLine;
-
-            while ((inputLine = in.readLine()) != null) {
-                // 
-                if (inputLine.equals("bb"))
-                    break;
-                
-                if (!isValidMessage(inputLine)) {
-                    out.println(INVALID);
-                } else {
-                    String[] tokens = inputLine.split(" ");
-                    BigInteger n = new BigInteger(tokens[1]);
-                    BigInteger lo = new BigInteger(tokens[2]);
-                    BigInteger hi = new BigInteger(tokens[3]);
-                    List<BigInteger> found = BigMath.findAllPrimeFactors(n, lo, hi);
-                    
-                    for (BigInteger bi : found)
-                        out.println(String.format("found %s %s", n.toString(), bi.toString()));
-                    out.println(String.format("done %s %s %s", tokens[1], tokens[2], tokens[3]));
-                }
+            String inputLine = readRequest(() -> BinaryProtocol.readLine(in));
+            if (BinaryProtocol.HELLO.equals(inputLine)) {
+                out.println(BinaryProtocol.HELLO);
                 out.flush();
+                connection.binary = true;
+                readFrames(in, connection);
+            } else {
+                readLines(inputLine, in, connection);
             }
+            connection.finish();
         } finally {
             in.close();
             out.close();
@@ -134,52 +430,477 @@ public class PrimeFactorsServer {
     }
 
     /**
-     * Check the validity of the client's message.
-     * See Client-to-Server protocol for message format information.
-     * Additional requirements:
-     * 2 <= Number
-     * 1 <= LowBound <= HighBound
-     * @param message The clients message.
-     * @return True if a client's message is valid, false otherwise.
+     * Read text messages until the client disconnects or says bb.
+     * @param inputLine The first line, already read; null if none.
+     * @param in The client's input, positioned after the first line.
+     * @param connection
+     * @throws IOException
      */
-    private boolean isValidMessage(String message) {
-        String[] tokens = message.split(" ");
-        
-        // Number of tokens in a message should be 4 and should start with factor.
-        if (tokens.length != 4 || !tokens[0].equals("factor"))
-            return false;
+    private void readLines(String inputLine, DataInputStream in, Connection connection)
+            throws IOException {
+        // Every line, not just the first, is held to the same length limit.
+        for (; inputLine != null; inputLine = readRequest(() -> BinaryProtocol.readLine(in))) {
+            // 
+            if (inputLine.equals("bb"))
+                break;
+            if (inputLine.equals(PING)) {
+                pings.increment();
+                connection.writeLine(PONG);
+                continue;
+            }
+            if (inputLine.equals(STATS)) {
+                stats.increment();
+                connection.writeLine(STATS + " " + metrics);
+                continue;
+            }
+            
+            FactorRequest request = FactorRequest.parse(inputLine);
+            if (request != null) {
+                factors.increment();
+                connection.submit(new FactorJob(request, 0, connection));
+                continue;
+            }
+            List<FactorRequest> batch = FactorRequest.parseBatch(inputLine);
+            if (batch != null) {
+                batches.increment();
+                factors.add(batch.size());
+                List<FactorJob> batchJobs = new ArrayList<FactorJob>(batch.size());
+                for (FactorRequest r : batch)
+                    batchJobs.add(new FactorJob(r, 0, connection, true));
+                connection.submitBatch(batchJobs);
+                continue;
+            }
+            FactorRequest target = FactorRequest.parseCancel(inputLine);
+            if (target != null) {
+                cancels.increment();
+                connection.cancel(job -> job.request.equals(target));
+                continue;
+            }
+            if (inputLine.startsWith(PROGRESS)
+                    && inputLine.substring(PROGRESS.length()).matches("\\d{1,9}")) {
+                progresses.increment();
+                connection.setProgressInterval(
+                        Integer.parseInt(inputLine.substring(PROGRESS.length())));
+                continue;
+            }
+            invalids.increment();
+            connection.admit(1);
+            connection.reply(() -> {
+                try {
+                    connection.writeLine(INVALID);
+                } finally {
+                    connection.answered(1);
+                }
+            });
+        }
+    }
 
-        String regex = "\\d+";
-        if (!(tokens[1].matches(regex) && tokens[2].matches(regex) && tokens[3].matches(regex)))
-                return false;
-        
-        BigInteger n = new BigInteger(tokens[1]);
-        BigInteger low = new BigInteger(tokens[2]);
-        BigInteger high = new BigInteger(tokens[3]);
+    /**
+     * Read binary frames until the client disconnects.
+     * @param in The client's input, positioned at the first frame.
+     * @param connection
+     * @throws IOException
+     */
+    private void readFrames(DataInputStream in, Connection connection) throws IOException {
+        BinaryProtocol.Frame frame;
+        while ((frame = readRequest(() -> BinaryProtocol.read(in))) != null) {
+            final int id = frame.id;
+            if (frame.type == BinaryProtocol.CANCEL) {
+                cancels.increment();
+                connection.cancel(job -> job.id == id);
+            } else if (frame.type == BinaryProtocol.PING) {
+                pings.increment();
+                connection.write(new BinaryProtocol.Frame(
+                        id, BinaryProtocol.PONG, Collections.<BigInteger>emptyList()));
+            } else if (frame.type == BinaryProtocol.PROGRESS && frame.numbers.size() == 1
+                    && frame.numbers.get(0).bitLength() < Integer.SIZE) {
+                progresses.increment();
+                connection.setProgressInterval(frame.numbers.get(0).intValue());
+            } else {
+                FactorRequest request = FactorRequest.parse(frame);
+                if (request != null) {
+                    factors.increment();
+                    connection.submit(new FactorJob(request, id, connection));
+                } else {
+                    invalids.increment();
+                    connection.admit(1);
+                    connection.reply(() -> {
+                        try {
+                            connection.write(new BinaryProtocol.Frame(id,
+                                    BinaryProtocol.INVALID, Collections.<BigInteger>emptyList()));
+                        } finally {
+                            connection.answered(1);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one client. Its reader thread submits requests; they are
+     * answered one after another on the searchers.
+     */
+    private class Connection implements FactorJob.Reporter {
+        final PrintWriter out;
+        final OutputStream rawOut;
+        // Set once, before the first request.
+        boolean binary = false;
+        // Requests accepted and not yet answered.
+        private final Queue<FactorJob> jobs = new ConcurrentLinkedQueue<FactorJob>();
+        // Completes once the last reply queued has been written. Only used
+        // by the reader.
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private volatile long progressInterval = 0;
+        // Requests read and not yet answered, including invalid ones.
+        // Guarded by admission.
+        private int outstanding = 0;
+        private final Object admission = new Object();
+
+        Connection(PrintWriter out, OutputStream rawOut) {
+            this.out = out;
+            this.rawOut = rawOut;
+        }
+
+        /**
+         * Answer job after every earlier request.
+         */
+        void submit(FactorJob job) throws InterruptedIOException {
+            admit(1);
+            jobs.add(job);
+            startDeadline(job);
+            reply(() -> answer(job));
+        }
+
+        /**
+         * Answer batch after every earlier request, spread over up to
+         * BATCH_LANES searchers, each job as soon as it is finished.
+         */
+        void submitBatch(List<FactorJob> batch) throws InterruptedIOException {
+            admit(batch.size());
+            jobs.addAll(batch);
+            for (FactorJob job : batch)
+                startDeadline(job);
+            Queue<FactorJob> pending = new ConcurrentLinkedQueue<FactorJob>(batch);
+            tail = recover(tail.thenCompose(v -> {
+                CompletableFuture<?>[] lanes =
+                        new CompletableFuture<?>[Math.min(BATCH_LANES, batch.size())];
+                for (int i = 0; i < lanes.length; i++) {
+                    lanes[i] = CompletableFuture.runAsync(() -> {
+                        FactorJob job;
+                        while ((job = pending.poll()) != null)
+                            answer(job);
+                    }, searchers);
+                }
+                return CompletableFuture.allOf(lanes);
+            }));
+        }
+
+        /**
+         * Wait until count more requests fit under maxPending. A request
+         * larger than maxPending is let in once nothing else is outstanding.
+         * @throws InterruptedIOException if interrupted while waiting
+         */
+        void admit(int count) throws InterruptedIOException {
+            synchronized (admission) {
+                try {
+                    while (outstanding > 0 && outstanding + count > maxPending)
+                        admission.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                outstanding += count;
+            }
+        }
+
+        /**
+         * Record that count admitted requests have been answered.
+         */
+        void answered(int count) {
+            synchronized (admission) {
+                outstanding -= count;
+                admission.notifyAll();
+            }
+        }
+
+        /**
+         * Cancel job once it is requestTimeout old, unless answered first.
+         */
+        private void startDeadline(FactorJob job) {
+            if (requestTimeout == 0)
+                return;
+            job.deadline = deadlines.schedule(() -> {
+                if (jobs.contains(job)) {
+                    timeouts.increment();
+                    job.cancel();
+                }
+            }, requestTimeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.received),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Run writer once every earlier request has been answered.
+         */
+        void reply(Runnable writer) {
+            tail = recover(tail.thenRunAsync(writer, searchers));
+        }
+
+        /**
+         * @return stage, except that a failure of stage is counted and
+         *         dropped, so that the replies queued after it still run.
+         */
+        private CompletableFuture<Void> recover(CompletableFuture<Void> stage) {
+            return stage.exceptionally(e -> {
+                errors.increment();
+                e.printStackTrace();
+                return null;
+            });
+        }
+
+        /**
+         * Cancel every outstanding job that matches.
+         */
+        void cancel(Predicate<FactorJob> matches) {
+            for (FactorJob job : jobs)
+                if (matches.test(job))
+                    job.cancel();
+        }
+
+        /**
+         * @return True if no request is outstanding.
+         */
+        boolean isIdle() {
+            return jobs.isEmpty();
+        }
+
+        void setProgressInterval(int millis) {
+            progressInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        /**
+         * Wait until every reply has been written.
+         */
+        void finish() {
+            tail.join();
+        }
+
+        private void answer(FactorJob job) {
+            try {
+                search(job);
+            } finally {
+                answered(1);
+            }
+        }
+
+        /**
+         * Search for job and write its reply.
+         */
+        private void search(FactorJob job) {
+            List<BigInteger> found;
+            // Once every core has a request of its own, splitting one only
+            // adds overhead.
+            boolean idleCores = searching.incrementAndGet() < CORES;
+            long started = System.nanoTime();
+            try {
+                found = job.run(cache, idleCores ? ForkJoinPool.commonPool() : null);
+            } catch (RuntimeException e) {
+                errors.increment();
+                e.printStackTrace();
+                jobs.remove(job);
+                if (binary)
+                    write(new BinaryProtocol.Frame(job.id, BinaryProtocol.INVALID,
+                            Collections.<BigInteger>emptyList()));
+                else
+                    writeLine(INVALID);
+                return;
+            } finally {
+                searching.decrementAndGet();
+                compute.recordSince(started);
+                if (job.deadline != null)
+                    job.deadline.cancel(false);
+            }
+            if (found == null)
+                cancelledReplies.increment();
+            jobs.remove(job);
+            FactorRequest request = job.request;
+            if (binary) {
+                if (found == null)
+                    write(new BinaryProtocol.Frame(job.id, BinaryProtocol.CANCELLED,
+                            Collections.<BigInteger>emptyList()));
+                else
+                    write(new BinaryProtocol.Frame(job.id, BinaryProtocol.FOUND, found));
+            } else {
+                // The jobs of a batch are answered concurrently; keep the
+                // lines of each together.
+                synchronized (out) {
+                    if (found == null) {
+                        out.println(request.cancelled());
+                    } else {
+                        for (BigInteger bi : found)
+                            out.println(request.found(bi));
+                        out.println(request.done());
+                    }
+                    flush();
+                }
+            }
+            latency.recordSince(job.received);
+        }
+
+        @Override
+        public long progressInterval() {
+            return progressInterval;
+        }
+
+        @Override
+        public void progress(FactorJob job, BigInteger candidate) {
+            if (binary) {
+                write(new BinaryProtocol.Frame(job.id, BinaryProtocol.PROGRESS,
+                        Collections.singletonList(candidate)));
+            } else {
+                writeLine(job.request.progress(candidate));
+            }
+        }
 
-        return n.compareTo(new BigInteger("2")) >= 0 
-                && low.compareTo(BigInteger.ONE) >= 0 
-                && high.compareTo(low) >= 0;
+        void writeLine(String line) {
+            // Not inside another request's found and done lines.
+            synchronized (out) {
+                out.println(line);
+                flush();
+            }
+        }
+
+        void write(BinaryProtocol.Frame frame) {
+            try {
+                rawOut.write(frame.encode());
+                rawOut.flush();
+            } catch (IOException e) {
+                // Gone: nobody is left to read the answers.
+                cancel(job -> true);
+            }
+        }
+
+        private void flush() {
+            // PrintWriter reports a failed write only through checkError.
+            if (out.checkError())
+                cancel(job -> true);
+        }
+    }
+
+    /**
+     * The input of a client socket with a read timeout, on which a timeout
+     * only counts while the connection is idle: a client waiting for a long
+     * request is not disconnected. Timeouts are retried below any buffering,
+     * where they lose no data.
+     */
+    private static class PatientInputStream extends FilterInputStream {
+        private final Connection connection;
+
+        PatientInputStream(InputStream in, Connection connection) {
+            super(in);
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                try {
+                    return super.read();
+                } catch (SocketTimeoutException e) {
+                    if (connection.isIdle())
+                        throw e;
+                }
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                try {
+                    return super.read(b, off, len);
+                } catch (SocketTimeoutException e) {
+                    if (connection.isIdle())
+                        throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Something that reads one request from a client.
+     */
+    private interface RequestReader<T> {
+        T read() throws IOException;
+    }
+
+    /**
+     * Read the next request from a client.
+     * @param reader Reads the request from the client's input.
+     * @return The next request, or null if the client disconnected, stayed
+     *         idle for longer than the request timeout, or the server is
+     *         shutting down.
+     * @throws IOException
+     */
+    private <T> T readRequest(RequestReader<T> reader) throws IOException {
+        if (!running)
+            return null;
+        try {
+            return reader.read();
+        } catch (SocketTimeoutException e) {
+            return null;
+        } catch (SocketException e) {
+            // Input was shut down by shutdown().
+            if (!running)
+                return null;
+            throw e;
+        }
     }
 
     /**
      * @param args
-     *            String array containing Program arguments. It should only
-     *            contain one String indicating the port it should connect to.
-     *            Defaults to port 4444 if no Program argument is present.
+     *            String array containing Program arguments: the port to
+     *            listen on, optionally followed by the maximum number of
+     *            concurrent clients, the idle timeout in milliseconds and
+     *            the directory of a FactorStore. Defaults to port 4444, 64
+     *            clients, no timeout and no store.
      */
     public static void main(String[] args) {
         
       int port = DEFAULT_PORT;
-      if (args.length > 1) {
-          System.err.println("Usage: java EchoServer <port number>?");
+      int maxConnections = DEFAULT_MAX_CONNECTIONS;
+      int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+      Path storeDir = null;
+      if (args.length > 4) {
+          System.err.println("Usage: java PrimeFactorsServer "
+                  + "<port number>? <max clients>? <timeout ms>? <store directory>?");
           System.exit(1);
-      } else if (args.length == 1) {
-          port = Integer.parseInt(args[0]);
       }
+      if (args.length >= 1)
+          port = Integer.parseInt(args[0]);
+      if (args.length >= 2)
+          maxConnections = Integer.parseInt(args[1]);
+      if (args.length >= 3)
+          requestTimeout = Integer.parseInt(args[2]);
+      if (args.length == 4)
+          storeDir = Paths.get(args[3]);
       
       try {
-          PrimeFactorsServer server = new PrimeFactorsServer(port);
+          final FactorStore store = storeDir == null ? null : new FactorStore(storeDir);
+          final PrimeFactorsServer server = new PrimeFactorsServer(port, maxConnections,
+                  requestTimeout, new FactorCache(FactorCache.DEFAULT_MAX_ENTRIES,
+                          FactorCache.DEFAULT_TTL, store));
+          server.getMetrics().logEvery(METRICS_INTERVAL, TimeUnit.SECONDS, System.err);
+          Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+              try {
+                  server.shutdown(5, TimeUnit.SECONDS);
+                  if (store != null)
+                      store.close();
+              } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+              } catch (IOException e) {
+                  e.printStackTrace();
+              }
+          }));
           server.serve();
       } catch (IOException e) {
           e.printStackTrace();
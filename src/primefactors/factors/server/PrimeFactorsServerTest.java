@@ -0,0 +1,309 @@
+package primefactors.factors.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import primefactors.util.SearchProgress;
+
+public class PrimeFactorsServerTest {
+
+    /**
+     * A cache whose factor blocks for one number until released or
+     * cancelled, and fails for another.
+     */
+    private static class TestCache extends FactorCache {
+        final BigInteger blocked;
+        final BigInteger failing;
+        final CountDownLatch release = new CountDownLatch(1);
+
+        TestCache(long blocked, long failing) {
+            this.blocked = BigInteger.valueOf(blocked);
+            this.failing = BigInteger.valueOf(failing);
+        }
+
+        @Override
+        public List<BigInteger> factor(BigInteger n, SearchProgress progress) {
+            if (n.equals(failing))
+                throw new IllegalStateException("failing " + n);
+            try {
+                while (n.equals(blocked) && !release.await(10, TimeUnit.MILLISECONDS))
+                    if (!progress.proceed(n))
+                        throw new CancellationException();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.factor(n, progress);
+        }
+    }
+
+    private static Thread serve(final PrimeFactorsServer server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static Socket connect(PrimeFactorsServer server) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(20000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.US_ASCII));
+        // Skip greeting.
+        assertEquals("", in.readLine());
+        return in;
+    }
+
+    private static PrintWriter writer(Socket socket) throws IOException {
+        return new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    /**
+     * @return The lines of a complete factorisation of n into factors.
+     */
+    private static List<String> answer(long n, long... factors) {
+        List<String> lines = new ArrayList<String>();
+        for (long f : factors)
+            lines.add("found " + n + " " + f);
+        lines.add("done " + n + " 2 " + n);
+        return lines;
+    }
+
+    private static List<String> readLines(BufferedReader in, int count) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+            lines.add(in.readLine());
+        return lines;
+    }
+
+    @Test
+    public void testBatchIsStreamedAsNumbersFinish() throws Exception {
+        TestCache cache = new TestCache(100, 0);
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0, cache);
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = writer(socket);
+        out.println("factorbatch 100 12 30");
+        out.println("factor 42 2 42");
+
+        // 100 holds one lane; the numbers behind it are answered on the
+        // other, each with its own done line.
+        assertEquals(answer(12, 2, 2, 3), readLines(in, 4));
+        assertEquals(answer(30, 2, 3, 5), readLines(in, 4));
+        // The request after the batch waits for all of it.
+        Thread.sleep(200);
+        assertFalse(in.ready());
+        cache.release.countDown();
+        assertEquals(answer(100, 2, 2, 5, 5), readLines(in, 5));
+        assertEquals(answer(42, 2, 3, 7), readLines(in, 4));
+
+        out.println("bb");
+        assertNull(in.readLine());
+        socket.close();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testFailingBatchNumberIsInvalid() throws Exception {
+        TestCache cache = new TestCache(0, 77);
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0, cache);
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = writer(socket);
+        out.println("factorbatch 12 77 30");
+
+        // The lanes finish in any order, but the lines of each number stay
+        // together.
+        List<String> lines = new ArrayList<String>(readLines(in, 9));
+        int invalid = lines.indexOf("invalid");
+        assertTrue(lines.toString(), invalid >= 0);
+        lines.remove(invalid);
+        int twelve = lines.indexOf("found 12 2");
+        assertEquals(answer(12, 2, 2, 3), lines.subList(twelve, twelve + 4));
+        lines.subList(twelve, twelve + 4).clear();
+        assertEquals(answer(30, 2, 3, 5), lines);
+        assertTrue(server.getMetrics().counter("errors").sum() >= 1);
+
+        // The connection is still answered.
+        out.println("factor 42 2 42");
+        assertEquals(answer(42, 2, 3, 7), readLines(in, 4));
+        socket.close();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testLongLineAfterTheFirstIsRejected() throws Exception {
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0);
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = writer(socket);
+        out.println("ping");
+        assertEquals("pong", in.readLine());
+
+        char[] digits = new char[64 * 1024 + 1];
+        Arrays.fill(digits, '1');
+        out.println("factorbatch " + new String(digits));
+        // The connection is dropped rather than the line read in full.
+        String reply;
+        try {
+            reply = in.readLine();
+        } catch (SocketException e) {
+            // Reset: the rest of the line was never read.
+            reply = null;
+        }
+        assertNull(reply);
+        socket.close();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testClientsAreServedConcurrently() throws Exception {
+        TestCache cache = new TestCache(100, 0);
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0, cache);
+        Thread serving = serve(server);
+        Socket first = connect(server);
+        Socket second = connect(server);
+        BufferedReader firstIn = reader(first);
+        BufferedReader secondIn = reader(second);
+        writer(first).println("factorbatch 100");
+
+        // The second client is answered while the first waits.
+        writer(second).println("factor 42 2 42");
+        assertEquals(answer(42, 2, 3, 7), readLines(secondIn, 4));
+        assertFalse(firstIn.ready());
+        cache.release.countDown();
+        assertEquals(answer(100, 2, 2, 5, 5), readLines(firstIn, 5));
+
+        first.close();
+        second.close();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testPipelinedRequestsAreAnsweredInOrder() throws Exception {
+        TestCache cache = new TestCache(100, 0);
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0, cache);
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = writer(socket);
+        // Each prime answered by one found line and one done line.
+        long[] primes = { 101, 103, 107, 109, 113, 127, 131, 137, 139, 149 };
+        out.println("factorbatch 100");
+        for (long p : primes)
+            out.println("factor " + p + " 2 " + p);
+
+        // Nothing overtakes the first request.
+        Thread.sleep(200);
+        assertFalse(in.ready());
+        cache.release.countDown();
+        assertEquals(answer(100, 2, 2, 5, 5), readLines(in, 5));
+        for (long p : primes)
+            assertEquals(answer(p, p), readLines(in, 2));
+
+        socket.close();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testRequestIsCancelledAtItsDeadline() throws Exception {
+        TestCache cache = new TestCache(100, 0);
+        PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 500, cache);
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = writer(socket);
+        long started = System.nanoTime();
+        out.println("factorbatch 100");
+        // Sent before the client counts as idle; it gets a deadline of its
+        // own, which it meets once the first is cancelled.
+        Thread.sleep(250);
+        out.println("factor 42 2 42");
+
+        assertEquals("cancelled 100 2 100", in.readLine());
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(answer(42, 2, 3, 7), readLines(in, 4));
+        assertEquals(1, server.getMetrics().counter("requests.timedout").sum());
+
+        socket.close();
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        serving.join();
+    }
+
+    @Test
+    public void testShutdownAnswersRequestsInFlight() throws Exception {
+        TestCache cache = new TestCache(100, 0);
+        final PrimeFactorsServer server = new PrimeFactorsServer(0, 4, 0, cache);
+        int port = server.getPort();
+        Thread serving = serve(server);
+        Socket socket = connect(server);
+        BufferedReader in = reader(socket);
+        PrintWriter out = writer(socket);
+        out.println("factorbatch 100");
+        out.println("factor 42 2 42");
+        // Both read before shutting down.
+        while (server.getMetrics().counter("requests.factor").sum() < 2)
+            Thread.sleep(10);
+
+        final boolean[] finished = new boolean[1];
+        Thread stopping = new Thread(() -> {
+            try {
+                finished[0] = server.shutdown(20, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        stopping.start();
+        serving.join();
+        cache.release.countDown();
+
+        // Both are answered before the connection is closed.
+        assertEquals(answer(100, 2, 2, 5, 5), readLines(in, 5));
+        assertEquals(answer(42, 2, 3, 7), readLines(in, 4));
+        assertNull(in.readLine());
+        stopping.join();
+        assertTrue(finished[0]);
+
+        // No longer accepting.
+        try {
+            new Socket("localhost", port).close();
+            fail("connected after shutdown");
+        } catch (ConnectException e) {
+            // Expected.
+        }
+        socket.close();
+    }
+}
@@ -0,0 +1,74 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Factorizer that escalates from cheap to expensive methods: trial division by
+ * small primes, then Pollard's rho for small to medium factors, then the
+ * elliptic curve method with growing bounds until a factor turns up.
+ */
+public class AutoFactorizer implements Factorizer {
+
+    private static final int SMALL_PRIME_LIMIT = 1000;
+    private static final int[] SMALL_PRIMES = PrimeSieve.primesUpTo(SMALL_PRIME_LIMIT);
+    // Enough rho steps for factors of roughly 12 digits.
+    private static final long RHO_STEPS = 1 << 20;
+    // ECM stage 1 bounds and curve counts, from 15- to 40-digit factors.
+    private static final int[] ECM_B1 = { 2000, 11000, 50000, 250000, 1000000, 3000000 };
+    private static final int[] ECM_CURVES = { 25, 90, 300, 700, 1800, 5100 };
+
+    private final Random random;
+    private final SearchProgress progress;
+
+    public AutoFactorizer() {
+        this(new Random());
+    }
+
+    /**
+     * @param random Source of randomness for the probabilistic methods.
+     */
+    public AutoFactorizer(Random random) {
+        this(random, SearchProgress.NONE);
+    }
+
+    /**
+     * @param random Source of randomness for the probabilistic methods.
+     * @param progress Asked, with the number being split, before Pollard's
+     *        rho and before each elliptic curve.
+     */
+    public AutoFactorizer(Random random, SearchProgress progress) {
+        this.random = random;
+        this.progress = progress;
+    }
+
+    /**
+     * Never gives up: if every ECM level fails, the last level is repeated.
+     * @see Factorizer#findFactor(BigInteger)
+     * @throws CancellationException if progress abandoned the search
+     */
+    @Override
+    public BigInteger findFactor(BigInteger n) {
+        for (int p : SMALL_PRIMES) {
+            BigInteger bp = BigInteger.valueOf(p);
+            if (bp.compareTo(n) >= 0)
+                break;
+            if (n.mod(bp).signum() == 0)
+                return bp;
+        }
+
+        if (!progress.proceed(n))
+            throw new CancellationException();
+        BigInteger d = new PollardRho(RHO_STEPS, random).findFactor(n);
+        if (d != null)
+            return d;
+
+        for (int level = 0; ; level = Math.min(level + 1, ECM_B1.length - 1)) {
+            d = new EllipticCurveMethod(ECM_B1[level], ECM_CURVES[level], random, progress)
+                    .findFactor(n);
+            if (d != null)
+                return d;
+        }
+    }
+}
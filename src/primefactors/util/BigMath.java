@@ -1,34 +1,70 @@
 package primefactors.util;
 
 import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
 
 public class BigMath {
 
+    static final BigInteger TWO = BigInteger.valueOf(2);
+    // Candidates tried between calls to SearchProgress, per search loop.
+    private static final int SMALL_CHECK_INTERVAL = 1 << 14;
+    private static final int BIG_CHECK_INTERVAL = 1 << 4;
+
     /**
      * Given a BigInteger input n, where n >= 0, returns the largest BigInteger r such that r*r <= n.
      * 
      * For n < 0, returns 0.
      * 
-     * 
-     * details: http://faruk.akgul.org/blog/javas-missing-algorithm-biginteger-sqrt
+     * Uses Newton's iteration r' = (r + n/r) / 2 from an initial guess taken
+     * from the leading bits of n with Math.sqrt, so only a few BigInteger
+     * divisions are needed even for numbers of thousands of bits.
      * 
      * @param n BigInteger input.
      * @return for n >= 0: largest BigInteger r such that r*r <= n.
      *             n <  0: BigInteger 0
      */
     public static BigInteger sqrt(BigInteger n) {
-        BigInteger a = BigInteger.ONE;
-        BigInteger b = new BigInteger(n.shiftRight(5).add(new BigInteger("8")).toString());
-        while(b.compareTo(a) >= 0) {
-          BigInteger mid = new BigInteger(a.add(b).shiftRight(1).toString());
-          if (mid.multiply(mid).compareTo(n) > 0) 
-              b = mid.subtract(BigInteger.ONE);
-          else 
-              a = mid.add(BigInteger.ONE);
+        if (n.signum() <= 0)
+            return BigInteger.ZERO;
+        if (n.bitLength() < Long.SIZE)
+            return BigInteger.valueOf(sqrt(n.longValue()));
+        
+        // Keep an even number of bits below the leading 106 so that the
+        // guess can be shifted back by half as many.
+        int shift = (n.bitLength() - 105) & ~1;
+        double top = n.shiftRight(shift).doubleValue();
+        BigInteger x = BigInteger.valueOf((long) Math.sqrt(top) + 1).shiftLeft(shift / 2);
+        
+        // One step from any positive guess lands on or above the root;
+        // from there the iteration decreases until it reaches it.
+        x = x.add(n.divide(x)).shiftRight(1);
+        while (true) {
+            BigInteger y = x.add(n.divide(x)).shiftRight(1);
+            if (y.compareTo(x) >= 0)
+                return x;
+            x = y;
         }
-        return a.subtract(BigInteger.ONE);
+    }
+    
+    /**
+     * @requires n >= 0
+     * @return largest long r such that r*r <= n
+     */
+    private static long sqrt(long n) {
+        long r = (long) Math.sqrt((double) n);
+        // The double may be off by one either way near 2^63.
+        while (r > 0 && r > n / r)
+            r--;
+        while (r + 1 <= n / (r + 1))
+            r++;
+        return r;
     }
     
     /**
@@ -39,35 +75,247 @@ public class BigMath {
      * @return List of all prime BigIntegers x such that
      *         low <= x <= hi AND x divides N evenly.
      *         Repeated factors will be found multiple times.
+     *         
+     * The search stops as soon as what is left of N is prime, or, for a range
+     * starting at 2, once the candidates pass its square root; the result is
+     * the same as searching all of [lo, hi].
      */
     public static List<BigInteger> findAllPrimeFactors
                         (BigInteger n, BigInteger lo, BigInteger hi) {
+        return findAllPrimeFactors(n, lo, hi, SearchProgress.NONE);
+    }
+
+    /**
+     * findAllPrimeFactors(n, lo, hi), reporting the current candidate to
+     * progress from time to time.
+     * 
+     * @param progress Observer of the search; it may abandon it.
+     * @throws CancellationException if progress abandoned the search
+     */
+    public static List<BigInteger> findAllPrimeFactors
+                        (BigInteger n, BigInteger lo, BigInteger hi, SearchProgress progress) {
         assert n.compareTo(new BigInteger("2")) >= 0;
         assert lo.compareTo(BigInteger.ONE) >= 0;
         assert hi.compareTo(lo) >= 0;
         
+        if (n.bitLength() < Long.SIZE)
+            return primeFactorsInRange(n.longValue(), lo, hi);
+        if (hi.bitLength() <= PrimeSieve.LIMIT_BITS - 1)
+            return findSmallPrimeFactors(n, lo.longValue(), hi.longValue(), progress);
+        
         List<BigInteger> primeFactors = new LinkedList<BigInteger>();
+        // A search from 2 has divided out every prime below the candidate,
+        // so it can stop once the candidate passes sqrt of the cofactor.
+        BigInteger limit = lo.compareTo(TWO) <= 0 ? sqrt(n) : null;
+        boolean prime = Primality.isProbablePrime(n);
         
         // If lo == 1, add 1 to avoid infinite delete by 1.
         if (lo.equals(BigInteger.ONE))
             lo = lo.add(BigInteger.ONE);
         // If low is not prime, go straight to the next prime.
-        else if (!lo.isProbablePrime(10))
-            lo = lo.nextProbablePrime();
+        else if (!Primality.isProbablePrime(lo))
+            lo = Primality.nextProbablePrime(lo);
         
-        for (BigInteger x = lo; x.compareTo(hi) <= 0; x = x.nextProbablePrime()) {
+        // Once the cofactor is prime nothing but itself divides it.
+        int tried = 0;
+        for (BigInteger x = lo; !prime && x.compareTo(hi) <= 0; x = Primality.nextProbablePrime(x)) {
+            if (limit != null && x.compareTo(limit) > 0)
+                break;
+            if (++tried % BIG_CHECK_INTERVAL == 0 && !progress.proceed(x))
+                throw new CancellationException();
             if (n.remainder(x).compareTo(BigInteger.ZERO) == 0) {
                 while (n.remainder(x).compareTo(BigInteger.ZERO) == 0) {
                     primeFactors.add(x);
                     n = n.divide(x);
                 }
+                if (n.equals(BigInteger.ONE))
+                    break;
+                if (n.bitLength() < Long.SIZE && x.compareTo(hi) < 0) {
+                    primeFactors.addAll(primeFactorsInRange(n.longValue(), x.add(BigInteger.ONE), hi));
+                    return primeFactors;
+                }
+                prime = Primality.isProbablePrime(n);
+                if (limit != null)
+                    limit = sqrt(n);
+            }
+        }
+        
+        if (!n.equals(BigInteger.ONE) && prime)
+            primeFactors.add(n);
+        
+        return primeFactors;
+    }
+
+    /**
+     * findAllPrimeFactors(n, lo, hi, progress) with the range searched in
+     * parallel on pool. Ranges too small to be worth splitting, and N below
+     * 2^63, are searched on the calling thread.
+     * 
+     * @param pool Pool whose threads search subranges.
+     * @param progress Observer of the search, called from any of the threads
+     *        searching; it may abandon the search.
+     * @throws CancellationException if progress abandoned the search
+     */
+    public static List<BigInteger> findAllPrimeFactorsParallel(BigInteger n, BigInteger lo,
+            BigInteger hi, ForkJoinPool pool, SearchProgress progress) {
+        assert n.compareTo(TWO) >= 0;
+        assert lo.compareTo(BigInteger.ONE) >= 0;
+        assert hi.compareTo(lo) >= 0;
+        
+        if (n.bitLength() < Long.SIZE || pool.getParallelism() < 2)
+            return findAllPrimeFactors(n, lo, hi, progress);
+        return new ParallelRangeSearch(n, lo, hi, progress, pool.getParallelism()).run(pool);
+    }
+
+    /**
+     * findAllPrimeFactors for N below 2^63: N is factored completely with
+     * LongMath, which takes microseconds, and the factors in range are picked
+     * out of the result. Gives exactly what trial division over [lo, hi]
+     * followed by the cofactor test would give.
+     * 
+     * @requires 1 <= n, 1 <= lo <= hi
+     */
+    private static List<BigInteger> primeFactorsInRange(long n, BigInteger lo, BigInteger hi) {
+        List<BigInteger> primeFactors = new LinkedList<BigInteger>();
+        long cofactor = n;
+        for (long f : LongMath.factor(n)) {
+            BigInteger bf = BigInteger.valueOf(f);
+            if (bf.compareTo(lo) >= 0 && bf.compareTo(hi) <= 0) {
+                primeFactors.add(bf);
+                cofactor /= f;
+            }
+        }
+        if (cofactor != 1 && LongMath.isPrime(cofactor))
+            primeFactors.add(BigInteger.valueOf(cofactor));
+        return primeFactors;
+    }
+
+    /**
+     * findAllPrimeFactors for a range below PrimeSieve.LIMIT: candidates come
+     * from the segmented sieve instead of nextProbablePrime(), and remainders
+     * are computed with long arithmetic, without allocating a BigInteger per
+     * candidate.
+     * 
+     * @requires 1 <= lo <= hi < PrimeSieve.LIMIT, 2^63 <= n
+     */
+    private static List<BigInteger> findSmallPrimeFactors(BigInteger n, long lo, long hi,
+            SearchProgress progress) {
+        List<BigInteger> primeFactors = new LinkedList<BigInteger>();
+        PrimeSieve.Cursor primes = new PrimeSieve.Cursor(lo, hi);
+        // As in findAllPrimeFactors; hi < 2^47 < sqrt(n) until n shrinks.
+        boolean fromStart = lo <= 2;
+        long limit = Long.MAX_VALUE;
+        boolean prime = Primality.isProbablePrime(n);
+        
+        int[] words = words(n);
+        int tried = 0;
+        for (long p = primes.next(); !prime && p >= 0 && p <= limit; p = primes.next()) {
+            if (++tried % SMALL_CHECK_INTERVAL == 0 && !progress.proceed(BigInteger.valueOf(p)))
+                throw new CancellationException();
+            if (remainder(words, n, p) == 0) {
+                BigInteger bp = BigInteger.valueOf(p);
+                BigInteger[] qr = n.divideAndRemainder(bp);
+                do {
+                    primeFactors.add(bp);
+                    n = qr[0];
+                    qr = n.divideAndRemainder(bp);
+                } while (qr[1].signum() == 0);
+                if (n.bitLength() < Long.SIZE) {
+                    // Also covers a cofactor of 1.
+                    if (p < hi)
+                        primeFactors.addAll(primeFactorsInRange(
+                                n.longValue(), BigInteger.valueOf(p + 1), BigInteger.valueOf(hi)));
+                    else if (n.compareTo(BigInteger.ONE) > 0 && LongMath.isPrime(n.longValue()))
+                        primeFactors.add(n);
+                    return primeFactors;
+                }
+                prime = Primality.isProbablePrime(n);
+                if (fromStart)
+                    limit = sqrt(n).min(BigInteger.valueOf(Long.MAX_VALUE)).longValue();
+                words = words(n);
             }
         }
         
-        if (!n.equals(BigInteger.ONE) 
-                && n.isProbablePrime(10))
+        if (!n.equals(BigInteger.ONE) && prime)
             primeFactors.add(n);
         
         return primeFactors;
     }
+    
+    /**
+     * @requires n > 0
+     * @return The magnitude of n as 32-bit words, most significant first.
+     */
+    private static int[] words(BigInteger n) {
+        int[] words = new int[(n.bitLength() + 31) / 32];
+        for (int i = 0; i < words.length; i++)
+            words[words.length - 1 - i] = n.shiftRight(32 * i).intValue();
+        return words;
+    }
+    
+    /**
+     * @requires words == words(n), p > 0
+     * @return n mod p
+     */
+    private static long remainder(int[] words, BigInteger n, long p) {
+        if (p > Integer.MAX_VALUE)
+            return n.mod(BigInteger.valueOf(p)).longValue();
+        // rem < p < 2^31, so rem << 32 cannot overflow.
+        long rem = 0;
+        for (int w : words)
+            rem = ((rem << 32) | (w & 0xffffffffL)) % p;
+        return rem;
+    }
+
+    /**
+     * Find the complete prime factorisation of a number N.
+     * 
+     * Small factors are found by trial division, larger ones by Pollard's rho
+     * and then the elliptic curve method; composite pieces are split again
+     * until only primes remain. Pieces below 2^63 are finished by LongMath.
+     * 
+     * @param n BigInteger N such that 1 <= N
+     * @return List of the prime factors of N in increasing order, repeated
+     *         according to multiplicity. Empty for N == 1.
+     */
+    public static List<BigInteger> factor(BigInteger n) {
+        return factor(n, new AutoFactorizer());
+    }
+
+    /**
+     * Find the complete prime factorisation of a number N.
+     * 
+     * @param n BigInteger N such that 1 <= N
+     * @param factorizer Method used to split composite pieces of 2^63 and
+     *        above; it must not give up (return null) on any of them.
+     * @return List of the prime factors of N in increasing order, repeated
+     *         according to multiplicity. Empty for N == 1.
+     */
+    public static List<BigInteger> factor(BigInteger n, Factorizer factorizer) {
+        assert n.signum() > 0;
+        
+        List<BigInteger> primeFactors = new ArrayList<BigInteger>();
+        Deque<BigInteger> pieces = new ArrayDeque<BigInteger>();
+        if (!n.equals(BigInteger.ONE))
+            pieces.push(n);
+        
+        while (!pieces.isEmpty()) {
+            BigInteger piece = pieces.pop();
+            if (piece.bitLength() < Long.SIZE) {
+                for (long f : LongMath.factor(piece.longValue()))
+                    primeFactors.add(BigInteger.valueOf(f));
+            } else if (Primality.isProbablePrime(piece)) {
+                primeFactors.add(piece);
+            } else {
+                BigInteger d = factorizer.findFactor(piece);
+                if (d == null)
+                    throw new IllegalStateException("Could not split " + piece);
+                pieces.push(d);
+                pieces.push(piece.divide(d));
+            }
+        }
+        
+        Collections.sort(primeFactors);
+        return primeFactors;
+    }
 }
\ No newline at end of file
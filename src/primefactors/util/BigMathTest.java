@@ -0,0 +1,297 @@
+package primefactors.util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BigMathTest {
+    
+    @Test
+    public void sqrtExact() {
+        assertEquals(BigInteger.ZERO, BigMath.sqrt(big(-5)));
+        assertEquals(BigInteger.ZERO, BigMath.sqrt(big(0)));
+        assertEquals(big(1), BigMath.sqrt(big(3)));
+        assertEquals(big(2), BigMath.sqrt(big(4)));
+        assertEquals(big(3037000499L), BigMath.sqrt(big(Long.MAX_VALUE)));
+        BigInteger r = BigInteger.ONE.shiftLeft(2000).add(big(12345));
+        assertEquals(r, BigMath.sqrt(r.multiply(r)));
+        assertEquals(r.subtract(BigInteger.ONE), BigMath.sqrt(r.multiply(r).subtract(BigInteger.ONE)));
+    }
+    
+    @Test
+    public void sqrtRandom() {
+        Random random = new Random(6005);
+        for (int i = 0; i < 1000; i++) {
+            BigInteger n = new BigInteger(1 + random.nextInt(4096), random);
+            BigInteger r = BigMath.sqrt(n);
+            BigInteger r1 = r.add(BigInteger.ONE);
+            assertTrue(r.multiply(r).compareTo(n) <= 0);
+            assertTrue(r1.multiply(r1).compareTo(n) > 0);
+        }
+    }
+    
+    @Test
+    public void findAllPrimeFactorsInRange() {
+        List<BigInteger> found = BigMath.findAllPrimeFactors(
+                big(600851475143L), big(2), big(1000));
+        assertEquals(Arrays.asList(big(71), big(839)), found);
+    }
+    
+    @Test
+    public void findAllPrimeFactorsLargeN() {
+        BigInteger p = new BigInteger("1000000000000000000000007");
+        List<BigInteger> found = BigMath.findAllPrimeFactors(
+                p.multiply(big(3 * 3 * 1048583)), big(1), big(2000000));
+        assertEquals(Arrays.asList(big(3), big(3), big(1048583), p), found);
+    }
+    
+    @Test
+    public void sieveCursorCrossesSegments() {
+        long lo = PrimeSieve.SEGMENT_SIZE - 500, hi = PrimeSieve.SEGMENT_SIZE + 500;
+        PrimeSieve.Cursor primes = new PrimeSieve.Cursor(lo, hi);
+        BigInteger expected = big(lo - 1).nextProbablePrime();
+        for (long p = primes.next(); p >= 0; p = primes.next()) {
+            assertEquals(expected.longValue(), p);
+            expected = expected.nextProbablePrime();
+        }
+        assertTrue(expected.longValue() > hi);
+    }
+    
+    @Test
+    public void factorSmall() {
+        assertEquals(Arrays.asList(), BigMath.factor(BigInteger.ONE));
+        assertEquals(Arrays.asList(big(2)), BigMath.factor(big(2)));
+        assertEquals(Arrays.asList(big(2), big(2), big(3)), BigMath.factor(big(12)));
+        assertEquals(Arrays.asList(big(71), big(839), big(1471), big(6857)),
+                BigMath.factor(big(600851475143L)));
+    }
+    
+    @Test
+    public void factorPrimePower() {
+        BigInteger p = big(998244353);
+        assertEquals(Arrays.asList(p, p, p), BigMath.factor(p.pow(3)));
+    }
+    
+    @Test
+    public void factorLargeSemiprime() {
+        BigInteger p = new BigInteger("1000000000000037");
+        BigInteger q = new BigInteger("10000000000000061");
+        assertEquals(Arrays.asList(p, q),
+                BigMath.factor(p.multiply(q), new AutoFactorizer(new Random(6005))));
+    }
+    
+    @Test
+    public void rhoFindsFactor() {
+        BigInteger n = big(1000000007L).multiply(big(998244353));
+        BigInteger d = new PollardRho(1 << 20, new Random(6005)).findFactor(n);
+        assertTrue(d.equals(big(1000000007L)) || d.equals(big(998244353)));
+    }
+    
+    @Test
+    public void ecmFindsFactor() {
+        Random random = new Random(6005);
+        BigInteger p = BigInteger.probablePrime(45, random);
+        BigInteger q = BigInteger.probablePrime(80, random);
+        BigInteger d = new EllipticCurveMethod(2000, 200, random).findFactor(p.multiply(q));
+        assertNotNull(d);
+        assertTrue(d.equals(p) || d.equals(q));
+    }
+    
+    @Test
+    public void longIsPrime() {
+        assertTrue(LongMath.isPrime(2));
+        assertTrue(LongMath.isPrime(9223372036854775783L)); // largest prime < 2^63
+        assertFalse(LongMath.isPrime(1));
+        assertFalse(LongMath.isPrime(3215031751L)); // strong pseudoprime to 2, 3, 5, 7
+        assertFalse(LongMath.isPrime(4611686014132420609L)); // (2^31 - 1)^2
+    }
+    
+    @Test
+    public void longFactor() {
+        assertArrayEquals(new long[] { 7, 7, 73, 127, 337, 92737, 649657 },
+                LongMath.factor(Long.MAX_VALUE));
+        assertArrayEquals(new long[] { 3037000453L, 3037000493L },
+                LongMath.factor(3037000453L * 3037000493L));
+        assertArrayEquals(new long[0], LongMath.factor(1));
+    }
+    
+    @Test
+    public void findAllPrimeFactorsLongN() {
+        // 2 * 3 * 3037000453 in range [3, 10]: cofactor 2 * 3037000453 is composite.
+        assertEquals(Arrays.asList(big(3)), BigMath.findAllPrimeFactors(
+                big(2L * 3 * 3037000453L), big(3), big(10)));
+        // 3 * 3037000453 in range [3, 10]: prime cofactor is reported.
+        assertEquals(Arrays.asList(big(3), big(3037000453L)), BigMath.findAllPrimeFactors(
+                big(3L * 3037000453L), big(3), big(10)));
+    }
+    
+    @Test
+    public void findAllPrimeFactorsMatchesTrialDivision() {
+        Random random = new Random(6005);
+        int[] small = PrimeSieve.primesUpTo(3000);
+        for (int i = 0; i < 300; i++) {
+            // A few small primes times a prime, a semiprime or a long.
+            BigInteger n = BigInteger.probablePrime(40 + random.nextInt(60), random);
+            if (random.nextBoolean())
+                n = n.multiply(BigInteger.probablePrime(32, random));
+            for (int k = random.nextInt(5); k >= 0; k--)
+                n = n.multiply(big(small[random.nextInt(small.length)]));
+            long lo = 1 + random.nextInt(2000);
+            if (random.nextInt(3) == 0)
+                lo = 1 + random.nextInt(2);
+            long hi = lo + random.nextInt(2000);
+            assertEquals(n + " [" + lo + ", " + hi + "]",
+                    trialDivision(n, big(lo), big(hi)),
+                    BigMath.findAllPrimeFactors(n, big(lo), big(hi)));
+        }
+    }
+    
+    @Test
+    public void findAllPrimeFactorsStopsEarlyOnWideRange() {
+        BigInteger hi = BigInteger.ONE.shiftLeft(60);
+        BigInteger p = new BigInteger("1000000000000000000000007");
+        // The cofactor is prime after 3 and 5.
+        assertEquals(Arrays.asList(big(3), big(5), p), BigMath.findAllPrimeFactors(
+                p.multiply(big(15)), big(2), hi));
+        // The cofactor drops below 2^63 after 3, 5 and 7.
+        BigInteger q = big(1073741789), r = big(1073741827);
+        assertEquals(Arrays.asList(big(3), big(5), big(7), q, r), BigMath.findAllPrimeFactors(
+                q.multiply(r).multiply(big(105)), big(2), hi));
+    }
+    
+    @Test
+    public void findAllPrimeFactorsParallelMatchesSequential() {
+        Random random = new Random(6005);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int i = 0; i < 100; i++) {
+                // Primes spread over many subranges, times a large cofactor.
+                BigInteger n = BigInteger.probablePrime(40 + random.nextInt(60), random);
+                if (random.nextBoolean())
+                    n = n.multiply(BigInteger.probablePrime(32, random));
+                for (int k = random.nextInt(4); k >= 0; k--)
+                    n = n.multiply(BigInteger.probablePrime(2 + random.nextInt(21), random));
+                long lo = random.nextInt(3) == 0 ? 1 + random.nextInt(2) : 1 + random.nextInt(1 << 20);
+                long hi = lo + random.nextInt(1 << 22);
+                assertEquals(n + " [" + lo + ", " + hi + "]",
+                        BigMath.findAllPrimeFactors(n, big(lo), big(hi)),
+                        BigMath.findAllPrimeFactorsParallel(n, big(lo), big(hi), pool,
+                                SearchProgress.NONE));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test(expected = CancellationException.class)
+    public void findAllPrimeFactorsAbandoned() {
+        // Semiprime of two 40-bit primes: the search runs long enough to be asked.
+        BigInteger n = big(1000000000039L).multiply(big(1000000000061L));
+        final List<BigInteger> seen = new ArrayList<BigInteger>();
+        try {
+            BigMath.findAllPrimeFactors(n, big(2), big(1000000000000L), candidate -> {
+                seen.add(candidate);
+                return seen.size() < 3;
+            });
+        } finally {
+            assertEquals(3, seen.size());
+            assertTrue(seen.get(0).compareTo(seen.get(2)) < 0);
+        }
+    }
+    
+    @Test
+    public void primalityMatchesBigInteger() {
+        Random random = new Random(6005);
+        for (int i = 0; i < 2000; i++) {
+            BigInteger n = new BigInteger(60 + random.nextInt(200), random);
+            assertEquals(n.toString(), n.isProbablePrime(50), Primality.isProbablePrime(n));
+        }
+        for (int i = 0; i < 200; i++) {
+            BigInteger p = BigInteger.probablePrime(64 + random.nextInt(200), random);
+            assertTrue(Primality.isProbablePrime(p));
+            assertFalse(Primality.isProbablePrime(p.multiply(p)));
+            assertEquals(p.nextProbablePrime(), Primality.nextProbablePrime(p));
+        }
+        assertFalse(Primality.isProbablePrime(big(1)));
+        assertTrue(Primality.isProbablePrime(big(2)));
+    }
+    
+    @Test
+    public void primalityRejectsStrongPseudoprimes() {
+        // Strong pseudoprimes to every prime base up to 37 (Zhang, Tang).
+        BigInteger[] pseudoprimes = {
+                new BigInteger("318665857834031151167461"),
+                new BigInteger("3317044064679887385961981") };
+        for (BigInteger n : pseudoprimes) {
+            assertTrue(Primality.strongProbablePrime(n));
+            assertFalse(Primality.extraStrongLucasProbablePrime(n));
+            assertFalse(Primality.isProbablePrime(n));
+        }
+    }
+    
+    @Test
+    public void certifyProvesPrimes() {
+        Random random = new Random(6005);
+        BigInteger[] primes = {
+                BigInteger.ONE.shiftLeft(89).subtract(BigInteger.ONE),
+                BigInteger.ONE.shiftLeft(127).subtract(BigInteger.ONE),
+                BigInteger.probablePrime(100, random), big(1000000007) };
+        for (BigInteger p : primes) {
+            Primality.Certificate c = Primality.certify(p, new AutoFactorizer(random));
+            assertNotNull(c);
+            assertEquals(p, c.n);
+            assertTrue(c.toString(), c.verify());
+        }
+        assertNull(Primality.certify(new BigInteger("318665857834031151167461")));
+        assertNull(Primality.certify(primes[0].multiply(primes[1])));
+        
+        // A witness that does not work makes the certificate fail.
+        Primality.Certificate c = Primality.certify(primes[1]);
+        Primality.Certificate forged = new Primality.Certificate(c.n, c.primes,
+                Collections.nCopies(c.primes.size(), BigInteger.ONE));
+        assertFalse(forged.verify());
+    }
+    
+    @Test
+    public void certificateRepeatingPrimeFails() {
+        // Composite, and (N - 1) / 2 is odd, so N - 1 is a witness for 2:
+        // (N - 1)^(N - 1) = 1 and (N - 1)^((N - 1) / 2) - 1 = -2, prime to N.
+        BigInteger n = BigInteger.ONE.shiftLeft(70).subtract(BigInteger.ONE);
+        Primality.Certificate two = Primality.certify(big(2));
+        int copies = n.bitLength() / 2 + 1;
+        Primality.Certificate forged = new Primality.Certificate(n,
+                Collections.nCopies(copies, two),
+                Collections.nCopies(copies, n.subtract(BigInteger.ONE)));
+        // Counted once per copy, 2 would look like more than sqrt(N) of N - 1.
+        assertFalse(forged.verify());
+    }
+    
+    /**
+     * findAllPrimeFactors without any shortcut.
+     */
+    private static List<BigInteger> trialDivision(BigInteger n, BigInteger lo, BigInteger hi) {
+        List<BigInteger> found = new ArrayList<BigInteger>();
+        for (BigInteger x = lo.max(big(2)); x.compareTo(hi) <= 0; x = x.add(BigInteger.ONE)) {
+            while (x.isProbablePrime(20) && n.mod(x).signum() == 0) {
+                found.add(x);
+                n = n.divide(x);
+            }
+        }
+        if (!n.equals(BigInteger.ONE) && n.isProbablePrime(20))
+            found.add(n);
+        return found;
+    }
+    
+    private static BigInteger big(long n) {
+        return BigInteger.valueOf(n);
+    }
+}
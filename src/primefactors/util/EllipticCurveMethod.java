@@ -0,0 +1,266 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lenstra's elliptic curve method.
+ *
+ * Each curve is a Montgomery curve By^2 = x^3 + Ax^2 + x (mod N) chosen with
+ * Suyama's parametrization, and points are kept in projective XZ coordinates
+ * so no modular inverses are needed. Stage 1 multiplies a point by every
+ * prime power up to B1; if the group order modulo some prime factor p of N is
+ * B1-smooth the point becomes the identity modulo p and gcd(Z, N) reveals p.
+ * Stage 2 additionally catches group orders with one prime between B1 and
+ * B2 = STAGE2_RATIO * B1.
+ *
+ * The time to find p grows with the size of p rather than the size of N,
+ * which makes this the method of choice once Pollard's rho gives up.
+ *
+ * details: H. W. Lenstra, "Factoring integers with elliptic curves",
+ *          Annals of Mathematics 126 (1987);
+ *          P. L. Montgomery, "Speeding the Pollard and elliptic curve methods
+ *          of factorization", Mathematics of Computation 48 (1987).
+ */
+public class EllipticCurveMethod implements Factorizer {
+
+    private static final int STAGE2_RATIO = 50;
+    // Stage 2 walks multiples of 2 * D and pairs them with [1..D]Q.
+    private static final int D = 105;
+    private static final BigInteger FOUR = BigInteger.valueOf(4);
+    private static final BigInteger FIVE = BigInteger.valueOf(5);
+    private static final BigInteger SIXTEEN = BigInteger.valueOf(16);
+
+    // Primes of stage 2 for the last B2 used, shared by every instance:
+    // AutoFactorizer makes a new instance per level for every number.
+    private static volatile Stage2Primes lastStage2;
+
+    // Rep invariant: b1 >= 2, curves > 0, random, progress != null
+    private final int b1;
+    private final int curves;
+    private final Random random;
+    private final SearchProgress progress;
+
+    /**
+     * Make an ECM factorizer.
+     * @param b1 Stage 1 bound, >= 2. Around 2000 suits 15-digit factors,
+     *        11000 20 digits, 50000 25 digits, 250000 30 digits.
+     * @param curves Number of curves tried per call to findFactor, > 0.
+     * @param random Source of curve parameters.
+     */
+    public EllipticCurveMethod(int b1, int curves, Random random) {
+        this(b1, curves, random, SearchProgress.NONE);
+    }
+
+    /**
+     * Make an ECM factorizer that can be stopped between curves.
+     * @param b1 Stage 1 bound, >= 2.
+     * @param curves Number of curves tried per call to findFactor, > 0.
+     * @param random Source of curve parameters.
+     * @param progress Asked, with the number being split, before each curve.
+     */
+    public EllipticCurveMethod(int b1, int curves, Random random, SearchProgress progress) {
+        if (b1 < 2 || curves <= 0)
+            throw new IllegalArgumentException();
+        this.b1 = b1;
+        this.curves = curves;
+        this.random = random;
+        this.progress = progress;
+    }
+
+    /**
+     * @see Factorizer#findFactor(BigInteger)
+     * @throws CancellationException if progress abandoned the search
+     */
+    @Override
+    public BigInteger findFactor(BigInteger n) {
+        if (!n.testBit(0))
+            return BigMath.TWO;
+
+        // Stage 1 also takes the primes below D, which stage 2 can't reach.
+        int stage1 = Math.max(b1, D);
+        int b2 = Math.max(b1 * STAGE2_RATIO, stage1);
+        int[] primes = PrimeSieve.primesUpTo(stage1);
+        Stage2Primes stage2 = lastStage2;
+        if (stage2 == null || stage2.b2 != b2) {
+            stage2 = new Stage2Primes(b2);
+            lastStage2 = stage2;
+        }
+        for (int i = 0; i < curves; i++) {
+            if (!progress.proceed(n))
+                throw new CancellationException();
+            BigInteger d = tryCurve(n, primes, stage2);
+            if (d != null)
+                return d;
+        }
+        return null;
+    }
+
+    /**
+     * Run both stages on one random curve.
+     * @param primes The primes of stage 1, up to stage1.
+     * @param stage2 The primes up to B2.
+     * @return A nontrivial factor of n, or null if this curve found none.
+     */
+    private BigInteger tryCurve(BigInteger n, int[] primes, Stage2Primes stage2) {
+        // Suyama's parametrization: the group order is divisible by 12.
+        BigInteger sigma;
+        do {
+            sigma = new BigInteger(n.bitLength(), random).mod(n);
+        } while (sigma.compareTo(FIVE) <= 0);
+        BigInteger u = sigma.multiply(sigma).subtract(FIVE).mod(n);
+        BigInteger v = sigma.multiply(FOUR).mod(n);
+        BigInteger u3 = u.modPow(BigInteger.valueOf(3), n);
+        BigInteger denominator = SIXTEEN.multiply(u3).multiply(v).mod(n);
+        BigInteger g = denominator.gcd(n);
+        if (!g.equals(BigInteger.ONE))
+            return g.equals(n) ? null : g;
+        // a24 = (A + 2) / 4 = (v - u)^3 (3u + v) / (16 u^3 v)
+        BigInteger a24 = v.subtract(u).modPow(BigInteger.valueOf(3), n)
+                .multiply(u.multiply(BigInteger.valueOf(3)).add(v))
+                .multiply(denominator.modInverse(n)).mod(n);
+        Curve curve = new Curve(n, a24);
+        Point q = new Point(u3, v.modPow(BigInteger.valueOf(3), n));
+
+        // Stage 1: multiply by the largest power of each prime up to B1,
+        // and by the primes up to D.
+        int stage1 = primes.length == 0 ? 0 : primes[primes.length - 1];
+        for (int p : primes) {
+            long pk = p;
+            while (pk * p <= b1)
+                pk *= p;
+            q = curve.multiply(q, pk);
+        }
+        g = q.z.gcd(n);
+        if (!g.equals(BigInteger.ONE))
+            return g.equals(n) ? null : g;
+
+        // Stage 2: a prime s = 2Dm +/- d with 0 < d <= D sends q to the
+        // identity iff [2Dm]q and [d]q have the same x-coordinate.
+        Point[] table = new Point[D + 1];
+        table[1] = q;
+        table[2] = curve.twice(q);
+        for (int d = 3; d <= D; d++)
+            table[d] = curve.add(table[d - 1], q, table[d - 2]);
+        Point step = curve.twice(table[D]);
+
+        // The first m whose 2Dm + D is above stage 1; >= 1 as stage1 >= D.
+        long m = (stage1 + D) / (2 * D);
+        Point r = curve.multiply(q, m * 2 * D);
+        Point ahead = curve.multiply(q, (m + 1) * 2 * D);
+        BigInteger product = BigInteger.ONE;
+        for (; m * 2 * D - D <= stage2.b2; m++) {
+            long centre = m * 2 * D;
+            for (int d = 1; d <= D; d++) {
+                if (stage2.isPrime(centre - d, stage1) || stage2.isPrime(centre + d, stage1))
+                    product = product.multiply(
+                            r.x.multiply(table[d].z).subtract(table[d].x.multiply(r.z))).mod(n);
+            }
+            Point next = curve.add(ahead, step, r);
+            r = ahead;
+            ahead = next;
+        }
+        g = product.gcd(n);
+        if (!g.equals(BigInteger.ONE) && !g.equals(n))
+            return g;
+        return null;
+    }
+
+    /**
+     * The odd primes up to B2, one bit each, sieved a segment at a time.
+     */
+    private static class Stage2Primes {
+        final int b2;
+        private final long[] bits;
+
+        Stage2Primes(int b2) {
+            this.b2 = b2;
+            this.bits = PrimeSieve.oddPrimeBits(b2);
+        }
+
+        /**
+         * @return True if s is a prime with above < s <= b2.
+         */
+        boolean isPrime(long s, int above) {
+            if (s <= above || s > b2 || (s & 1) == 0)
+                return false;
+            long bit = s >> 1;
+            return (bits[(int) (bit >>> 6)] & (1L << (bit & 63))) != 0;
+        }
+    }
+
+    /**
+     * A point in projective XZ coordinates; Z == 0 is the identity.
+     */
+    private static class Point {
+        final BigInteger x;
+        final BigInteger z;
+
+        Point(BigInteger x, BigInteger z) {
+            this.x = x;
+            this.z = z;
+        }
+    }
+
+    /**
+     * Montgomery-form arithmetic modulo n.
+     */
+    private static class Curve {
+        private final BigInteger n;
+        private final BigInteger a24;
+
+        Curve(BigInteger n, BigInteger a24) {
+            this.n = n;
+            this.a24 = a24;
+        }
+
+        /**
+         * @return [2]p
+         */
+        Point twice(Point p) {
+            BigInteger sum = p.x.add(p.z);
+            BigInteger diff = p.x.subtract(p.z);
+            BigInteger s2 = sum.multiply(sum).mod(n);
+            BigInteger d2 = diff.multiply(diff).mod(n);
+            BigInteger t = s2.subtract(d2);
+            return new Point(s2.multiply(d2).mod(n),
+                    t.multiply(d2.add(a24.multiply(t))).mod(n));
+        }
+
+        /**
+         * @requires difference == p - q
+         * @return p + q
+         */
+        Point add(Point p, Point q, Point difference) {
+            BigInteger u = p.x.subtract(p.z).multiply(q.x.add(q.z));
+            BigInteger v = p.x.add(p.z).multiply(q.x.subtract(q.z));
+            BigInteger sum = u.add(v);
+            BigInteger diff = u.subtract(v);
+            return new Point(difference.z.multiply(sum.multiply(sum).mod(n)).mod(n),
+                    difference.x.multiply(diff.multiply(diff).mod(n)).mod(n));
+        }
+
+        /**
+         * Montgomery ladder.
+         * @requires k >= 1
+         * @return [k]p
+         */
+        Point multiply(Point p, long k) {
+            if (k == 1)
+                return p;
+            Point r0 = p;
+            Point r1 = twice(p);
+            for (int bit = 62 - Long.numberOfLeadingZeros(k); bit >= 0; bit--) {
+                if (((k >>> bit) & 1) == 1) {
+                    r0 = add(r1, r0, p);
+                    r1 = twice(r1);
+                } else {
+                    r1 = add(r0, r1, p);
+                    r0 = twice(r0);
+                }
+            }
+            return r0;
+        }
+    }
+}
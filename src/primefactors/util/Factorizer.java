@@ -0,0 +1,18 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+
+/**
+ * A method of splitting a composite number into two smaller factors.
+ */
+public interface Factorizer {
+
+    /**
+     * Find a nontrivial factor of a composite number.
+     * 
+     * @param n BigInteger N such that N is composite.
+     * @return BigInteger d such that 1 < d < N and d divides N evenly,
+     *         or null if this method gave up before finding one.
+     */
+    BigInteger findFactor(BigInteger n);
+}
@@ -0,0 +1,239 @@
+package primefactors.util;
+
+import java.util.Arrays;
+
+/**
+ * Primality testing and factorisation of numbers below 2^63 using only
+ * primitive long arithmetic.
+ *
+ * Modular products are computed with Montgomery multiplication (R = 2^64), so
+ * no division is needed inside the loops. Primality is decided by
+ * Miller-Rabin with a fixed set of bases that is known to be deterministic
+ * for every 64-bit number, and composites are split with Brent's variant of
+ * Pollard's rho.
+ *
+ * details: P. L. Montgomery, "Modular multiplication without trial division",
+ *          Mathematics of Computation 44 (1985);
+ *          J. Sinclair's seven Miller-Rabin bases for n < 2^64.
+ */
+public class LongMath {
+
+    private static final long[] MILLER_RABIN_BASES =
+            { 2, 325, 9375, 28178, 450775, 9780504, 1795265022 };
+    private static final int[] SMALL_PRIMES = PrimeSieve.primesUpTo(1000);
+    private static final int BATCH = 128;
+
+    /**
+     * @param n long N such that 0 <= N
+     * @return true iff N is prime. Always correct.
+     */
+    public static boolean isPrime(long n) {
+        if (n < 2)
+            return false;
+        for (int p : SMALL_PRIMES) {
+            if (n == p)
+                return true;
+            if (n % p == 0)
+                return false;
+        }
+        if (n < 1000L * 1000L)
+            return true;
+
+        Montgomery m = new Montgomery(n);
+        long d = n - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>= s;
+        long one = m.one, minusOne = n - m.one;
+        for (long base : MILLER_RABIN_BASES) {
+            long a = base % n;
+            if (a == 0)
+                continue;
+            long x = m.pow(m.toMontgomery(a), d);
+            if (x == one || x == minusOne)
+                continue;
+            boolean composite = true;
+            for (int i = 1; i < s && composite; i++) {
+                x = m.multiply(x, x);
+                if (x == minusOne)
+                    composite = false;
+            }
+            if (composite)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the complete prime factorisation of a number N.
+     * @param n long N such that 1 <= N
+     * @return The prime factors of N in increasing order, repeated according
+     *         to multiplicity. Empty for N == 1.
+     */
+    public static long[] factor(long n) {
+        if (n < 1)
+            throw new IllegalArgumentException();
+        long[] factors = new long[Long.SIZE];
+        int count = 0;
+
+        for (int p : SMALL_PRIMES) {
+            if ((long) p * p > n)
+                break;
+            while (n % p == 0) {
+                factors[count++] = p;
+                n /= p;
+            }
+        }
+
+        // Everything left has prime factors above 1000, so at most 6 of them.
+        long[] pieces = new long[Long.SIZE];
+        int pending = 0;
+        if (n > 1)
+            pieces[pending++] = n;
+        while (pending > 0) {
+            long piece = pieces[--pending];
+            if (isPrime(piece)) {
+                factors[count++] = piece;
+            } else {
+                long d = rho(piece);
+                pieces[pending++] = d;
+                pieces[pending++] = piece / d;
+            }
+        }
+
+        long[] result = Arrays.copyOf(factors, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Pollard's rho with Brent's cycle detection, on Montgomery residues.
+     * @param n odd composite with no prime factor below 1000
+     * @return A nontrivial factor of n.
+     */
+    static long rho(long n) {
+        Montgomery m = new Montgomery(n);
+        for (long c = m.one; ; c = m.add(c, m.one)) {
+            long y = m.toMontgomery(2), x = y, ys = y;
+            long q = m.one;
+            long g = 1;
+            for (long r = 1; g == 1; r <<= 1) {
+                x = y;
+                for (long i = 0; i < r; i++)
+                    y = m.add(m.multiply(y, y), c);
+                for (long k = 0; k < r && g == 1; k += BATCH) {
+                    ys = y;
+                    long batch = Math.min(BATCH, r - k);
+                    for (long i = 0; i < batch; i++) {
+                        y = m.add(m.multiply(y, y), c);
+                        q = m.multiply(q, Math.abs(x - y));
+                    }
+                    g = gcd(q, n);
+                }
+            }
+            if (g == n) {
+                // The batch overshot: replay it one step at a time.
+                do {
+                    ys = m.add(m.multiply(ys, ys), c);
+                    g = gcd(Math.abs(x - ys), n);
+                } while (g == 1);
+            }
+            if (g != n)
+                return g;
+            // The cycle closed modulo every factor at once; change c.
+        }
+    }
+
+    /**
+     * @requires a, b >= 0
+     * @return greatest common divisor of a and b
+     */
+    static long gcd(long a, long b) {
+        if (a == 0)
+            return b;
+        if (b == 0)
+            return a;
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        while (b != 0) {
+            b >>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
+        }
+        return a << shift;
+    }
+
+    /**
+     * Arithmetic on Montgomery residues x * 2^64 mod n, for odd n < 2^63.
+     * Residues are kept in [0, n).
+     */
+    private static class Montgomery {
+        private final long n;
+        // -n^-1 mod 2^64
+        private final long nInverse;
+        // 2^64 mod n, the residue of 1
+        final long one;
+        // 2^128 mod n
+        private final long r2;
+
+        Montgomery(long n) {
+            assert n > 2 && (n & 1) == 1;
+            this.n = n;
+            long inv = n; // correct to 3 bits for odd n
+            for (int i = 0; i < 5; i++)
+                inv *= 2 - n * inv;
+            this.nInverse = -inv;
+            this.one = (Long.remainderUnsigned(-1L, n) + 1) % n;
+            long r = one;
+            for (int i = 0; i < 64; i++)
+                r = add(r, r);
+            this.r2 = r;
+        }
+
+        long toMontgomery(long a) {
+            return multiply(a % n, r2);
+        }
+
+        /**
+         * @requires 0 <= a, b < n
+         * @return a + b mod n
+         */
+        long add(long a, long b) {
+            long s = a + b; // < 2^64 as an unsigned number
+            return Long.compareUnsigned(s, n) >= 0 ? s - n : s;
+        }
+
+        /**
+         * @requires 0 <= a, b < n
+         * @return a * b * 2^-64 mod n
+         */
+        long multiply(long a, long b) {
+            long hi = Math.multiplyHigh(a, b);
+            long lo = a * b;
+            long m = lo * nInverse;
+            // High word of the unsigned product m * n; n < 2^63.
+            long mnHi = Math.multiplyHigh(m, n) + ((m >> 63) & n);
+            // lo + low word of m * n is 0 mod 2^64; it carries iff lo != 0.
+            long t = hi + mnHi + (lo != 0 ? 1 : 0);
+            return Long.compareUnsigned(t, n) >= 0 ? t - n : t;
+        }
+
+        /**
+         * @requires 0 <= a < n, e >= 0
+         * @return a^e in Montgomery form
+         */
+        long pow(long a, long e) {
+            long result = one;
+            while (e > 0) {
+                if ((e & 1) == 1)
+                    result = multiply(result, a);
+                a = multiply(a, a);
+                e >>= 1;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * findAllPrimeFactors with [lo, hi] split into subranges that are searched
+ * as tasks of a ForkJoinPool.
+ *
+ * Every prime a subrange turns up is divided out of a shared cofactor, and
+ * later subranges search only what is left. Once the cofactor is 1 or prime
+ * no other prime of the range can divide N, so the subranges still running
+ * stop and the ones not yet started are skipped. The factors are then
+ * gathered from N itself, so the result is the same as a sequential search.
+ */
+class ParallelRangeSearch {
+
+    // Narrowest subrange worth a task of its own.
+    private static final BigInteger MIN_SPLIT = BigInteger.valueOf(1 << 18);
+    // Subranges per thread of the pool, so that uneven ones balance out.
+    private static final int SPLITS_PER_THREAD = 8;
+
+    private final BigInteger n;
+    private final BigInteger lo;
+    private final BigInteger hi;
+    private final SearchProgress progress;
+    private final BigInteger grain;
+
+    // Rep invariant: cofactor divides n, and every prime of n that has been
+    //   divided out of it is in found. Guarded by this.
+    private BigInteger cofactor;
+    private final Set<BigInteger> found = new HashSet<BigInteger>();
+    // Set once the cofactor is 1 or prime.
+    private volatile boolean resolved;
+    // Set once progress has abandoned the search.
+    private volatile boolean abandoned;
+
+    /**
+     * @requires 2 <= n, 1 <= lo <= hi
+     */
+    ParallelRangeSearch(BigInteger n, BigInteger lo, BigInteger hi, SearchProgress progress,
+            int parallelism) {
+        this.n = n;
+        this.lo = lo;
+        // From 2, every prime of n beyond sqrt(n) is the cofactor left at
+        // the end; see findAllPrimeFactors.
+        this.hi = lo.compareTo(BigMath.TWO) <= 0 ? hi.min(BigMath.sqrt(n).max(BigMath.TWO)) : hi;
+        this.progress = progress;
+        BigInteger width = this.hi.subtract(lo).add(BigInteger.ONE);
+        this.grain = MIN_SPLIT.max(width.divide(BigInteger.valueOf(
+                (long) parallelism * SPLITS_PER_THREAD)));
+        this.cofactor = n;
+        this.resolved = Primality.isProbablePrime(n);
+    }
+
+    /**
+     * Search the range on pool.
+     * @return As BigMath.findAllPrimeFactors(n, lo, hi).
+     * @throws CancellationException if progress abandoned the search
+     */
+    List<BigInteger> run(ForkJoinPool pool) {
+        if (!resolved)
+            pool.invoke(new Subrange(lo, hi));
+        if (abandoned)
+            throw new CancellationException();
+        return collect();
+    }
+
+    /**
+     * @return The primes found in [lo, hi], as often as they divide n, then
+     *         what is left of n if it is prime.
+     */
+    private synchronized List<BigInteger> collect() {
+        List<BigInteger> primes = new ArrayList<BigInteger>(found);
+        Collections.sort(primes);
+        List<BigInteger> primeFactors = new LinkedList<BigInteger>();
+        BigInteger rest = n;
+        for (BigInteger p : primes) {
+            if (p.compareTo(lo) < 0 || p.compareTo(hi) > 0)
+                continue;
+            while (rest.remainder(p).signum() == 0) {
+                primeFactors.add(p);
+                rest = rest.divide(p);
+            }
+        }
+        if (!rest.equals(BigInteger.ONE) && Primality.isProbablePrime(rest))
+            primeFactors.add(rest);
+        return primeFactors;
+    }
+
+    private synchronized BigInteger cofactor() {
+        return cofactor;
+    }
+
+    /**
+     * Record primes of n found by a subrange.
+     */
+    private synchronized void report(List<BigInteger> primes) {
+        for (BigInteger p : primes) {
+            found.add(p);
+            while (cofactor.remainder(p).signum() == 0)
+                cofactor = cofactor.divide(p);
+        }
+        if (cofactor.equals(BigInteger.ONE) || Primality.isProbablePrime(cofactor))
+            resolved = true;
+    }
+
+    /**
+     * Task searching [from, to], split in halves down to grain.
+     */
+    private class Subrange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger from;
+        private final BigInteger to;
+
+        Subrange(BigInteger from, BigInteger to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (resolved || abandoned)
+                return;
+            if (to.subtract(from).compareTo(grain) >= 0) {
+                BigInteger mid = from.add(to).shiftRight(1);
+                invokeAll(new Subrange(from, mid), new Subrange(mid.add(BigInteger.ONE), to));
+                return;
+            }
+            BigInteger rest = cofactor();
+            if (rest.compareTo(BigMath.TWO) < 0)
+                return;
+            try {
+                report(BigMath.findAllPrimeFactors(rest, from, to, candidate -> {
+                    if (resolved)
+                        return false;
+                    if (!progress.proceed(candidate))
+                        abandoned = true;
+                    return !abandoned;
+                }));
+            } catch (CancellationException e) {
+                // Another subrange resolved the cofactor, or progress gave up.
+            }
+        }
+    }
+}
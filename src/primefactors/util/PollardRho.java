@@ -0,0 +1,96 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Pollard's rho method with Brent's cycle detection.
+ * 
+ * Iterates x -> x^2 + c (mod N) and looks for a collision modulo an unknown
+ * prime factor p, which is expected after about sqrt(p) steps. Differences are
+ * multiplied together in batches so that only one gcd is taken per batch.
+ * 
+ * details: R. P. Brent, "An improved Monte Carlo factorization algorithm",
+ *          BIT 20 (1980).
+ */
+public class PollardRho implements Factorizer {
+
+    // Number of steps whose differences are multiplied before taking a gcd.
+    private static final int BATCH = 128;
+
+    // Rep invariant: maxSteps > 0, random != null
+    private final long maxSteps;
+    private final Random random;
+
+    /**
+     * Make a rho factorizer that gives up after maxSteps iterations in total.
+     * @param maxSteps Iteration budget per call to findFactor, > 0.
+     * @param random Source of the polynomial constants and starting points.
+     */
+    public PollardRho(long maxSteps, Random random) {
+        if (maxSteps <= 0)
+            throw new IllegalArgumentException();
+        this.maxSteps = maxSteps;
+        this.random = random;
+    }
+
+    @Override
+    public BigInteger findFactor(BigInteger n) {
+        if (!n.testBit(0))
+            return BigMath.TWO;
+
+        long steps = 0;
+        while (steps < maxSteps) {
+            BigInteger c = randomBelow(n);
+            BigInteger y = randomBelow(n);
+            BigInteger x = y, ys = y;
+            BigInteger q = BigInteger.ONE;
+            BigInteger g = BigInteger.ONE;
+
+            for (long r = 1; g.equals(BigInteger.ONE) && steps < maxSteps; r <<= 1) {
+                x = y;
+                for (long i = 0; i < r; i++)
+                    y = step(y, c, n);
+                steps += r;
+                for (long k = 0; k < r && g.equals(BigInteger.ONE); k += BATCH) {
+                    ys = y;
+                    long batch = Math.min(BATCH, r - k);
+                    for (long i = 0; i < batch; i++) {
+                        y = step(y, c, n);
+                        q = q.multiply(x.subtract(y).abs()).mod(n);
+                    }
+                    steps += batch;
+                    g = q.gcd(n);
+                }
+            }
+
+            if (g.equals(n)) {
+                // The batch overshot: replay it one step at a time.
+                do {
+                    ys = step(ys, c, n);
+                    g = x.subtract(ys).abs().gcd(n);
+                } while (g.equals(BigInteger.ONE));
+            }
+            if (!g.equals(BigInteger.ONE) && !g.equals(n))
+                return g;
+            // Either out of steps or the cycle closed modulo every factor
+            // at once; retry with another polynomial.
+        }
+        return null;
+    }
+
+    private static BigInteger step(BigInteger y, BigInteger c, BigInteger n) {
+        return y.multiply(y).add(c).mod(n);
+    }
+
+    /**
+     * @return A random BigInteger in [1, n).
+     */
+    private BigInteger randomBelow(BigInteger n) {
+        BigInteger r;
+        do {
+            r = new BigInteger(n.bitLength(), random);
+        } while (r.signum() == 0 || r.compareTo(n) >= 0);
+        return r;
+    }
+}
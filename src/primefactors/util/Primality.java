@@ -0,0 +1,436 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Primality of BigIntegers, cheapest test first.
+ *
+ * isProbablePrime decides numbers below 2^63 exactly with LongMath. Larger
+ * ones are screened by division by the primes below 1000, a few of them per
+ * BigInteger remainder, and the rest get the Baillie-PSW test: one strong
+ * probable prime test to base 2, then one extra strong Lucas test. No
+ * composite is known to pass it. Nearly every composite fails the first
+ * test, a single modPow, so the Lucas test is mostly paid by primes; and
+ * since the same cofactor is tested by every request for a range of it,
+ * results for large numbers are remembered. nextProbablePrime uses the same
+ * test without the memo.
+ *
+ * certify proves primality with a Pocklington certificate, for callers that
+ * cannot accept a probable prime. It needs N - 1 factored beyond sqrt(N), so
+ * it is meant for numbers of moderate size.
+ *
+ * details: R. Baillie, S. S. Wagstaff, "Lucas pseudoprimes", Mathematics of
+ *          Computation 35 (1980);
+ *          J. Grantham, "Frobenius pseudoprimes", Mathematics of Computation
+ *          70 (2001), for the extra strong Lucas test;
+ *          J. Brillhart, D. H. Lehmer, J. L. Selfridge, "New primality
+ *          criteria and factorizations of 2^m +- 1", Mathematics of
+ *          Computation 29 (1975).
+ */
+public class Primality {
+
+    private static final int[] SMALL_PRIMES = PrimeSieve.primesUpTo(1000);
+    // Products of consecutive SMALL_PRIMES below 2^63, and the index of the
+    // first prime after each: one remainder by a product screens them all.
+    private static final long[] PRODUCTS;
+    private static final int[] PRODUCT_ENDS;
+    private static final int MEMO_SIZE = 1024;
+    // Lucas parameters tried before checking whether N is a square, which
+    // would have none.
+    private static final int SQUARE_CHECK = 10;
+    // Bases tried per prime of a Pocklington certificate before giving up.
+    private static final int MAX_WITNESS = 1000;
+
+    // N >= 2^63 -> isProbablePrime(N), least recently used first.
+    private static final Map<BigInteger, Boolean> memo =
+            new LinkedHashMap<BigInteger, Boolean>(MEMO_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<BigInteger, Boolean> eldest) {
+                    return size() > MEMO_SIZE;
+                }
+            };
+
+    static {
+        List<Long> products = new ArrayList<Long>();
+        List<Integer> ends = new ArrayList<Integer>();
+        long product = 1;
+        for (int i = 0; i < SMALL_PRIMES.length; i++) {
+            if (product > Long.MAX_VALUE / SMALL_PRIMES[i]) {
+                products.add(product);
+                ends.add(i);
+                product = 1;
+            }
+            product *= SMALL_PRIMES[i];
+        }
+        products.add(product);
+        ends.add(SMALL_PRIMES.length);
+        PRODUCTS = new long[products.size()];
+        PRODUCT_ENDS = new int[ends.size()];
+        for (int i = 0; i < PRODUCTS.length; i++) {
+            PRODUCTS[i] = products.get(i);
+            PRODUCT_ENDS[i] = ends.get(i);
+        }
+    }
+
+    /**
+     * @param n BigInteger N
+     * @return true if N is prime; for N >= 2^63, true if N passes the
+     *         Baillie-PSW test. False for N < 2.
+     */
+    public static boolean isProbablePrime(BigInteger n) {
+        return isProbablePrime(n, true);
+    }
+
+    /**
+     * @param memoize Whether to consult and update the memo; false for
+     *        numbers unlikely to be tested again, which would only push the
+     *        hot ones out.
+     */
+    private static boolean isProbablePrime(BigInteger n, boolean memoize) {
+        if (n.bitLength() < Long.SIZE)
+            return n.signum() > 0 && LongMath.isPrime(n.longValue());
+        if (hasSmallFactor(n))
+            return false;
+        if (!memoize)
+            return strongProbablePrime(n) && extraStrongLucasProbablePrime(n);
+        Boolean known;
+        synchronized (memo) {
+            known = memo.get(n);
+        }
+        if (known != null)
+            return known;
+        boolean prime = strongProbablePrime(n) && extraStrongLucasProbablePrime(n);
+        synchronized (memo) {
+            memo.put(n, prime);
+        }
+        return prime;
+    }
+
+    /**
+     * @param n BigInteger N
+     * @return The least probable prime greater than N, as by
+     *         isProbablePrime; 2 for N < 2.
+     */
+    public static BigInteger nextProbablePrime(BigInteger n) {
+        if (n.compareTo(BigMath.TWO) < 0)
+            return BigMath.TWO;
+        BigInteger candidate = n.add(BigInteger.ONE).setBit(0);
+        while (!isProbablePrime(candidate, false))
+            candidate = candidate.add(BigMath.TWO);
+        return candidate;
+    }
+
+    /**
+     * @requires n >= 2^63
+     * @return true if one of SMALL_PRIMES divides N.
+     */
+    private static boolean hasSmallFactor(BigInteger n) {
+        int start = 0;
+        for (int i = 0; i < PRODUCTS.length; i++) {
+            long r = n.remainder(BigInteger.valueOf(PRODUCTS[i])).longValue();
+            for (int j = start; j < PRODUCT_ENDS[i]; j++)
+                if (r % SMALL_PRIMES[j] == 0)
+                    return true;
+            start = PRODUCT_ENDS[i];
+        }
+        return false;
+    }
+
+    /**
+     * @requires n odd, n > 2
+     * @return true if N is a strong probable prime to base 2.
+     */
+    static boolean strongProbablePrime(BigInteger n) {
+        BigInteger minusOne = n.subtract(BigInteger.ONE);
+        int s = minusOne.getLowestSetBit();
+        BigInteger x = BigMath.TWO.modPow(minusOne.shiftRight(s), n);
+        if (x.equals(BigInteger.ONE) || x.equals(minusOne))
+            return true;
+        for (int r = 1; r < s; r++) {
+            x = x.multiply(x).mod(n);
+            if (x.equals(minusOne))
+                return true;
+            if (x.equals(BigInteger.ONE))
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Extra strong Lucas test: P is the first of 3, 4, 5, ... such that
+     * D = P^2 - 4 has Jacobi symbol (D/N) = -1, and Q = 1. With Q = 1 only
+     * the V sequence needs computing, two products per bit of N, and U_k = 0
+     * is read off V_k and V_k+1.
+     * @requires n odd, n has no factor below 1000
+     * @return true if N is an extra strong Lucas probable prime.
+     */
+    static boolean extraStrongLucasProbablePrime(BigInteger n) {
+        long p = 3;
+        for (int tried = 1;; tried++, p++) {
+            int j = jacobi(p * p - 4, n);
+            if (j == -1)
+                break;
+            // |D| < N, so (D/N) = 0 means they share a factor.
+            if (j == 0)
+                return false;
+            if (tried == SQUARE_CHECK) {
+                BigInteger root = BigMath.sqrt(n);
+                if (root.multiply(root).equals(n))
+                    return false;
+            }
+        }
+        BigInteger bp = BigInteger.valueOf(p);
+
+        // n + 1 = k * 2^s with k odd. (v, w) = (V_m, V_m+1) from m = 1 up
+        // to k, by V_2m = V_m^2 - 2 and V_2m+1 = V_m V_m+1 - P.
+        BigInteger plusOne = n.add(BigInteger.ONE);
+        int s = plusOne.getLowestSetBit();
+        BigInteger k = plusOne.shiftRight(s);
+        BigInteger v = bp;
+        BigInteger w = bp.multiply(bp).subtract(BigMath.TWO).mod(n);
+        for (int i = k.bitLength() - 2; i >= 0; i--) {
+            if (k.testBit(i)) {
+                v = v.multiply(w).subtract(bp).mod(n);
+                w = w.multiply(w).subtract(BigMath.TWO).mod(n);
+            } else {
+                w = v.multiply(w).subtract(bp).mod(n);
+                v = v.multiply(v).subtract(BigMath.TWO).mod(n);
+            }
+        }
+        // D U_k = 2 V_k+1 - P V_k, and D is prime to N.
+        BigInteger minusTwo = n.subtract(BigMath.TWO);
+        boolean uZero = w.shiftLeft(1).subtract(bp.multiply(v)).mod(n).signum() == 0;
+        if (uZero && (v.equals(BigMath.TWO) || v.equals(minusTwo)))
+            return true;
+        for (int r = 1; r < s; r++) {
+            if (v.signum() == 0)
+                return true;
+            v = v.multiply(v).subtract(BigMath.TWO).mod(n);
+        }
+        return false;
+    }
+
+    /**
+     * @requires n odd, n > |a|
+     * @return Jacobi symbol (a/n).
+     */
+    static int jacobi(long a, BigInteger n) {
+        int result = 1;
+        int n8 = n.intValue() & 7;
+        if (a < 0) {
+            a = -a;
+            if ((n8 & 3) == 3)
+                result = -result;
+        }
+        if (a == 0)
+            return 0;
+        while ((a & 1) == 0) {
+            a >>= 1;
+            if (n8 == 3 || n8 == 5)
+                result = -result;
+        }
+        if (a == 1)
+            return result;
+        // Reciprocity, after which everything fits in a long.
+        if ((a & 3) == 3 && (n8 & 3) == 3)
+            result = -result;
+        return result * jacobi(n.mod(BigInteger.valueOf(a)).longValue(), a);
+    }
+
+    /**
+     * @requires m odd, m > 0, a >= 0
+     * @return Jacobi symbol (a/m).
+     */
+    private static int jacobi(long a, long m) {
+        int result = 1;
+        a %= m;
+        while (a != 0) {
+            while ((a & 1) == 0) {
+                a >>= 1;
+                long r = m & 7;
+                if (r == 3 || r == 5)
+                    result = -result;
+            }
+            long t = a;
+            a = m;
+            m = t;
+            if ((a & 3) == 3 && (m & 3) == 3)
+                result = -result;
+            a %= m;
+        }
+        return m == 1 ? result : 0;
+    }
+
+    /**
+     * A proof that N is prime, checkable with verify().
+     *
+     * For N below 2^63 there is nothing to record: LongMath decides it
+     * exactly. Otherwise it is a Pocklington certificate: distinct primes
+     * q_i, each with a certificate of its own, such that the part of N - 1
+     * made of their powers exceeds sqrt(N), and for each q_i a witness a_i with
+     * a_i^(N-1) = 1 (mod N) and gcd(a_i^((N-1)/q_i) - 1, N) = 1.
+     */
+    public static class Certificate {
+        public final BigInteger n;
+        // Rep invariant: primes and witnesses have equal length, both empty
+        //   for n < 2^63
+        public final List<Certificate> primes;
+        public final List<BigInteger> witnesses;
+
+        Certificate(BigInteger n, List<Certificate> primes, List<BigInteger> witnesses) {
+            this.n = n;
+            this.primes = Collections.unmodifiableList(primes);
+            this.witnesses = Collections.unmodifiableList(witnesses);
+        }
+
+        /**
+         * @return true if this certificate proves that n is prime.
+         */
+        public boolean verify() {
+            if (n.bitLength() < Long.SIZE)
+                return n.signum() > 0 && LongMath.isPrime(n.longValue());
+            if (primes.size() != witnesses.size())
+                return false;
+            BigInteger minusOne = n.subtract(BigInteger.ONE);
+            BigInteger factored = BigInteger.ONE;
+            // A q listed twice would count its power twice.
+            Set<BigInteger> seen = new HashSet<BigInteger>();
+            for (int i = 0; i < primes.size(); i++) {
+                BigInteger q = primes.get(i).n;
+                if (!seen.add(q) || !primes.get(i).verify() || minusOne.mod(q).signum() != 0)
+                    return false;
+                BigInteger rest = minusOne;
+                while (rest.mod(q).signum() == 0) {
+                    factored = factored.multiply(q);
+                    rest = rest.divide(q);
+                }
+                BigInteger a = witnesses.get(i);
+                if (!a.modPow(minusOne, n).equals(BigInteger.ONE)
+                        || !a.modPow(minusOne.divide(q), n).subtract(BigInteger.ONE)
+                                .gcd(n).equals(BigInteger.ONE))
+                    return false;
+            }
+            return factored.multiply(factored).compareTo(n) > 0;
+        }
+
+        @Override
+        public String toString() {
+            if (primes.isEmpty())
+                return n.toString();
+            StringBuilder sb = new StringBuilder(n.toString()).append(" [");
+            for (int i = 0; i < primes.size(); i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(primes.get(i)).append(" by ").append(witnesses.get(i));
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    /**
+     * Prove that N is prime.
+     *
+     * N - 1 is factored, small primes first, until the factored part exceeds
+     * sqrt(N); each composite piece is split with factorizer and the smaller
+     * part factored completely. The cost is that of factoring: quick when
+     * N - 1 has small factors, slow when it has two large ones.
+     *
+     * @param n BigInteger N
+     * @param factorizer Method used to split composite pieces of N - 1; it
+     *        must not give up.
+     * @return A certificate that verifies, or null if N is not prime.
+     */
+    public static Certificate certify(BigInteger n, Factorizer factorizer) {
+        if (!isProbablePrime(n))
+            return null;
+        if (n.bitLength() < Long.SIZE)
+            return new Certificate(n, new ArrayList<Certificate>(), new ArrayList<BigInteger>());
+
+        BigInteger minusOne = n.subtract(BigInteger.ONE);
+        List<BigInteger> qs = new ArrayList<BigInteger>();
+        BigInteger factored = BigInteger.ONE;
+        BigInteger rest = minusOne;
+        for (int p : SMALL_PRIMES) {
+            BigInteger bp = BigInteger.valueOf(p);
+            if (rest.mod(bp).signum() != 0)
+                continue;
+            qs.add(bp);
+            do {
+                rest = rest.divide(bp);
+                factored = factored.multiply(bp);
+            } while (rest.mod(bp).signum() == 0);
+        }
+        while (factored.multiply(factored).compareTo(n) <= 0) {
+            List<BigInteger> found;
+            if (isProbablePrime(rest)) {
+                found = Collections.singletonList(rest);
+            } else {
+                BigInteger d = factorizer.findFactor(rest);
+                if (d == null)
+                    throw new IllegalStateException("Could not split " + rest);
+                found = BigMath.factor(d.min(rest.divide(d)), factorizer);
+            }
+            for (BigInteger q : found) {
+                if (rest.mod(q).signum() != 0)
+                    continue;
+                qs.add(q);
+                do {
+                    rest = rest.divide(q);
+                    factored = factored.multiply(q);
+                } while (rest.mod(q).signum() == 0);
+            }
+        }
+
+        List<Certificate> primes = new ArrayList<Certificate>();
+        List<BigInteger> witnesses = new ArrayList<BigInteger>();
+        for (BigInteger q : qs) {
+            Certificate c = certify(q, factorizer);
+            if (c == null)
+                throw new IllegalStateException(q + " passed as prime but is not");
+            BigInteger a = witness(n, q);
+            if (a == null)
+                return null;
+            primes.add(c);
+            witnesses.add(a);
+        }
+        return new Certificate(n, primes, witnesses);
+    }
+
+    /**
+     * Prove that N is prime, factoring N - 1 with an AutoFactorizer.
+     * @see #certify(BigInteger, Factorizer)
+     */
+    public static Certificate certify(BigInteger n) {
+        return certify(n, new AutoFactorizer());
+    }
+
+    /**
+     * @requires q prime, q divides n - 1
+     * @return The least a >= 2 with a^(n-1) = 1 (mod n) and
+     *         gcd(a^((n-1)/q) - 1, n) = 1, or null if some a shows that n is
+     *         composite.
+     * @throws IllegalStateException if none is found among the first
+     *         MAX_WITNESS bases, which for a prime n is all but impossible
+     */
+    private static BigInteger witness(BigInteger n, BigInteger q) {
+        BigInteger minusOne = n.subtract(BigInteger.ONE);
+        BigInteger exponent = minusOne.divide(q);
+        for (long base = 2; base < MAX_WITNESS; base++) {
+            BigInteger a = BigInteger.valueOf(base);
+            if (!a.modPow(minusOne, n).equals(BigInteger.ONE))
+                return null;
+            if (a.modPow(exponent, n).subtract(BigInteger.ONE).gcd(n).equals(BigInteger.ONE))
+                return a;
+        }
+        throw new IllegalStateException("No Pocklington witness for " + n + " and " + q);
+    }
+}
@@ -0,0 +1,190 @@
+package primefactors.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sieve of Eratosthenes for tables of small primes, and a segmented sieve
+ * for enumerating the primes of a range without primality tests.
+ *
+ * The segmented sieve covers the numbers below LIMIT in segments of
+ * SEGMENT_SIZE numbers. Each segment is a bitset over its odd numbers, 64KB
+ * for a million numbers, and recently used segments are cached so that
+ * repeated and overlapping ranges are only sieved once.
+ */
+public class PrimeSieve {
+
+    /** Numbers covered by one sieve segment. */
+    static final int SEGMENT_SIZE = 1 << 20;
+    /** Ranges must end below 2^LIMIT_BITS to be sieved. */
+    public static final int LIMIT_BITS = 48;
+    /** Ranges must end below LIMIT to be sieved. */
+    public static final long LIMIT = 1L << LIMIT_BITS;
+    private static final int CACHED_SEGMENTS = 64;
+
+    // Primes up to at least sqrt of every segment sieved so far; only grows.
+    private static int[] basePrimes = primesUpTo(1 << 16);
+    // Segment index -> bitset of its odd numbers, least recently used first.
+    private static final Map<Long, long[]> segments =
+            new LinkedHashMap<Long, long[]>(CACHED_SEGMENTS, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+                    return size() > CACHED_SEGMENTS;
+                }
+            };
+
+    /**
+     * @param limit Largest candidate, >= 0.
+     * @return All primes p such that 2 <= p <= limit, in increasing order.
+     */
+    public static int[] primesUpTo(int limit) {
+        if (limit < 2)
+            return new int[0];
+        boolean[] composite = new boolean[limit + 1];
+        int[] primes = new int[16];
+        int count = 0;
+        for (int i = 2; i <= limit; i++) {
+            if (composite[i])
+                continue;
+            if (count == primes.length)
+                primes = Arrays.copyOf(primes, count * 2);
+            primes[count++] = i;
+            for (long j = (long) i * i; j <= limit; j += i)
+                composite[(int) j] = true;
+        }
+        return Arrays.copyOf(primes, count);
+    }
+
+    /**
+     * Sieve the odd numbers up to limit a segment at a time, without caching
+     * the segments.
+     * @param limit Largest candidate, >= 0.
+     * @return Bitset with bit i set iff 2i + 1 is prime, for 2i + 1 <= limit;
+     *         bits above limit are unspecified.
+     */
+    static long[] oddPrimeBits(int limit) {
+        final int words = SEGMENT_SIZE / 128;
+        long[] bits = new long[limit / 128 + 1];
+        for (long index = 0; index * SEGMENT_SIZE <= limit; index++) {
+            int offset = (int) index * words;
+            System.arraycopy(sieve(index), 0, bits, offset,
+                    Math.min(words, bits.length - offset));
+        }
+        return bits;
+    }
+
+    /**
+     * Enumerates the primes of a range in increasing order.
+     */
+    public static class Cursor {
+        private final long hi;
+        // Next number to examine.
+        private long next;
+        private long segmentIndex = -1;
+        private long[] bits;
+
+        /**
+         * @param lo, hi such that 0 <= lo, hi < LIMIT
+         */
+        public Cursor(long lo, long hi) {
+            if (lo < 0 || hi >= LIMIT)
+                throw new IllegalArgumentException();
+            this.next = lo;
+            this.hi = hi;
+        }
+
+        /**
+         * @return The smallest prime p with previous result < p <= hi
+         *         (lo <= p on the first call), or -1 if there is none.
+         */
+        public long next() {
+            if (next <= 2) {
+                next = 3;
+                if (hi >= 2)
+                    return 2;
+            }
+            // Only odd numbers are represented.
+            if ((next & 1) == 0)
+                next++;
+            while (next <= hi) {
+                long index = next / SEGMENT_SIZE;
+                if (index != segmentIndex) {
+                    bits = segment(index);
+                    segmentIndex = index;
+                }
+                long start = index * SEGMENT_SIZE;
+                int bit = (int) ((next - start) >> 1);
+                int word = bit >>> 6;
+                long w = bits[word] & (-1L << (bit & 63));
+                while (w == 0 && ++word < bits.length)
+                    w = bits[word];
+                if (w == 0) {
+                    next = start + SEGMENT_SIZE + 1;
+                    continue;
+                }
+                long p = start + 2L * ((word << 6) + Long.numberOfTrailingZeros(w)) + 1;
+                if (p > hi)
+                    break;
+                next = p + 2;
+                return p;
+            }
+            next = hi + 1;
+            return -1;
+        }
+    }
+
+    /**
+     * @return Bitset of segment index: bit i is set iff
+     *         index * SEGMENT_SIZE + 2i + 1 is prime.
+     */
+    static long[] segment(long index) {
+        synchronized (segments) {
+            long[] bits = segments.get(index);
+            if (bits != null)
+                return bits;
+        }
+        // Sieve outside the lock; a racing thread at worst repeats the work.
+        long[] bits = sieve(index);
+        synchronized (segments) {
+            segments.put(index, bits);
+        }
+        return bits;
+    }
+
+    private static long[] sieve(long index) {
+        long start = index * SEGMENT_SIZE;
+        long end = start + SEGMENT_SIZE;
+        long[] bits = new long[SEGMENT_SIZE / 128];
+        Arrays.fill(bits, -1L);
+        if (start == 0)
+            bits[0] &= ~1L; // 1 is not prime
+
+        for (int p : basePrimes((long) Math.sqrt((double) end) + 1)) {
+            if (p == 2)
+                continue;
+            long pp = (long) p * p;
+            if (pp >= end)
+                break;
+            long m = Math.max(pp, (start + p - 1) / p * p);
+            if ((m & 1) == 0)
+                m += p;
+            for (; m < end; m += 2L * p) {
+                int bit = (int) ((m - start) >> 1);
+                bits[bit >>> 6] &= ~(1L << (bit & 63));
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return All primes up to at least limit, in increasing order.
+     */
+    private static synchronized int[] basePrimes(long limit) {
+        if (basePrimes[basePrimes.length - 1] < limit)
+            basePrimes = primesUpTo((int) Math.max(limit, 2L * basePrimes[basePrimes.length - 1]));
+        return basePrimes;
+    }
+}
@@ -0,0 +1,20 @@
+package primefactors.util;
+
+import java.math.BigInteger;
+
+/**
+ * Observer of a long search for prime factors, which can also stop it.
+ */
+public interface SearchProgress {
+
+    /** Observer that never stops a search. */
+    SearchProgress NONE = candidate -> true;
+
+    /**
+     * Called from time to time while a range is searched, from the searching
+     * thread; from each of them if the range is searched in parallel.
+     * @param candidate The next candidate to be tried.
+     * @return False to abandon the search.
+     */
+    boolean proceed(BigInteger candidate);
+}
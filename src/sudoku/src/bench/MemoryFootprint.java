@@ -0,0 +1,163 @@
+package sudoku.src.bench;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import sudoku.src.sat.SATSolver;
+import sudoku.src.sat.env.Environment;
+import sudoku.src.sat.env.Variable;
+import sudoku.src.sat.formula.Clause;
+import sudoku.src.sat.formula.Formula;
+import sudoku.src.sat.formula.Literal;
+import sudoku.src.sudoku.Sudoku;
+import sudoku.src.sudoku.Sudoku.ParseException;
+
+/**
+ * Reports the memory cost of the SAT data model and the allocation rate of
+ * the solver, as a baseline for memory-reduction work.
+ *
+ * Retained sizes are measured as the growth of the used heap (after forced
+ * garbage collection) while the measured structure is kept reachable, so
+ * they include every object in the Clause/NonEmptyImList/Literal/Variable
+ * graph as laid out by the running JVM. Allocation figures come from the
+ * per-thread allocation counter of HotSpot's ThreadMXBean.
+ *
+ * Usage: java sudoku.src.bench.MemoryFootprint [dim ...]
+ * Defaults to dimensions 2, 3 and 4. Dimension 5 interns 15625 literals
+ * through an association list and needs a large heap (e.g. -Xmx8g).
+ */
+public class MemoryFootprint {
+    private static final String[] SOLVE_SAMPLES = {
+        "src/sudoku/samples/sudoku_easy.txt",
+        "src/sudoku/samples/sudoku_hard.txt",
+    };
+
+    public static void main(String[] args) {
+        int[] dims = { 2, 3, 4 };
+        if (args.length > 0) {
+            dims = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                dims[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("== Formula footprint (Sudoku.getProblem) ==");
+        for (int dim : dims)
+            reportFormula(dim);
+
+        System.out.println("== Environment footprint ==");
+        for (int dim : dims)
+            reportEnvironment(dim);
+
+        System.out.println("== SATSolver.solve allocation ==");
+        for (String sample : SOLVE_SAMPLES)
+            reportSolve(3, sample);
+    }
+
+    /**
+     * Print the retained size of the formula for an empty puzzle of the given
+     * dimension, per clause and per literal occurrence.
+     */
+    private static void reportFormula(int dim) {
+        Sudoku sudoku = new Sudoku(dim);
+        long before = usedAfterGc();
+        Formula f = sudoku.getProblem();
+        long retained = usedAfterGc() - before;
+
+        int clauses = 0;
+        long occurrences = 0;
+        Map<Literal, Boolean> literals = new IdentityHashMap<Literal, Boolean>();
+        for (Clause c : f.getClauses()) {
+            clauses++;
+            for (Literal l : c) {
+                occurrences++;
+                literals.put(l, Boolean.TRUE);
+            }
+        }
+
+        System.out.println(String.format(
+                "dim %d: %d clauses, %d literal occurrences, %d distinct literals, "
+                + "%d bytes retained (%.1f bytes/clause, %.1f bytes/literal occurrence)",
+                dim, clauses, occurrences, literals.size(), retained,
+                (double) retained / clauses, (double) retained / occurrences));
+        Reference.reachabilityFence(f);
+    }
+
+    /**
+     * Print the retained size of an environment binding every variable of a
+     * puzzle of the given dimension.
+     */
+    private static void reportEnvironment(int dim) {
+        int size = dim * dim;
+        Variable[] vars = new Variable[size * size * size];
+        for (int i = 0; i < vars.length; i++)
+            vars[i] = new Variable("v" + i);
+
+        long before = usedAfterGc();
+        Environment env = new Environment();
+        for (Variable v : vars)
+            env = env.putTrue(v);
+        long retained = usedAfterGc() - before;
+
+        System.out.println(String.format(
+                "dim %d: %d bindings, %d bytes retained (%.1f bytes/binding)",
+                dim, vars.length, retained, (double) retained / vars.length));
+        Reference.reachabilityFence(env);
+    }
+
+    /**
+     * Print the bytes allocated and the allocation rate of solving a puzzle.
+     */
+    private static void reportSolve(int dim, String filename) {
+        Sudoku sudoku;
+        try {
+            sudoku = Sudoku.fromFile(dim, filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return;
+        }
+        Formula f = sudoku.getProblem();
+
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+        Environment env = SATSolver.solve(f);
+        long elapsed = System.nanoTime() - started;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format(
+                "%s: %d bytes allocated in %dms (%.1f MB/s)%s",
+                filename, allocated, elapsed / 1000000,
+                allocated / 1e6 / (elapsed / 1e9),
+                env == null ? ", no solution" : ""));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    private static long usedAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Repeat until the measurement settles; a single System.gc() is
+        // only a hint.
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,46 @@
+package sudoku.src.bench;
+
+import sudoku.src.immutable.RepChecks;
+import sudoku.src.sat.formula.Clause;
+import sudoku.src.sat.formula.PosLiteral;
+import sudoku.src.sudoku.Sudoku;
+
+/**
+ * Measures the cost of rep invariant checking on the SAT data model.
+ * 
+ * Run once with checks off and once with them on to see the saving:
+ * 
+ *     java sudoku.src.bench.RepCheckBenchmark
+ *     java -ea sudoku.src.bench.RepCheckBenchmark
+ */
+public class RepCheckBenchmark {
+    private static final int CLAUSE_SIZE = 200;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        System.out.println("Rep checks enabled: " + RepChecks.ENABLED);
+
+        PosLiteral[] literals = new PosLiteral[CLAUSE_SIZE];
+        for (int i = 0; i < CLAUSE_SIZE; i++)
+            literals[i] = PosLiteral.make("v" + i);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long started = System.nanoTime();
+            for (int rep = 0; rep < 20; rep++) {
+                Clause c = new Clause();
+                for (PosLiteral l : literals)
+                    c = c.add(l);
+            }
+            long clauseTime = System.nanoTime() - started;
+
+            started = System.nanoTime();
+            new Sudoku(3).getProblem();
+            long problemTime = System.nanoTime() - started;
+
+            System.out.println("Round " + round
+                    + ": build 20 clauses of " + CLAUSE_SIZE + " literals "
+                    + clauseTime / 1000000 + "ms, "
+                    + "Sudoku(3).getProblem() " + problemTime / 1000000 + "ms");
+        }
+    }
+}
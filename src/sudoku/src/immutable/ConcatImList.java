@@ -0,0 +1,142 @@
+/**
+ * An immutable list formed by concatenating two nonempty immutable lists.
+ * Both halves are shared rather than copied, so concatenation is O(1).
+ */
+package sudoku.src.immutable;
+
+import java.util.Iterator;
+
+public class ConcatImList<E> implements ImList<E> {
+    private final ImList<E> left;
+    private final ImList<E> right;
+    private final int size;
+
+    /**
+     * abstraction function
+     * A(this) = A(left) ^ A(right)
+     * 
+     * rep invariant
+     * left, right != null, left and right are nonempty,
+     * size == left.size() + right.size()
+     */
+
+    void checkRep () {
+        if (!RepChecks.ENABLED) return;
+        assert left != null && !left.isEmpty(): "ConcatList: Rep invariant, left nonempty";
+        assert right != null && !right.isEmpty(): "ConcatList: Rep invariant, right nonempty";
+        assert size == left.size() + right.size(): "ConcatList: Rep invariant, size";
+    }
+
+    private ConcatImList (ImList<E> l, ImList<E> r) {
+        left = l;
+        right = r;
+        size = l.size() + r.size();
+        checkRep();
+    }
+
+    /**
+     * Concatenate two lists without copying either of them.
+     * 
+     * @requires l != null, r != null
+     * @return [l_0,...,l_n,r_0,...,r_m] where l = [l_0,...,l_n] and
+     *         r = [r_0,...,r_m]
+     */
+    static <E> ImList<E> concat (ImList<E> l, ImList<E> r) {
+        if (l.isEmpty()) return r;
+        if (r.isEmpty()) return l;
+        return new ConcatImList<E> (l, r);
+    }
+
+    public ImList<E> add(E e) {
+        assert e != null: "ConcatList.add(null)";
+        return new NonEmptyImList<E> (e, this);
+    }
+
+    public ImList<E> concat(ImList<E> other) {
+        return concat(this, other);
+    }
+
+    public E first() {
+        return left.first();
+    }
+
+    /**
+     * A left-nested concatenation is rotated to the right before taking the
+     * rest, so walking the whole list costs O(1) amortized per element.
+     */
+    public ImList<E> rest() {
+        if (left instanceof ConcatImList) {
+            ConcatImList<E> l = (ConcatImList<E>) left;
+            return concat(l.left, concat(l.right, right)).rest();
+        }
+        return concat(left.rest(), right);
+    }
+
+    public ImList<E> remove(E e) {
+        assert e != null: "ConcatList.remove(null)";
+        ImList<E> l = left.remove(e);
+        if (l != left) return concat(l, right);
+        ImList<E> r = right.remove(e);
+        if (r != right) return concat(left, r);
+        return this;
+    }
+
+    public boolean contains (E e) {
+        assert e != null: "ConcatList.contains(null)";
+        return left.contains(e) || right.contains(e);
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return false;
+    }
+
+    public Iterator<E> iterator () {
+        return new ImListIterator<E>(this);
+    }
+
+    /**
+     * Compares the specified object with this list for equality.
+     * 
+     * @return all i | e_i.equals(eo_i) where this list = [e_0,...,e_n] and o = [eo_0,...,eo_n]
+     */
+    @Override
+    public boolean equals (Object o) {
+        if (o == this) return true;
+        if (!(o instanceof ImList)) return false;
+        ImList<?> l = (ImList<?>) o;
+        if (l.size() != size()) return false;
+        Iterator<?> it = l.iterator();
+        for (E e : this)
+            if (!e.equals(it.next())) return false;
+        return true;
+    }
+
+    /**
+     * Computes hash code
+     * @return the sum of the hash codes of the elements in the list,
+     *    consistent with NonEmptyImList.hashCode()
+     */
+    @Override
+    public int hashCode () {
+        return left.hashCode() + right.hashCode();
+    }
+
+    /**
+     * Get string representation of this list.
+     * @return Returns the string representations of the list's elements, separated by commas,
+     *    with the entire list surrounded by brackets.
+     */
+    @Override
+    public String toString () {
+        StringBuilder s = new StringBuilder("[");
+        for (E e : this) {
+            if (s.length() > 1) s.append(", ");
+            s.append(e);
+        }
+        return s.append("]").toString();
+    }
+}
@@ -23,6 +23,11 @@ public class EmptyImList<E> implements ImList<E> {
         return new NonEmptyImList<E>(e);
     }
 
+    public ImList<E> concat(ImList<E> other) {
+        assert other != null : "EmptyList.concat(null)";
+        return other;
+    }
+
     public ImList<E> remove(E e) {
         assert e != null : "EmptyList.remove(null)";
         return this;
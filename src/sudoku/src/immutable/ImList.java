@@ -17,6 +17,18 @@ public interface ImList<E> extends Iterable<E> {
      */
     public ImList<E> add(E e);
 
+    /**
+     * Concatenate another list onto the end of this list. Neither list is
+     * copied; the result shares the structure of both.
+     * 
+     * @param other
+     *            list to append
+     * @requires other != null
+     * @return [e_0,...,e_n,o_0,...,o_m] where this list = [e_0,...,e_n] and
+     *         other = [o_0,...,o_m]
+     */
+    public ImList<E> concat(ImList<E> other);
+
     /**
      * Get first element of this list.
      * 
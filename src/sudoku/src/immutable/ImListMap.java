@@ -18,14 +18,9 @@ public class ImListMap<K, V> implements ImMap<K, V> {
     private ImList<Binding> bindings;
 
     void checkRep() {
-        // check whether assertions are turned on.
-        // if they're not on, we want to avoid the quadratic-cost
-        // traversal that checkRep(bindings) would do.
-        try {
-            assert false;
-        } catch (AssertionError e) {
-            checkRep(bindings);
-        }
+        // skip the quadratic traversal entirely unless checks are enabled.
+        if (!RepChecks.ENABLED) return;
+        checkRep(bindings);
     }
 
     void checkRep(ImList<Binding> bs) {
@@ -0,0 +1,116 @@
+package sudoku.src.immutable;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ImListTest {
+    private static final int N = 8;
+    private final ImList<Integer> empty = new EmptyImList<Integer>();
+
+    /**
+     * @return [from,...,to] built by add alone.
+     */
+    private ImList<Integer> plain(int from, int to) {
+        ImList<Integer> l = empty;
+        for (int i = to; i >= from; --i)
+            l = l.add(i);
+        return l;
+    }
+
+    /**
+     * @return [from,...,to] as ((([from] ^ [from+1]) ^ ...) ^ [to]).
+     */
+    private ImList<Integer> leftNested(int from, int to) {
+        ImList<Integer> l = empty;
+        for (int i = from; i <= to; ++i)
+            l = l.concat(new NonEmptyImList<Integer>(i));
+        return l;
+    }
+
+    /**
+     * @return [from,...,to] as ([from] ^ ([from+1] ^ (... ^ [to]))).
+     */
+    private ImList<Integer> rightNested(int from, int to) {
+        ImList<Integer> l = empty;
+        for (int i = to; i >= from; --i)
+            l = new NonEmptyImList<Integer>(i).concat(l);
+        return l;
+    }
+
+    /**
+     * @return Every way of building [1,...,N] tested here, concatenations
+     *         nested both ways and with empty operands among them.
+     */
+    private List<ImList<Integer>> shapes() {
+        List<ImList<Integer>> shapes = new ArrayList<ImList<Integer>>();
+        shapes.add(leftNested(1, N));
+        shapes.add(rightNested(1, N));
+        shapes.add(leftNested(1, N / 2).concat(rightNested(N / 2 + 1, N)));
+        shapes.add(rightNested(1, N / 2).concat(leftNested(N / 2 + 1, N)));
+        shapes.add(plain(1, 3).concat(empty).concat(plain(4, N)));
+        shapes.add(empty.concat(plain(1, 3)).concat(empty.concat(leftNested(4, N))));
+        return shapes;
+    }
+
+    @Test
+    public void testRestWalksEveryShape() {
+        for (ImList<Integer> l : shapes()) {
+            for (int i = 1; i <= N; ++i) {
+                assertEquals(N - i + 1, l.size());
+                assertEquals(Integer.valueOf(i), l.first());
+                assertEquals(plain(i, N), l);
+                l = l.rest();
+            }
+            assertTrue(l.isEmpty());
+        }
+    }
+
+    @Test
+    public void testConcatWithEmpty() {
+        ImList<Integer> l = leftNested(1, N);
+        assertSame(l, empty.concat(l));
+        assertSame(l, l.concat(empty));
+        assertSame(l, ConcatImList.concat(empty, l));
+        assertTrue(empty.concat(empty).isEmpty());
+    }
+
+    @Test
+    public void testRemoveAcrossTheSeam() {
+        for (ImList<Integer> l : shapes()) {
+            for (int i = 1; i <= N; ++i) {
+                ImList<Integer> expected = ConcatImList.concat(plain(1, i - 1), plain(i + 1, N));
+                ImList<Integer> removed = l.remove(i);
+                assertEquals(expected, removed);
+                assertEquals(N - 1, removed.size());
+                assertFalse(removed.contains(i));
+            }
+            assertSame(l, l.remove(N + 1));
+        }
+        // Only the first of two equal elements, one each side of the seam.
+        ImList<Integer> twice = rightNested(1, 2).concat(leftNested(2, 3));
+        assertEquals(plain(1, 3), twice.remove(2));
+        assertEquals(plain(1, 1), twice.remove(2).remove(2).remove(3));
+    }
+
+    @Test
+    public void testEqualsAndHashCodeMatchNonEmptyImList() {
+        ImList<Integer> expected = plain(1, N);
+        for (ImList<Integer> l : shapes()) {
+            assertEquals(expected, l);
+            assertEquals(l, expected);
+            assertEquals(expected.hashCode(), l.hashCode());
+            for (ImList<Integer> other : shapes())
+                assertEquals(other, l);
+        }
+        // Same elements, another order or length.
+        ImList<Integer> swapped = plain(N / 2 + 1, N).concat(plain(1, N / 2));
+        assertFalse(swapped.equals(leftNested(1, N)));
+        assertFalse(leftNested(1, N).equals(swapped));
+        assertFalse(leftNested(1, N).equals(leftNested(1, N - 1)));
+        assertFalse(plain(1, N - 1).equals(rightNested(1, N)));
+    }
+}
@@ -21,15 +21,17 @@ public class NonEmptyImList<E> implements ImList<E> {
      */
 
     void checkRep () {
+        if (!RepChecks.ENABLED) return;
         assert element != null: "NonEmptyList: Rep invariant, element non null";
         assert rest != null: "NonEmptyList: Rep invariant, rest non null";
         assert size == rest.size() + 1: "NonEmptyList: Rep invariant, size";        
     }
 
-    private NonEmptyImList (E e, ImList<E> r) {
+    NonEmptyImList (E e, ImList<E> r) {
         element = e;
         rest = r;
         size = r.size() + 1;
+        checkRep();
     }
 
     public NonEmptyImList (E e) {
@@ -45,6 +47,11 @@ public class NonEmptyImList<E> implements ImList<E> {
         return new NonEmptyImList<E> (e, this);
     }
 
+    public ImList<E> concat(ImList<E> other) {
+        assert other != null: "NonEmptyList.concat(null)";
+        return ConcatImList.concat(this, other);
+    }
+
     public E first() {
         return element;
     }
@@ -0,0 +1,24 @@
+/**
+ * 6.005 Elements of Software Construction
+ */
+package sudoku.src.immutable;
+
+/**
+ * Central switch for rep invariant checking in the immutable and SAT classes.
+ * 
+ * Checks are on exactly when assertions are enabled for this package, as in
+ * test runs with -ea; the checks themselves are assert statements, so there
+ * is nothing to gain from running them otherwise. Because ENABLED is a
+ * static final fixed at class initialization, a guarded checkRep body such as
+ * 
+ *     if (!RepChecks.ENABLED) return;
+ * 
+ * is removed entirely by the JIT when checks are off, so production runs
+ * pay nothing for the (sometimes quadratic) traversals.
+ */
+public final class RepChecks {
+    public static final boolean ENABLED = RepChecks.class.desiredAssertionStatus();
+
+    private RepChecks() {
+    }
+}
@@ -7,6 +7,7 @@
 package sudoku.src.sat.env;
 import sudoku.src.immutable.ImListMap;
 import sudoku.src.immutable.ImMap;
+import sudoku.src.immutable.RepChecks;
 
 /**
  * An environment is an immutable mapping from variables to boolean values.
@@ -26,8 +27,14 @@ public class Environment {
      */
     private ImMap <Variable, Bool> bindings;
 
+    void checkRep() {
+        if (!RepChecks.ENABLED) return;
+        assert bindings != null : "Environment, Rep invariant: bindings non-null";
+    }
+
     private Environment(ImMap <Variable, Bool> bindings) {
         this.bindings = bindings;
+        checkRep();
     }
 
     public Environment() {
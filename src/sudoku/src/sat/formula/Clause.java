@@ -8,6 +8,7 @@ package sudoku.src.sat.formula;
 import sudoku.src.immutable.EmptyImList;
 import sudoku.src.immutable.ImList;
 import sudoku.src.immutable.NonEmptyImList;
+import sudoku.src.immutable.RepChecks;
 
 import java.util.Iterator;
 
@@ -36,14 +37,9 @@ public class Clause implements Iterable<Literal> {
      */
 
     void checkRep () {
-        // check whether assertions are turned on.
-        // if they're not on, we want to avoid all the recursive
-        // traversal that checkRep(literals) would do.
-        try {
-            assert false;
-        } catch (AssertionError e) {
-            checkRep (literals);
-        }
+        // skip the quadratic traversal entirely unless checks are enabled.
+        if (!RepChecks.ENABLED) return;
+        checkRep (literals);
     }
     void checkRep (ImList<Literal> ls) {
         assert ls != null : "Clause, Rep invariant: literals non-null"; 
@@ -67,7 +63,6 @@ public class Clause implements Iterable<Literal> {
      */
     public Clause(Literal literal) {
         this(new NonEmptyImList<Literal>(literal));
-        checkRep();
     }
 
     /**
@@ -75,7 +70,6 @@ public class Clause implements Iterable<Literal> {
      */
     public Clause() {
         this(new EmptyImList<Literal>());
-        checkRep();
     }
 
     /**
@@ -9,6 +9,7 @@ package sudoku.src.sat.formula;
 import sudoku.src.immutable.EmptyImList;
 import sudoku.src.immutable.ImList;
 import sudoku.src.immutable.NonEmptyImList;
+import sudoku.src.immutable.RepChecks;
 
 import java.util.Iterator;
 
@@ -44,6 +45,7 @@ public class Formula {
     //      Variable = String
 
     void checkRep() {
+        if (!RepChecks.ENABLED) return;
         assert this.clauses != null : "SATProblem, Rep invariant: clauses non-null";
     }
 
@@ -55,6 +57,7 @@ public class Formula {
      */
     public Formula() {
         this.clauses = new EmptyImList<Clause>();
+        checkRep();
     }
 
     /**
@@ -68,6 +71,7 @@ public class Formula {
         Clause c = new Clause(literal);
         ImList<Clause> cl = new NonEmptyImList<Clause>(c);
         this.clauses = cl;
+        checkRep();
     }
 
     /**
@@ -78,6 +82,7 @@ public class Formula {
     public Formula(Clause c) {
         ImList<Clause> clauses = new NonEmptyImList<Clause>(c);
         this.clauses = clauses;
+        checkRep();
     }
     
     /**
@@ -87,6 +92,7 @@ public class Formula {
      */
     private Formula(ImList<Clause> clauses) {
         this.clauses = clauses;
+        checkRep();
     }
 
     /**
@@ -119,12 +125,15 @@ public class Formula {
     }
 
     /**
+     * The clause lists of this and p are shared rather than copied, so
+     * conjunction takes constant time regardless of the size of either formula.
+     * 
      * @return a new problem corresponding to the conjunction of this and p
      */
     public Formula and(Formula p) {
-        ImList<Clause> fullClauseList = this.clauses;
-        for (Clause c : p.getClauses())
-            fullClauseList = fullClauseList.add(c);
+        // Put p in front so that accumulating with f = f.and(g) nests to the
+        // right and the first clause stays cheap to reach.
+        ImList<Clause> fullClauseList = p.clauses.concat(this.clauses);
         
         return new Formula(fullClauseList);
     }
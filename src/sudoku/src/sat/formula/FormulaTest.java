@@ -40,12 +40,28 @@ public class FormulaTest {
     public void testAnd() {
         Formula p = make(make(a), make(b));
         Formula q = make(make(nc), make(d));
-        Formula expected = make(make(a), make(b), make(d), make(nc));
+        Formula expected = make(make(a), make(b), make(nc), make(d));
         Formula test = p.and(q);
         
         assertEquals(expected.getClauses(), test.getClauses());
     }
     
+    // Chaining many conjunctions keeps every clause of every formula.
+    @Test
+    public void testAndChained() {
+        Formula f = new Formula();
+        for (int i = 0; i < 10000; i++)
+            f = f.and(make(make(a), make(nb)));
+        
+        assertEquals(20000, f.getSize());
+        int count = 0;
+        for (Clause cl : f.getClauses()) {
+            assertTrue(cl.equals(make(a)) || cl.equals(make(nb)));
+            count++;
+        }
+        assertEquals(20000, count);
+    }
+    
     //  (a & b) .or (c & d) == (a | c) & (a | d) & (b | c) & (b | d)      
     @Test
     public void testOr() {